@@ -0,0 +1,1023 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The sync protocol of a participant that keeps projects: project listings in pages,
+ * batched and delta based resource transfers, the blob cache, .fluxignore files and
+ * the messages about local changes. Subclasses provide the access to the storage of
+ * the projects (the workspace or plain folders).
+ */
+public abstract class AbstractRepository<P extends ISyncedProject> {
+
+	private static int GET_PROJECT_CALLBACK = "Repository - getProjectCallback".hashCode();
+	private static int GET_RESOURCE_CALLBACK = "Repository - getResourceCallback".hashCode();
+
+	/**
+	 * max number of resources asked for in a single getResourcesRequest
+	 */
+	public static final int RESOURCES_REQUEST_MAX_COUNT = 100;
+
+	/**
+	 * max number of resources listed in a single getProjectResponse, requests that
+	 * don't ask for pages get the full list
+	 */
+	public static final int PROJECT_PAGE_SIZE = 1000;
+
+	/**
+	 * max amount of content (in characters) put into a single getResourcesResponse,
+	 * larger answers are split into several responses
+	 */
+	public static final int RESOURCES_RESPONSE_MAX_SIZE = 512 * 1024;
+
+	/**
+	 * the time (in milliseconds) local changes to a resource are collected before they are sent out
+	 */
+	public static final long CHANGE_DELAY = 200;
+
+	private String username;
+	private IMessagingConnector messagingConnector;
+	private BlobCache blobCache;
+
+	private ConcurrentMap<String, P> syncedProjects;
+	private ConcurrentMap<String, ResourceDownloader> downloaders;
+	private Set<String> requestedPages;
+
+	private ExecutorService resourceReader;
+
+	public AbstractRepository(IMessagingConnector messagingConnector, String user, BlobCache blobCache) {
+		this.username = user;
+		this.messagingConnector = messagingConnector;
+		this.blobCache = blobCache;
+
+		this.syncedProjects = new ConcurrentHashMap<String, P>();
+		this.downloaders = new ConcurrentHashMap<String, ResourceDownloader>();
+		this.requestedPages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.resourceReader = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Flux resource reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this.messagingConnector.addConnectionListener(new IConnectionListener() {
+			@Override
+			public void connected() {
+				connect();
+			}
+			@Override
+			public void disconnected() {
+			}
+		});
+
+		IMessageHandler resourceChangedHandler = new AbstractMessageHandler("resourceChanged") {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				updateResource(message);
+			}
+		};
+		this.messagingConnector.addMessageHandler(resourceChangedHandler);
+
+		IMessageHandler resourceCreatedHandler = new AbstractMessageHandler("resourceCreated") {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				createResource(message);
+			}
+		};
+		this.messagingConnector.addMessageHandler(resourceCreatedHandler);
+
+		IMessageHandler resourceDeletedHandler = new AbstractMessageHandler("resourceDeleted") {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				deleteResource(message);
+			}
+		};
+		this.messagingConnector.addMessageHandler(resourceDeletedHandler);
+
+		IMessageHandler getProjectsRequestHandler = new AbstractMessageHandler("getProjectsRequest") {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				getProjects(message);
+			}
+		};
+		this.messagingConnector.addMessageHandler(getProjectsRequestHandler);
+
+		IMessageHandler getProjectRequestHandler = new AbstractMessageHandler("getProjectRequest") {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				getProject(message);
+			}
+		};
+		this.messagingConnector.addMessageHandler(getProjectRequestHandler);
+
+		IMessageHandler getProjectResponseHandler = new CallbackIDAwareMessageHandler("getProjectResponse", GET_PROJECT_CALLBACK) {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				getProjectResponse(message);
+			}
+		};
+		this.messagingConnector.addMessageHandler(getProjectResponseHandler);
+
+		IMessageHandler getResourceRequestHandler = new AbstractMessageHandler("getResourceRequest") {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				getResource(message);
+			}
+		};
+		this.messagingConnector.addMessageHandler(getResourceRequestHandler);
+
+		IMessageHandler getResourceResponseHandler = new CallbackIDAwareMessageHandler("getResourceResponse", GET_RESOURCE_CALLBACK) {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				getResourceResponse(message);
+			}
+		};
+		this.messagingConnector.addMessageHandler(getResourceResponseHandler);
+
+		IMessageHandler getResourcesRequestHandler = new AbstractMessageHandler("getResourcesRequest") {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				getResources(message);
+			}
+		};
+		this.messagingConnector.addMessageHandler(getResourcesRequestHandler);
+	}
+
+	/**
+	 * returns the type of the resource ("file" or "folder"), an empty string for other
+	 * resources that are synced (the project itself) or null, if the resource doesn't
+	 * exist or isn't synced
+	 */
+	protected abstract String getType(P project, String resourcePath);
+
+	protected abstract byte[] read(P project, String resourcePath) throws Exception;
+
+	protected abstract String getCharset(P project, String resourcePath) throws Exception;
+
+	/**
+	 * writes the content of the file, {@link #sendResourceStored(ISyncedProject, String, long, String)}
+	 * is called once the content is written
+	 */
+	protected abstract void write(P project, String resourcePath, long timestamp, String hash, byte[] content) throws Exception;
+
+	protected abstract void createFolder(P project, String resourcePath, long timestamp) throws Exception;
+
+	/**
+	 * sets the timestamp of an existing file that got the same content somewhere else
+	 */
+	protected abstract void setLocalTimestamp(P project, String resourcePath, long timestamp) throws Exception;
+
+	/**
+	 * deletes the file or the folder with everything inside of it
+	 */
+	protected abstract void delete(P project, String resourcePath) throws Exception;
+
+	public String getUsername() {
+		return this.username;
+	}
+
+	protected IMessagingConnector getMessagingConnector() {
+		return this.messagingConnector;
+	}
+
+	protected BlobCache getBlobCache() {
+		return this.blobCache;
+	}
+
+	public boolean isConnected() {
+		return messagingConnector.isConnected();
+	}
+
+	public boolean isConnected(String projectName) {
+		return this.syncedProjects.containsKey(projectName);
+	}
+
+	public P getProject(String projectName) {
+		return this.syncedProjects.get(projectName);
+	}
+
+	public Collection<P> getProjects() {
+		return this.syncedProjects.values();
+	}
+
+	/**
+	 * stops the background work of the repository (reading and downloading resources)
+	 */
+	public void dispose() {
+		this.resourceReader.shutdown();
+		for (ResourceDownloader downloader : this.downloaders.values()) {
+			downloader.stop();
+		}
+	}
+
+	protected void connect() {
+		for (String projectName : syncedProjects.keySet()) {
+			sendProjectConnectedMessage(projectName);
+			syncConnectedProject(projectName);
+		}
+	}
+
+	/**
+	 * adds the project to the sync, returns false if a project with the same name is synced already
+	 */
+	protected boolean connectProject(P project) {
+		if (this.syncedProjects.putIfAbsent(project.getName(), project) != null) {
+			return false;
+		}
+
+		if (isConnected()) {
+			sendProjectConnectedMessage(project.getName());
+			syncConnectedProject(project.getName());
+		}
+		return true;
+	}
+
+	/**
+	 * removes the project from the sync, returns the project or null, if it wasn't synced
+	 */
+	protected P disconnectProject(String projectName) {
+		P project = this.syncedProjects.remove(projectName);
+		if (project != null) {
+			ResourceDownloader downloader = this.downloaders.remove(projectName);
+			if (downloader != null) {
+				downloader.stop();
+			}
+
+			if (isConnected()) {
+				try {
+					JSONObject message = new JSONObject();
+					message.put("username", this.username);
+					message.put("project", projectName);
+					messagingConnector.send("projectDisconnected", message);
+				} catch (JSONException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return project;
+	}
+
+	protected void syncConnectedProject(String projectName) {
+		for (String page : this.requestedPages) {
+			if (page.startsWith(projectName + "/")) {
+				this.requestedPages.remove(page);
+			}
+		}
+		sendGetProjectRequest(projectName, null);
+	}
+
+	protected void sendGetProjectRequest(String projectName, String cursor) {
+		try {
+			JSONObject message = new JSONObject();
+			message.put("username", this.username);
+			message.put("project", projectName);
+			message.put("includeDeleted", true);
+			message.put("pageSize", PROJECT_PAGE_SIZE);
+			if (cursor != null) {
+				message.put("cursor", cursor);
+			}
+			message.put("callback_id", GET_PROJECT_CALLBACK);
+			messagingConnector.send("getProjectRequest", message);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected void sendProjectConnectedMessage(String projectName) {
+		try {
+			JSONObject message = new JSONObject();
+			message.put("username", this.username);
+			message.put("project", projectName);
+			messagingConnector.send("projectConnected", message);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void getProjects(JSONObject request) {
+		try {
+			int callbackID = request.getInt("callback_id");
+			String sender = request.getString("requestSenderID");
+			String username = request.getString("username");
+
+			if (this.username.equals(username)) {
+				JSONArray projects = new JSONArray();
+				for (String projectName : this.syncedProjects.keySet()) {
+					JSONObject proj = new JSONObject();
+					proj.put("name", projectName);
+					projects.put(proj);
+				}
+
+				JSONObject message = new JSONObject();
+				message.put("callback_id", callbackID);
+				message.put("requestSenderID", sender);
+				message.put("username", this.username);
+				message.put("projects", projects);
+
+				messagingConnector.send("getProjectsResponse", message);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * answers with all resources of the project or, if the request asks for pages,
+	 * with the resources that follow the cursor of the request in path order (the
+	 * response contains the cursor for the next page if there are more resources)
+	 */
+	public void getProject(JSONObject request) {
+		try {
+			final String projectName = request.getString("project");
+			final String username = request.getString("username");
+			final int pageSize = request.optInt("pageSize", 0);
+			final String cursor = request.optString("cursor", null);
+
+			P project = this.syncedProjects.get(projectName);
+			if (this.username.equals(username) && project != null) {
+				JSONArray files = new JSONArray();
+				String lastPath = null;
+				boolean more = false;
+
+				for (String path : project.getResourcePaths(pageSize > 0 ? cursor : null)) {
+					if (pageSize > 0 && files.length() >= pageSize) {
+						more = true;
+						break;
+					}
+
+					String type = getType(project, path);
+					if (type == null || project.isIgnored(path, "folder".equals(type))) {
+						continue;
+					}
+
+					JSONObject projectResource = new JSONObject();
+					projectResource.put("path", path);
+					projectResource.put("timestamp", project.getTimestamp(path));
+					projectResource.put("hash", project.getHash(path));
+					if (type.length() > 0) {
+						projectResource.put("type", type);
+					}
+
+					files.put(projectResource);
+					lastPath = path;
+				}
+
+				JSONObject message = new JSONObject();
+				message.put("callback_id", request.getInt("callback_id"));
+				message.put("requestSenderID", request.getString("requestSenderID"));
+				message.put("username", this.username);
+				message.put("project", projectName);
+				message.put("files", files);
+				if (more) {
+					message.put("cursor", lastPath);
+				}
+
+				messagingConnector.send("getProjectResponse", message);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void getProjectResponse(JSONObject response) {
+		try {
+			final String username = response.getString("username");
+			final String projectName = response.getString("project");
+			final JSONArray files = response.getJSONArray("files");
+			final JSONArray deleted = response.optJSONArray("deleted");
+
+			P project = this.syncedProjects.get(projectName);
+			if (this.username.equals(username) && project != null) {
+
+				// ask for the next page right away, it arrives while this one is processed
+				String cursor = response.optString("cursor", null);
+				// (several participants may answer with the same page, each page is asked for once)
+				if (cursor != null && this.requestedPages.add(projectName + "/" + cursor)) {
+					sendGetProjectRequest(projectName, cursor);
+				}
+
+				ResourceDownloader downloader = getDownloader(projectName);
+
+				for (int i = 0; i < files.length(); i++) {
+					JSONObject resource = files.getJSONObject(i);
+
+					String resourcePath = resource.getString("path");
+					long timestamp = resource.getLong("timestamp");
+					String type = resource.optString("type");
+					String hash = resource.optString("hash");
+
+					if (resourcePath.length() == 0 || project.isIgnored(resourcePath, "folder".equals(type))) {
+						continue;
+					}
+
+					boolean known = project.containsResource(resourcePath);
+
+					if ("file".equals(type)) {
+						boolean newer = known && project.getTimestamp(resourcePath) < timestamp;
+
+						if (!known || (newer && !hash.equals(project.getHash(resourcePath)))) {
+							if (!storeFromCache(project, resourcePath, timestamp, hash)) {
+								JSONObject requestedResource = new JSONObject();
+								requestedResource.put("resource", resourcePath);
+								requestedResource.put("timestamp", timestamp);
+								requestedResource.put("hash", hash);
+								if (known && blobCache != null && blobCache.contains(project.getHash(resourcePath))) {
+									requestedResource.put("baseHash", project.getHash(resourcePath));
+								}
+								downloader.add(requestedResource, ResourceDownloader.getPriority(resourcePath));
+							}
+						}
+						else if (newer) {
+							project.setTimestamp(resourcePath, timestamp);
+							setLocalTimestamp(project, resourcePath, timestamp);
+						}
+					}
+					else if ("folder".equals(type) && !known) {
+						project.setHash(resourcePath, ISyncedProject.FOLDER_HASH);
+						project.setTimestamp(resourcePath, timestamp);
+						createFolder(project, resourcePath, timestamp);
+					}
+				}
+
+				downloader.start();
+				downloader.fill();
+
+				if (deleted != null) {
+					for (int i = 0; i < deleted.length(); i++) {
+						JSONObject deletedResource = deleted.getJSONObject(i);
+						deleteLocally(project, deletedResource.getString("path"), deletedResource.getLong("timestamp"));
+					}
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * returns the downloader that fetches the resources of the project from the other participants
+	 */
+	protected ResourceDownloader getDownloader(final String projectName) {
+		ResourceDownloader downloader = this.downloaders.get(projectName);
+		if (downloader == null) {
+			int callbackID = ("Repository - download " + projectName).hashCode();
+			downloader = new ResourceDownloader(messagingConnector, username, projectName, callbackID, new ResourceDownloader.Listener() {
+				@Override
+				public void resourceDownloaded(JSONObject resource) throws Exception {
+					getResourceResponse(resource);
+				}
+				@Override
+				public void resourceFailed(String resourcePath) {
+					downloadFailed(projectName, resourcePath);
+				}
+				@Override
+				public void downloadProgress(int downloadedCount, int totalCount, long bytesPerSecond) {
+				}
+				@Override
+				public void downloadFinished() {
+					// the timer thread isn't needed until the next resources are added
+					ResourceDownloader finishedDownloader = downloaders.get(projectName);
+					if (finishedDownloader != null) {
+						finishedDownloader.stopIfFinished();
+					}
+				}
+			});
+
+			ResourceDownloader existingDownloader = this.downloaders.putIfAbsent(projectName, downloader);
+			if (existingDownloader != null) {
+				downloader = existingDownloader;
+			}
+		}
+		return downloader;
+	}
+
+	/**
+	 * called when a resource couldn't be fetched (it is fetched again with the next change or sync)
+	 */
+	protected void downloadFailed(String projectName, String resourcePath) {
+	}
+
+	protected ResourceDownloader getActiveDownloader(String projectName) {
+		return this.downloaders.get(projectName);
+	}
+
+	/**
+	 * fetches the resource before everything else that is still waiting to be fetched
+	 * (e.g. because somebody started to work on it), returns false if the resource isn't
+	 * waiting to be fetched
+	 */
+	public boolean prioritize(String projectName, String resourcePath) {
+		ResourceDownloader downloader = this.downloaders.get(projectName);
+		return downloader != null && downloader.prioritize(resourcePath);
+	}
+
+	public boolean isFetching(String projectName, String resourcePath) {
+		ResourceDownloader downloader = this.downloaders.get(projectName);
+		return downloader != null && downloader.isRequested(resourcePath);
+	}
+
+	public void getResource(JSONObject request) {
+		try {
+			final String username = request.getString("username");
+			final int callbackID = request.getInt("callback_id");
+			final String sender = request.getString("requestSenderID");
+			final String projectName = request.getString("project");
+			final String resourcePath = request.getString("resource");
+
+			P project = this.syncedProjects.get(projectName);
+			if (this.username.equals(username) && project != null) {
+				JSONObject message = readResource(project, request);
+				if (message != null) {
+					message.put("callback_id", callbackID);
+					message.put("requestSenderID", sender);
+					message.put("username", this.username);
+					message.put("project", projectName);
+					message.put("resource", resourcePath);
+
+					messagingConnector.send("getResourceResponse", message);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void getResources(JSONObject request) {
+		try {
+			final String username = request.getString("username");
+			final int callbackID = request.getInt("callback_id");
+			final String sender = request.getString("requestSenderID");
+			final String projectName = request.getString("project");
+			final JSONArray resources = request.getJSONArray("resources");
+
+			final P project = this.syncedProjects.get(projectName);
+			if (this.username.equals(username) && project != null) {
+				List<Callable<JSONObject>> reads = new ArrayList<Callable<JSONObject>>(resources.length());
+				for (int i = 0; i < resources.length(); i++) {
+					final JSONObject requestedResource = resources.getJSONObject(i);
+					reads.add(new Callable<JSONObject>() {
+						@Override
+						public JSONObject call() throws Exception {
+							JSONObject resource = readResource(project, requestedResource);
+							if (resource != null) {
+								resource.put("resource", requestedResource.getString("resource"));
+							}
+							return resource;
+						}
+					});
+				}
+
+				JSONArray batch = new JSONArray();
+				int batchSize = 0;
+
+				for (Future<JSONObject> read : resourceReader.invokeAll(reads)) {
+					JSONObject resource = null;
+					try {
+						resource = read.get();
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+
+					if (resource != null) {
+						int size = resource.has("delta") ? resource.getJSONArray("delta").toString().length() : resource.optString("content").length();
+						if (batch.length() > 0 && batchSize + size > RESOURCES_RESPONSE_MAX_SIZE) {
+							sendGetResourcesResponse(callbackID, sender, projectName, batch);
+							batch = new JSONArray();
+							batchSize = 0;
+						}
+						batch.put(resource);
+						batchSize += size;
+					}
+				}
+
+				if (batch.length() > 0) {
+					sendGetResourcesResponse(callbackID, sender, projectName, batch);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected void sendGetResourcesResponse(int callbackID, String sender, String projectName, JSONArray resources) throws JSONException {
+		JSONObject message = new JSONObject();
+		message.put("callback_id", callbackID);
+		message.put("requestSenderID", sender);
+		message.put("username", this.username);
+		message.put("project", projectName);
+		message.put("resources", resources);
+
+		messagingConnector.send("getResourcesResponse", message);
+	}
+
+	/**
+	 * reads the requested resource (the request may contain an expected timestamp and hash)
+	 * and returns its timestamp, hash, type and content or null, if the resource doesn't exist
+	 * or doesn't match the expected state
+	 */
+	protected JSONObject readResource(P project, JSONObject request) throws Exception {
+		final String resourcePath = request.getString("resource");
+
+		if (!project.containsResource(resourcePath)) {
+			return null;
+		}
+
+		if (request.has("timestamp") && request.getLong("timestamp") != project.getTimestamp(resourcePath)) {
+			return null;
+		}
+
+		String type = getType(project, resourcePath);
+		if (type == null) {
+			return null;
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("timestamp", project.getTimestamp(resourcePath));
+		result.put("hash", project.getHash(resourcePath));
+
+		if ("file".equals(type)) {
+			if (request.has("hash") && !request.getString("hash").equals(project.getHash(resourcePath))) {
+				return null;
+			}
+
+			byte[] content = read(project, resourcePath);
+			String charset = getCharset(project, resourcePath);
+
+			// the requester has an older version of the file, a delta against it is enough
+			JSONArray delta = createDelta(request.optString("baseHash"), content, charset);
+			if (delta != null) {
+				result.put("baseHash", request.getString("baseHash"));
+				result.put("delta", delta);
+				result.put("encoding", charset);
+			}
+			else {
+				ContentEncoding.put(result, content, charset);
+			}
+		}
+		if (type.length() > 0) {
+			result.put("type", type);
+		}
+
+		return result;
+	}
+
+	/**
+	 * returns the delta from the content with the given base hash (if available in the
+	 * blob cache) to the given content or null, if the delta is not smaller than the content
+	 */
+	protected JSONArray createDelta(String baseHash, byte[] content, String charset) {
+		if (blobCache == null || baseHash == null || baseHash.length() == 0) {
+			return null;
+		}
+
+		byte[] base = blobCache.get(baseHash);
+		if (base == null) {
+			return null;
+		}
+
+		String baseText = ContentEncoding.decode(base, charset);
+		String text = ContentEncoding.decode(content, charset);
+		if (baseText == null || text == null) {
+			return null;
+		}
+
+		JSONArray delta = TextDelta.create(baseText, text);
+		return delta.toString().length() < text.length() ? delta : null;
+	}
+
+	public void updateResource(JSONObject request) {
+		try {
+			final String username = request.getString("username");
+			final String projectName = request.getString("project");
+			final String resourcePath = request.getString("resource");
+			final long updateTimestamp = request.getLong("timestamp");
+			final String updateHash = request.optString("hash");
+
+			P project = this.syncedProjects.get(projectName);
+			if (this.username.equals(username) && project != null && !project.isIgnored(resourcePath, false)
+					&& "file".equals(getType(project, resourcePath))) {
+				String localHash = project.getHash(resourcePath);
+
+				if (localHash != null && !localHash.equals(updateHash) && project.getTimestamp(resourcePath) < updateTimestamp
+						&& !storeFromCache(project, resourcePath, updateTimestamp, updateHash)) {
+					sendGetResourceRequest(projectName, resourcePath, updateTimestamp, updateHash, localHash);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void createResource(JSONObject request) {
+		try {
+			final String username = request.getString("username");
+			final String projectName = request.getString("project");
+			final String resourcePath = request.getString("resource");
+			final long updateTimestamp = request.getLong("timestamp");
+			final String updateHash = request.optString("hash");
+			final String type = request.optString("type");
+
+			P project = this.syncedProjects.get(projectName);
+			if (this.username.equals(username) && project != null && !project.isIgnored(resourcePath, "folder".equals(type))
+					&& getType(project, resourcePath) == null) {
+				if ("folder".equals(type)) {
+					project.setHash(resourcePath, ISyncedProject.FOLDER_HASH);
+					project.setTimestamp(resourcePath, updateTimestamp);
+					createFolder(project, resourcePath, updateTimestamp);
+				}
+				else if ("file".equals(type) && !storeFromCache(project, resourcePath, updateTimestamp, updateHash)) {
+					sendGetResourceRequest(projectName, resourcePath, updateTimestamp, updateHash, null);
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void deleteResource(JSONObject request) {
+		try {
+			final String username = request.getString("username");
+			final String projectName = request.getString("project");
+			final String resourcePath = request.getString("resource");
+			final long deletedTimestamp = request.getLong("timestamp");
+
+			P project = this.syncedProjects.get(projectName);
+			if (this.username.equals(username) && project != null) {
+				deleteLocally(project, resourcePath, deletedTimestamp);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * deletes the resource if it didn't change locally after it got deleted remotely,
+	 * the content of a deleted file is kept in the blob cache
+	 */
+	protected void deleteLocally(P project, String resourcePath, long deletedTimestamp) throws Exception {
+		String type = getType(project, resourcePath);
+		if (type == null || type.length() == 0 || !project.containsResource(resourcePath)
+				|| project.isIgnored(resourcePath, "folder".equals(type)) || project.getTimestamp(resourcePath) >= deletedTimestamp) {
+			return;
+		}
+
+		keepInCache(project, resourcePath);
+		delete(project, resourcePath);
+	}
+
+	public void getResourceResponse(JSONObject response) {
+		try {
+			final String username = response.getString("username");
+			final String projectName = response.getString("project");
+			final String resourcePath = response.getString("resource");
+			final long updateTimestamp = response.getLong("timestamp");
+			final String updateHash = response.getString("hash");
+
+			P project = this.syncedProjects.get(projectName);
+			if (this.username.equals(username) && project != null) {
+				String charset = getCharset(project, resourcePath);
+
+				byte[] newResourceContent;
+				if (response.has("delta")) {
+					newResourceContent = applyDelta(response.getString("baseHash"), response.getJSONArray("delta"), updateHash, response.optString("encoding", charset));
+					if (newResourceContent == null) {
+						// the delta doesn't fit to what we have locally, so ask for the full content
+						sendGetResourceRequest(projectName, resourcePath, updateTimestamp, updateHash, null);
+						return;
+					}
+				}
+				else {
+					newResourceContent = ContentEncoding.get(response, charset);
+				}
+
+				if (blobCache != null) {
+					blobCache.put(updateHash, newResourceContent);
+				}
+
+				storeResource(project, resourcePath, updateTimestamp, updateHash, newResourceContent);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * reconstructs the content from the base content in the blob cache and the delta,
+	 * returns null if the base content is not available or the result doesn't match the hash
+	 */
+	protected byte[] applyDelta(String baseHash, JSONArray delta, String hash, String charset) {
+		byte[] base = blobCache != null ? blobCache.get(baseHash) : null;
+		String baseText = base != null ? ContentEncoding.decode(base, charset) : null;
+		if (baseText == null) {
+			return null;
+		}
+
+		try {
+			byte[] content = TextDelta.apply(baseText, delta).getBytes(ContentEncoding.getCharset(charset));
+			if (hash.equals(Hashing.sha1Hex(content))) {
+				return content;
+			}
+		}
+		catch (JSONException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	protected void sendGetResourceRequest(String projectName, String resourcePath, long timestamp, String hash, String baseHash) throws JSONException {
+		JSONObject message = new JSONObject();
+		message.put("callback_id", GET_RESOURCE_CALLBACK);
+		message.put("username", this.username);
+		message.put("project", projectName);
+		message.put("resource", resourcePath);
+		message.put("timestamp", timestamp);
+		message.put("hash", hash);
+		if (baseHash != null && blobCache != null && blobCache.contains(baseHash)) {
+			message.put("baseHash", baseHash);
+		}
+
+		messagingConnector.send("getResourceRequest", message);
+	}
+
+	/**
+	 * stores the content with the given hash from the local blob cache,
+	 * returns false if the content isn't available locally
+	 */
+	protected boolean storeFromCache(P project, String resourcePath, long timestamp, String hash) throws Exception {
+		if (blobCache == null) {
+			return false;
+		}
+
+		byte[] content = blobCache.get(hash);
+		if (content == null) {
+			return false;
+		}
+
+		storeResource(project, resourcePath, timestamp, hash, content);
+		return true;
+	}
+
+	/**
+	 * puts the content of a file that is about to be deleted into the blob cache
+	 */
+	protected void keepInCache(P project, String resourcePath) {
+		if (blobCache != null && "file".equals(getType(project, resourcePath))) {
+			String hash = project.getHash(resourcePath);
+			if (hash != null && !blobCache.contains(hash)) {
+				try {
+					blobCache.put(hash, read(project, resourcePath));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * writes the content if the file is new or older than the update, the index is updated
+	 * before the file is written, so the write shows up as a known state
+	 */
+	protected void storeResource(P project, String resourcePath, long updateTimestamp, String updateHash, byte[] content) throws Exception {
+		String type = getType(project, resourcePath);
+		if (type != null) {
+			String localHash = project.getHash(resourcePath);
+			if (!"file".equals(type) || localHash == null || localHash.equals(updateHash)
+					|| project.getTimestamp(resourcePath) >= updateTimestamp) {
+				return;
+			}
+		}
+
+		project.setTimestamp(resourcePath, updateTimestamp);
+		project.setHash(resourcePath, updateHash);
+		project.setQuickHash(resourcePath, Hashing.quickHash(content), content.length, updateTimestamp);
+
+		write(project, resourcePath, updateTimestamp, updateHash, content);
+	}
+
+	protected void sendResourceStored(P project, String resourcePath, long timestamp, String hash) {
+		try {
+			JSONObject message = new JSONObject();
+			message.put("username", this.username);
+			message.put("project", project.getName());
+			message.put("resource", resourcePath);
+			message.put("timestamp", timestamp);
+			message.put("hash", hash);
+			messagingConnector.send("resourceStored", message);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * indexes a resource that was added locally and tells the other participants about it
+	 */
+	protected void reportResourceAdded(P project, String resourcePath, long timestamp, boolean folder) throws Exception {
+		String hash = ISyncedProject.FOLDER_HASH;
+
+		if (!folder) {
+			byte[] content = read(project, resourcePath);
+			Hashing.Result result = Hashing.hash(content);
+			hash = result.getSha1Hex();
+			project.setQuickHash(resourcePath, result.getQuickHash(), result.getLength(), timestamp);
+
+			if (blobCache != null) {
+				blobCache.put(hash, content);
+			}
+		}
+
+		project.setTimestamp(resourcePath, timestamp);
+		project.setHash(resourcePath, hash);
+
+		JSONObject createdMessage = new JSONObject();
+		createdMessage.put("username", this.username);
+		createdMessage.put("project", project.getName());
+		createdMessage.put("resource", resourcePath);
+		createdMessage.put("timestamp", timestamp);
+		createdMessage.put("hash", hash);
+		createdMessage.put("type", folder ? "folder" : "file");
+		messagingConnector.send("resourceCreated", createdMessage);
+
+		sendResourceStored(project, resourcePath, timestamp, hash);
+	}
+
+	/**
+	 * updates the index for a file that was changed locally and tells the other participants
+	 * about it (if the content really changed)
+	 */
+	protected void reportResourceChanged(P project, String resourcePath, long changeTimestamp) throws Exception {
+		if (changeTimestamp <= project.getTimestamp(resourcePath)) {
+			return;
+		}
+
+		byte[] content = read(project, resourcePath);
+
+		// the quick hash is only a hint, SHA-1 is skipped just for the content that was hashed before
+		long quickHash = Hashing.quickHash(content);
+		if (project.hasQuickHash(resourcePath, quickHash, content.length, changeTimestamp)) {
+			return;
+		}
+
+		String changeHash = Hashing.sha1Hex(content);
+		project.setQuickHash(resourcePath, quickHash, content.length, changeTimestamp);
+		if (!changeHash.equals(project.getHash(resourcePath))) {
+			if (blobCache != null) {
+				blobCache.put(changeHash, content);
+			}
+
+			project.setTimestamp(resourcePath, changeTimestamp);
+			project.setHash(resourcePath, changeHash);
+
+			JSONObject changedMessage = new JSONObject();
+			changedMessage.put("username", this.username);
+			changedMessage.put("project", project.getName());
+			changedMessage.put("resource", resourcePath);
+			changedMessage.put("timestamp", changeTimestamp);
+			changedMessage.put("hash", changeHash);
+			messagingConnector.send("resourceChanged", changedMessage);
+
+			sendResourceStored(project, resourcePath, changeTimestamp, changeHash);
+		}
+	}
+
+	protected void reportResourceRemoved(P project, String resourcePath, long deletedTimestamp) {
+		try {
+			JSONObject message = new JSONObject();
+			message.put("username", this.username);
+			message.put("project", project.getName());
+			message.put("resource", resourcePath);
+			message.put("timestamp", deletedTimestamp);
+			messagingConnector.send("resourceDeleted", message);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -12,6 +12,8 @@ package org.eclipse.flux.core;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.commons.lang.StringUtils;
 import org.eclipse.core.resources.IProject;
@@ -22,6 +24,13 @@ import org.eclipse.core.resources.IWorkspace;
 import org.eclipse.core.resources.IWorkspaceRoot;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.IJobChangeEvent;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.jobs.JobChangeAdapter;
 import org.eclipse.core.runtime.preferences.IEclipsePreferences;
 import org.eclipse.core.runtime.preferences.InstanceScope;
 import org.eclipse.flux.core.internal.CloudSyncMetadataListener;
@@ -42,10 +51,14 @@ public class Activator implements BundleActivator {
 
 	private static final String CONNECTED_PROJECTS_ID = "connected.projects";
 
+	// max number of projects that are reconnected (scanned and hashed) at the same time
+	private static final int MAX_PARALLEL_RECONNECTS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
 	// The shared instance
 	private static Activator plugin;
 
 	private IMessagingConnector messagingConnector;
+	private BlobCache blobCache;
 	private Repository repository;
 	private LiveEditCoordinator liveEditCoordinator;
 	
@@ -56,9 +69,13 @@ public class Activator implements BundleActivator {
 		String username = System.getProperty("flux-username", "defaultuser");
 		// TODO: change this username property to a preference and add authentication
 		
+		long blobCacheSize = Long.getLong("flux-blob-cache-size", BlobCache.DEFAULT_MAX_SIZE);
+		blobCache = new BlobCache(Platform.getStateLocation(context.getBundle()).append("blobs").toFile(), blobCacheSize);
+
 		messagingConnector = new SocketIOMessagingConnector(username);
-		repository = new Repository(messagingConnector, username);
+		repository = new Repository(messagingConnector, username, blobCache);
 		liveEditCoordinator = new LiveEditCoordinator(messagingConnector);
+		repository.setLiveEditCoordinator(liveEditCoordinator);
 		
 		CloudSyncResourceListener resourceListener = new CloudSyncResourceListener(repository);
 		ResourcesPlugin.getWorkspace().addResourceChangeListener(resourceListener, IResourceChangeEvent.POST_CHANGE);
@@ -109,23 +126,79 @@ public class Activator implements BundleActivator {
 
 	@Override
 	public void stop(BundleContext context) throws Exception {
+		if (repository != null) {
+			repository.dispose();
+		}
 		plugin = null;
 	}
 
-	private void updateProjectConnections() throws CoreException {
+	/**
+	 * reconnects the projects that were connected before in background jobs,
+	 * so that scanning the projects doesn't block the activation of the bundle
+	 */
+	private void updateProjectConnections() {
+		final Queue<IProject> pendingProjects = new ConcurrentLinkedQueue<IProject>();
+
 		String[] projects = getConnectedProjectPreferences();
 		for (String projectName : projects) {
 			IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
 			IProject project = root.getProject(projectName);
 			if (project.exists()) {
-				if (!project.isOpen()) {
-					project.open(null);
-				}
-				Repository repository = org.eclipse.flux.core.Activator.getDefault()
-						.getRepository();
-				repository.addProject(project);
+				repository.setConnecting(project, true);
+				pendingProjects.add(project);
 			}
 		}
+
+		int jobs = Math.min(pendingProjects.size(), MAX_PARALLEL_RECONNECTS);
+		for (int i = 0; i < jobs; i++) {
+			Job reconnectJob = new Job("Reconnecting Flux projects") {
+				@Override
+				protected IStatus run(IProgressMonitor monitor) {
+					IProject project = pendingProjects.poll();
+					while (project != null) {
+						if (monitor.isCanceled()) {
+							repository.setConnecting(project, false);
+							cancelReconnects(pendingProjects);
+							return Status.CANCEL_STATUS;
+						}
+
+						try {
+							if (!project.isOpen()) {
+								project.open(monitor);
+							}
+							repository.addProject(project);
+						} catch (CoreException e) {
+							e.printStackTrace();
+							repository.setConnecting(project, false);
+						}
+						project = pendingProjects.poll();
+					}
+					return Status.OK_STATUS;
+				}
+			};
+			reconnectJob.addJobChangeListener(new JobChangeAdapter() {
+				@Override
+				public void done(IJobChangeEvent event) {
+					// also called for jobs that got cancelled before they ran
+					if (event.getResult() != null && event.getResult().getSeverity() == IStatus.CANCEL) {
+						cancelReconnects(pendingProjects);
+					}
+				}
+			});
+			reconnectJob.setSystem(true);
+			reconnectJob.schedule();
+		}
+	}
+
+	/**
+	 * the projects that are not reconnected yet are not connecting anymore
+	 */
+	private void cancelReconnects(Queue<IProject> pendingProjects) {
+		IProject project = pendingProjects.poll();
+		while (project != null) {
+			repository.setConnecting(project, false);
+			project = pendingProjects.poll();
+		}
 	}
 
 	private String[] getConnectedProjectPreferences() {
@@ -180,11 +253,22 @@ public class Activator implements BundleActivator {
 	public static Activator getDefault() {
 		return plugin;
 	}
+
+	/**
+	 * writes a warning into the log of the bundle
+	 */
+	public static void logWarning(String message) {
+		Platform.getLog(Platform.getBundle(PLUGIN_ID)).log(new Status(IStatus.WARNING, PLUGIN_ID, message));
+	}
 	
 	public IMessagingConnector getMessagingConnector() {
 		return messagingConnector;
 	}
 	
+	public BlobCache getBlobCache() {
+		return blobCache;
+	}
+	
 	public Repository getRepository() {
 		return repository;
 	}
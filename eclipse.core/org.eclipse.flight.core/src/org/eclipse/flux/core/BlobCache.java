@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Content addressed store for file contents on the local disk. Every blob is
+ * stored under its SHA-1 hash (the same hash that is used for resources in the
+ * sync messages), so content that exists locally (in another project, from an
+ * earlier download or from a deleted file) doesn't need to be transferred again.
+ *
+ * The cache is bounded in size, the least recently used blobs are evicted first.
+ * The content of a blob is checked against its hash once: when it is stored, or
+ * (for blobs from an earlier session) when it is read for the first time.
+ */
+public class BlobCache {
+
+	public static final long DEFAULT_MAX_SIZE = 256 * 1024 * 1024;
+
+	private File directory;
+	private long maxSize;
+	private long maxEntrySize;
+
+	private LinkedHashMap<String, Long> entries;
+	private Set<String> unverified;
+	private long size;
+
+	public BlobCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxSize / 16;
+
+		this.entries = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+		this.unverified = new HashSet<String>();
+		this.directory.mkdirs();
+		load();
+	}
+
+	/**
+	 * returns the content with the given hash or null, if the cache doesn't contain it
+	 */
+	public byte[] get(String hash) {
+		if (!isValidHash(hash)) {
+			return null;
+		}
+
+		// get (unlike containsKey) moves the entry to the end of the eviction order
+		Long length;
+		boolean verify;
+		synchronized (this) {
+			length = entries.get(hash);
+			if (length == null) {
+				return null;
+			}
+			verify = unverified.contains(hash);
+		}
+
+		File blob = getFile(hash);
+		try {
+			byte[] content = FileUtils.readFileToByteArray(blob);
+			if (content.length == length && (!verify || hash.equals(Hashing.sha1Hex(content)))) {
+				if (verify) {
+					synchronized (this) {
+						unverified.remove(hash);
+					}
+				}
+				return content;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		// content on disk is broken or gone
+		remove(hash);
+		return null;
+	}
+
+	public synchronized boolean contains(String hash) {
+		return entries.containsKey(hash);
+	}
+
+	/**
+	 * stores the content under the given hash, content that doesn't match the hash is ignored
+	 */
+	public void put(String hash, byte[] content) {
+		if (!isValidHash(hash) || content == null || content.length > maxEntrySize) {
+			return;
+		}
+
+		synchronized (this) {
+			if (entries.get(hash) != null) {
+				return;
+			}
+		}
+
+		if (!hash.equals(Hashing.sha1Hex(content))) {
+			return;
+		}
+
+		File blob = getFile(hash);
+		File tempFile = new File(blob.getParentFile(), hash + ".tmp" + Thread.currentThread().getId());
+		try {
+			blob.getParentFile().mkdirs();
+			FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				out.write(content);
+			}
+			finally {
+				out.close();
+			}
+
+			if (!tempFile.renameTo(blob)) {
+				tempFile.delete();
+				if (!blob.exists()) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+			return;
+		}
+
+		synchronized (this) {
+			if (!entries.containsKey(hash)) {
+				entries.put(hash, (long) content.length);
+				size += content.length;
+			}
+		}
+
+		evict();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	protected void remove(String hash) {
+		synchronized (this) {
+			unverified.remove(hash);
+			Long length = entries.remove(hash);
+			if (length != null) {
+				size -= length;
+			}
+		}
+		getFile(hash).delete();
+	}
+
+	protected void evict() {
+		List<String> evicted = new ArrayList<String>();
+
+		synchronized (this) {
+			Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+			while (size > maxSize && iterator.hasNext()) {
+				Map.Entry<String, Long> entry = iterator.next();
+				size -= entry.getValue();
+				evicted.add(entry.getKey());
+				unverified.remove(entry.getKey());
+				iterator.remove();
+			}
+		}
+
+		for (String hash : evicted) {
+			getFile(hash).delete();
+		}
+	}
+
+	/**
+	 * reads the blobs that are on the disk already, the least recently modified ones
+	 * end up at the front of the eviction order (their content is verified when they are read)
+	 */
+	protected void load() {
+		List<File> blobs = new ArrayList<File>();
+
+		File[] folders = directory.listFiles();
+		if (folders != null) {
+			for (File folder : folders) {
+				File[] files = folder.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						if (isValidHash(file.getName())) {
+							blobs.add(file);
+						}
+						else {
+							// leftovers of interrupted writes
+							file.delete();
+						}
+					}
+				}
+			}
+		}
+
+		File[] sorted = blobs.toArray(new File[blobs.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File file1, File file2) {
+				return Long.compare(file1.lastModified(), file2.lastModified());
+			}
+		});
+
+		synchronized (this) {
+			for (File blob : sorted) {
+				entries.put(blob.getName(), blob.length());
+				unverified.add(blob.getName());
+				size += blob.length();
+			}
+		}
+
+		evict();
+	}
+
+	protected File getFile(String hash) {
+		return new File(new File(directory, hash.substring(0, 2)), hash);
+	}
+
+	protected static boolean isValidHash(String hash) {
+		if (hash == null || hash.length() != 40) {
+			return false;
+		}
+		for (int i = 0; i < hash.length(); i++) {
+			char c = hash.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -12,10 +12,12 @@ package org.eclipse.flux.core;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
@@ -27,34 +29,45 @@ import org.eclipse.core.runtime.CoreException;
 /**
  * @author Martin Lippert
  */
-public class ConnectedProject {
+public class ConnectedProject implements ISyncedProject {
 	
 	private IProject project;
 	private Map<String, String> resourceHash;
-	private Map<String, Long> resourceTimestamp;
+	private ConcurrentSkipListMap<String, Long> resourceTimestamp;
+	private Map<String, long[]> resourceQuickHash;
+	private IgnoreRules ignoreRules;
 	
 	public ConnectedProject(IProject project) {
 		this.project = project;
 		this.resourceHash = new ConcurrentHashMap<String, String>();
-		this.resourceTimestamp = new ConcurrentHashMap<String, Long>();
+		this.resourceTimestamp = new ConcurrentSkipListMap<String, Long>();
+		this.resourceQuickHash = new ConcurrentHashMap<String, long[]>();
+		this.ignoreRules = readIgnoreRules(project);
 		
 		try {
 			project.accept(new IResourceVisitor() {
 				@Override
 				public boolean visit(IResource resource) throws CoreException {
 					String path = resource.getProjectRelativePath().toString();
+					if (isIgnored(resource)) {
+						return false;
+					}
+
 					ConnectedProject.this.setTimestamp(path, resource.getLocalTimeStamp());
 					
 					if (resource instanceof IFile) {
 						try {
 							IFile file = (IFile) resource;
-							ConnectedProject.this.setHash(path, DigestUtils.shaHex(file.getContents()));
+							Hashing.Result hash = file.getLocation() != null && file.isSynchronized(IResource.DEPTH_ZERO)
+									? Hashing.hash(file.getLocation().toFile()) : Hashing.hash(file.getContents());
+							ConnectedProject.this.setHash(path, hash.getSha1Hex());
+							ConnectedProject.this.setQuickHash(path, hash.getQuickHash(), hash.getLength(), resource.getLocalTimeStamp());
 						} catch (IOException e) {
 							e.printStackTrace();
 						}
 					}
 					else if (resource instanceof IFolder) {
-						ConnectedProject.this.setHash(path, "0");
+						ConnectedProject.this.setHash(path, FOLDER_HASH);
 					}
 					
 					return true;
@@ -94,8 +107,101 @@ public class ConnectedProject {
 		return this.resourceHash.get(resourcePath);
 	}
 
+	/**
+	 * the quick hash, size and local timestamp of the content that was hashed last,
+	 * see {@link Hashing}
+	 */
+	public void setQuickHash(String resourcePath, long quickHash, long size, long localTimestamp) {
+		this.resourceQuickHash.put(resourcePath, new long[] {quickHash, size, localTimestamp});
+	}
+
+	public boolean hasQuickHash(String resourcePath, long quickHash, long size, long localTimestamp) {
+		long[] known = this.resourceQuickHash.get(resourcePath);
+		return known != null && known[0] == quickHash && known[1] == size && known[2] == localTimestamp;
+	}
+
+	/**
+	 * returns the paths of the resources in sorted order, starting after the given path
+	 * (or at the beginning, if the path is null)
+	 */
+	public Iterable<String> getResourcePaths(String after) {
+		if (after == null) {
+			return this.resourceTimestamp.keySet();
+		}
+		return this.resourceTimestamp.tailMap(after, false).keySet();
+	}
+
 	public boolean containsResource(String resourcePath) {
 		return this.resourceTimestamp.containsKey(resourcePath);
 	}
+
+	public void removeResource(String resourcePath) {
+		this.resourceTimestamp.remove(resourcePath);
+		this.resourceHash.remove(resourcePath);
+		this.resourceQuickHash.remove(resourcePath);
+	}
+
+	/**
+	 * returns true if the resource is excluded from the sync by the .fluxignore file of the project
+	 */
+	public boolean isIgnored(String resourcePath, boolean folder) {
+		return this.ignoreRules.isIgnored(resourcePath, folder);
+	}
+
+	public boolean isIgnored(IResource resource) {
+		return isIgnored(resource.getProjectRelativePath().toString(), resource.getType() == IResource.FOLDER);
+	}
+
+	/**
+	 * reads the .fluxignore file again, resources that are ignored now are no longer synced,
+	 * returns the resources that were ignored before and are not ignored anymore (they are
+	 * not in the index yet and need to be added like new resources)
+	 */
+	public List<IResource> updateIgnoreRules() {
+		IgnoreRules previousRules = this.ignoreRules;
+		this.ignoreRules = readIgnoreRules(project);
+
+		for (String resourcePath : resourceTimestamp.keySet()) {
+			IResource resource = project.findMember(resourcePath);
+			boolean folder = resource != null ? resource.getType() == IResource.FOLDER : FOLDER_HASH.equals(resourceHash.get(resourcePath));
+			if (isIgnored(resourcePath, folder)) {
+				removeResource(resourcePath);
+			}
+		}
+
+		final List<IResource> unignored = new ArrayList<IResource>();
+		if (!previousRules.isEmpty()) {
+			try {
+				project.accept(new IResourceVisitor() {
+					@Override
+					public boolean visit(IResource resource) throws CoreException {
+						if (isIgnored(resource)) {
+							return false;
+						}
+						if ((resource instanceof IFile || resource instanceof IFolder)
+								&& !containsResource(resource.getProjectRelativePath().toString())) {
+							unignored.add(resource);
+						}
+						return true;
+					}
+				}, IResource.DEPTH_INFINITE, IContainer.EXCLUDE_DERIVED);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return unignored;
+	}
+
+	public static IgnoreRules readIgnoreRules(IProject project) {
+		IFile ignoreFile = project.getFile(IgnoreRules.IGNORE_FILE);
+		if (ignoreFile.exists()) {
+			try {
+				return IgnoreRules.read(ignoreFile.getContents(), ignoreFile.getCharset());
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return IgnoreRules.NONE;
+	}
 	
 }
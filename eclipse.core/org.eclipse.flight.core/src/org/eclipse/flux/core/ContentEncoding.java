@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Puts file contents into messages and gets them out again without changing a
+ * single byte. Text goes into the "content" field as a string together with the
+ * name of its charset in the "encoding" field, binary content is sent base64
+ * encoded (with "base64" as encoding). Messages without an encoding field (from
+ * older participants) are read with the given default charset.
+ */
+public class ContentEncoding {
+
+	public static final String BASE64 = "base64";
+
+	// the same amount of bytes git looks at to decide whether content is binary
+	private static final int BINARY_CHECK_LENGTH = 8000;
+
+	/**
+	 * puts the content and its encoding into the message
+	 */
+	public static void put(JSONObject message, byte[] content, String charset) throws JSONException {
+		String text = decode(content, charset);
+		if (text != null) {
+			message.put("content", text);
+			message.put("encoding", charset);
+		}
+		else {
+			message.put("content", Base64.encodeBase64String(content));
+			message.put("encoding", BASE64);
+		}
+	}
+
+	/**
+	 * returns the bytes of the content in the message
+	 */
+	public static byte[] get(JSONObject message, String defaultCharset) throws JSONException {
+		String content = message.getString("content");
+		String encoding = message.optString("encoding", null);
+
+		if (BASE64.equals(encoding)) {
+			return Base64.decodeBase64(content);
+		}
+		return content.getBytes(getCharset(encoding != null ? encoding : defaultCharset));
+	}
+
+	public static boolean isText(JSONObject message) {
+		return !BASE64.equals(message.optString("encoding", null));
+	}
+
+	/**
+	 * returns the text for the content or null, if the content is binary or can't
+	 * be decoded with the charset without losing information
+	 */
+	public static String decode(byte[] content, String charset) {
+		int length = Math.min(content.length, BINARY_CHECK_LENGTH);
+		for (int i = 0; i < length; i++) {
+			if (content[i] == 0) {
+				return null;
+			}
+		}
+
+		try {
+			Charset decodingCharset = getCharset(charset);
+			CharsetDecoder decoder = decodingCharset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT);
+			String text = decoder.decode(ByteBuffer.wrap(content)).toString();
+
+			// stateful or ambiguous charsets don't always encode the text to the same bytes again
+			if (!isRoundTripSafe(decodingCharset) && !Arrays.equals(text.getBytes(decodingCharset), content)) {
+				return null;
+			}
+			return text;
+		} catch (CharacterCodingException e) {
+			return null;
+		}
+	}
+
+	protected static boolean isRoundTripSafe(Charset charset) {
+		String name = charset.name();
+		return name.equals("UTF-8") || name.equals("US-ASCII") || name.equals("ISO-8859-1");
+	}
+
+	public static Charset getCharset(String charset) {
+		try {
+			if (charset != null && Charset.isSupported(charset)) {
+				return Charset.forName(charset);
+			}
+		} catch (IllegalArgumentException e) {
+			// illegal charset name, use the default
+		}
+		return Charset.defaultCharset();
+	}
+
+}
@@ -1,17 +1,30 @@
 /*******************************************************************************
  * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
- * All rights reserved. This program and the accompanying materials are made 
- * available under the terms of the Eclipse Public License v1.0 
- * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution 
- * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html). 
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
  *
  * Contributors:
  *     Pivotal Software, Inc. - initial API and implementation
 *******************************************************************************/
 package org.eclipse.flux.core;
 
-import java.io.ByteArrayInputStream;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
@@ -28,26 +41,40 @@ import org.json.JSONObject;
  * @author Martin Lippert
  */
 public class DownloadProject {
-	
+
 	public interface CompletionCallback {
 		public void downloadComplete(IProject project);
 		public void downloadFailed();
+		public void downloadProgress(IProject project, int downloadedFiles, int totalFiles, long bytesPerSecond);
 	}
 
+	private static final String PROGRESS_RECORD = "download.progress";
+
 	private IMessagingConnector messagingConnector;
 
 	private String projectName;
 	private int callbackID;
 	private CompletionCallback completionCallback;
-	
+
 	private String username;
 	private IProject project;
-	
-	private AtomicInteger requestedFileCount = new AtomicInteger(0);
-	private AtomicInteger downloadedFileCount = new AtomicInteger(0);
+
+	private ResourceDownloader downloader;
+	private WorkspaceWriter workspaceWriter;
+	private BlobCache blobCache;
+	private Map<String, String> downloadedFiles;
+	private Writer progressRecord;
+	private AtomicBoolean finished = new AtomicBoolean(false);
+
+	private IgnoreRules ignoreRules = IgnoreRules.NONE;
+	private boolean sparse;
+	private List<JSONArray> pendingPages;
+	private boolean pendingLastPage;
+
+	private Set<String> requestedPages;
+	private volatile boolean listingComplete;
 
 	private CallbackIDAwareMessageHandler projectResponseHandler;
-	private CallbackIDAwareMessageHandler resourceResponseHandler;
 
 
 	public DownloadProject(IMessagingConnector messagingConnector, String projectName, String username) {
@@ -56,135 +83,374 @@ public class DownloadProject {
 		this.username = username;
 
 		this.callbackID = this.hashCode();
-		
+		this.downloadedFiles = new ConcurrentHashMap<String, String>();
+		this.requestedPages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.workspaceWriter = new WorkspaceWriter();
+		this.blobCache = Activator.getDefault() != null ? Activator.getDefault().getBlobCache() : null;
+
 		projectResponseHandler = new CallbackIDAwareMessageHandler("getProjectResponse", this.callbackID) {
 			@Override
 			public void handleMessage(String messageType, JSONObject message) {
 				getProjectResponse(message);
 			}
 		};
-		resourceResponseHandler = new CallbackIDAwareMessageHandler("getResourceResponse", this.callbackID) {
+
+		downloader = new ResourceDownloader(messagingConnector, username, projectName, callbackID, new ResourceDownloader.Listener() {
 			@Override
-			public void handleMessage(String messageType, JSONObject message) {
-				getResourceResponse(message);
+			public void resourceDownloaded(JSONObject resource) throws Exception {
+				getResourceResponse(resource);
 			}
-		};
+			@Override
+			public void resourceFailed(String resourcePath) {
+				Activator.logWarning("download of " + DownloadProject.this.projectName + "/" + resourcePath + " failed");
+				failed();
+			}
+			@Override
+			public void downloadProgress(int downloadedCount, int totalCount, long bytesPerSecond) {
+				completionCallback.downloadProgress(project, downloadedCount, totalCount, bytesPerSecond);
+			}
+			@Override
+			public void downloadFinished() {
+				// more pages of the project listing may still come in
+				if (listingComplete) {
+					completed();
+				}
+			}
+		});
+	}
+
+	/**
+	 * sets the max number of files that are requested at the same time
+	 */
+	public void setWindowSize(int windowSize) {
+		this.downloader.setWindowSize(windowSize);
+	}
+
+	/**
+	 * sets the time (in milliseconds) after which a file that didn't arrive is requested again
+	 */
+	public void setTimeout(long timeout) {
+		this.downloader.setTimeout(timeout);
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.downloader.setMaxRetries(maxRetries);
+	}
+
+	/**
+	 * in sparse mode only the folders and the files that describe the project (like .project
+	 * and .classpath) are downloaded before the download is complete, the contents of all other
+	 * files are fetched by the repository in the background once the project is connected
+	 */
+	public void setSparse(boolean sparse) {
+		this.sparse = sparse;
 	}
-	
+
 	public void run(CompletionCallback completionCallback) {
 		this.messagingConnector.addMessageHandler(projectResponseHandler);
-		this.messagingConnector.addMessageHandler(resourceResponseHandler);
 
 		this.completionCallback = completionCallback;
-		
+
 		IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
 		project = root.getProject(projectName);
 
 		try {
-			project.create(null);
-			project.open(null);
-		
-			JSONObject message = new JSONObject();
-			message.put("callback_id", this.callbackID);
-			message.put("username", this.username);
-			message.put("project", this.projectName);
-
-			messagingConnector.send("getProjectRequest", message);
+			// an interrupted download of this project continues where it stopped
+			if (!isInterrupted(project)) {
+				project.create(null);
+			}
+			if (!project.isOpen()) {
+				project.open(null);
+			}
+			openProgressRecord();
+
+			sendGetProjectRequest(null);
 		} catch (CoreException e1) {
 			e1.printStackTrace();
-			this.messagingConnector.removeMessageHandler(projectResponseHandler);
-			this.messagingConnector.removeMessageHandler(resourceResponseHandler);
-			this.completionCallback.downloadFailed();
+			failed();
 		} catch (JSONException e) {
 			e.printStackTrace();
-			this.messagingConnector.removeMessageHandler(projectResponseHandler);
-			this.messagingConnector.removeMessageHandler(resourceResponseHandler);
-			this.completionCallback.downloadFailed();
+			failed();
+		} catch (IOException e) {
+			e.printStackTrace();
+			failed();
+		}
+	}
+
+	/**
+	 * asks for the page of the project listing that follows the cursor (or the first page)
+	 */
+	protected void sendGetProjectRequest(String cursor) throws JSONException {
+		JSONObject message = new JSONObject();
+		message.put("callback_id", this.callbackID);
+		message.put("username", this.username);
+		message.put("project", this.projectName);
+		message.put("pageSize", Repository.PROJECT_PAGE_SIZE);
+		if (cursor != null) {
+			message.put("cursor", cursor);
 		}
+
+		messagingConnector.send("getProjectRequest", message);
 	}
-	
+
 	public void getProjectResponse(JSONObject response) {
 		try {
-			final String projectName = response.getString("project");
 			final String username = response.getString("username");
 			final JSONArray files = response.getJSONArray("files");
 
 			if (this.username.equals(username)) {
-				for (int i = 0; i < files.length(); i++) {
-					JSONObject resource = files.getJSONObject(i);
-	
-					String resourcePath = resource.getString("path");
-					long timestamp = resource.getLong("timestamp");
-	
-					String type = resource.optString("type");
-					
-					if (type.equals("folder")) {
-						IFolder folder = project.getFolder(new Path(resourcePath));
-						if (!folder.exists()) {
-							folder.create(true, true, null);
-						}
-						folder.setLocalTimeStamp(timestamp);
+				// the next page is requested before this one is processed, responses without cursor are the last page
+				String cursor = response.optString("cursor", null);
+				if (cursor != null && requestedPages.add(cursor)) {
+					sendGetProjectRequest(cursor);
+				}
+				boolean lastPage = cursor == null;
+
+				if (pendingPages != null) {
+					pendingPages.add(files);
+					pendingLastPage |= lastPage;
+					return;
+				}
+
+				// the ignore rules of the project are needed before the other files are looked at
+				String ignoreFileHash = getIgnoreFileHash(files);
+				if (ignoreFileHash != null) {
+					byte[] ignoreFile = blobCache != null ? blobCache.get(ignoreFileHash) : null;
+					if (isDownloaded(IgnoreRules.IGNORE_FILE, ignoreFileHash)) {
+						ignoreRules = ConnectedProject.readIgnoreRules(project);
 					}
-					else if (type.equals("file")) {
-						requestedFileCount.incrementAndGet();
+					else if (ignoreFile != null) {
+						ignoreRules = parseIgnoreRules(ignoreFile);
 					}
-				}
-				
-				for (int i = 0; i < files.length(); i++) {
-					JSONObject resource = files.getJSONObject(i);
-	
-					String resourcePath = resource.getString("path");
-					String type = resource.optString("type");
-					
-					if (type.equals("file")) {
-						JSONObject message = new JSONObject();
-						message.put("callback_id", callbackID);
-						message.put("username", this.username);
-						message.put("project", projectName);
-						message.put("resource", resourcePath);
-	
-						messagingConnector.send("getResourceRequest", message);
+					else {
+						pendingPages = new ArrayList<JSONArray>();
+						pendingPages.add(files);
+						pendingLastPage = lastPage;
+						downloader.add(IgnoreRules.IGNORE_FILE, null, null);
+						downloader.start();
+						downloader.fill();
+						return;
 					}
 				}
+
+				downloadFiles(files, lastPage);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
-			this.messagingConnector.removeMessageHandler(projectResponseHandler);
-			this.messagingConnector.removeMessageHandler(resourceResponseHandler);
-			this.completionCallback.downloadFailed();
+			failed();
 		}
 	}
-	
-	public void getResourceResponse(JSONObject response) {
-		try {
-			final String username = response.getString("username");
-			final String resourcePath = response.getString("resource");
-			final long timestamp = response.getLong("timestamp");
-			final String content = response.getString("content");
-			
-			if (this.username.equals(username)) {
-				IFile file = project.getFile(resourcePath);
-				if (!file.exists()) {
-					file.create(new ByteArrayInputStream(content.getBytes()), true, null);
+
+	/**
+	 * parses the content of the .fluxignore file with the charset the file gets in the project
+	 */
+	protected IgnoreRules parseIgnoreRules(byte[] content) throws CoreException {
+		return IgnoreRules.parse(new String(content, ContentEncoding.getCharset(project.getFile(IgnoreRules.IGNORE_FILE).getCharset())));
+	}
+
+	protected String getIgnoreFileHash(JSONArray files) throws JSONException {
+		for (int i = 0; i < files.length(); i++) {
+			JSONObject resource = files.getJSONObject(i);
+			if (IgnoreRules.IGNORE_FILE.equals(resource.getString("path")) && "file".equals(resource.optString("type"))) {
+				return resource.optString("hash");
+			}
+		}
+		return null;
+	}
+
+	protected void downloadFiles(JSONArray files, boolean lastPage) throws Exception {
+		for (int i = 0; i < files.length(); i++) {
+			JSONObject resource = files.getJSONObject(i);
+
+			String resourcePath = resource.getString("path");
+			long timestamp = resource.getLong("timestamp");
+
+			String type = resource.optString("type");
+
+			if (ignoreRules.isIgnored(resourcePath, type.equals("folder"))) {
+				continue;
+			}
+
+			if (type.equals("folder")) {
+				IFolder folder = project.getFolder(new Path(resourcePath));
+				if (!folder.exists()) {
+					folder.create(true, true, null);
+				}
+				folder.setLocalTimeStamp(timestamp);
+			}
+			else if (type.equals("file")) {
+				if (sparse && !ResourceDownloader.isProjectDescription(resourcePath)) {
+					continue;
 				}
-				else {
-					file.setContents(new ByteArrayInputStream(content.getBytes()), true, false, null);
+
+				String hash = resource.optString("hash");
+				if (!isDownloaded(resourcePath, hash) && !storeFromCache(resourcePath, timestamp, hash)) {
+					downloader.add(resourcePath, null, null, ResourceDownloader.getPriority(resourcePath));
 				}
-				file.setLocalTimeStamp(timestamp);
-				
-				int downloaded = this.downloadedFileCount.incrementAndGet();
-				if (downloaded == this.requestedFileCount.get()) {
-					this.messagingConnector.removeMessageHandler(projectResponseHandler);
-					this.messagingConnector.removeMessageHandler(resourceResponseHandler);
-					this.completionCallback.downloadComplete(project);
+			}
+		}
+
+		downloader.start();
+		downloader.fill();
+
+		if (lastPage) {
+			listingComplete = true;
+		}
+		if (listingComplete && downloader.isFinished()) {
+			completed();
+		}
+	}
+
+	public void getResourceResponse(JSONObject response) throws Exception {
+		final String username = response.getString("username");
+		final String resourcePath = response.getString("resource");
+		final long timestamp = response.getLong("timestamp");
+		final String hash = response.optString("hash");
+
+		if (this.username.equals(username)) {
+			byte[] bytes = ContentEncoding.get(response, project.getFile(resourcePath).getCharset());
+			if (blobCache != null) {
+				blobCache.put(hash, bytes);
+			}
+			storeResource(resourcePath, timestamp, hash, bytes);
+
+			if (IgnoreRules.IGNORE_FILE.equals(resourcePath) && pendingPages != null) {
+				List<JSONArray> pages = pendingPages;
+				pendingPages = null;
+
+				ignoreRules = parseIgnoreRules(bytes);
+				for (int i = 0; i < pages.size(); i++) {
+					downloadFiles(pages.get(i), pendingLastPage && i == pages.size() - 1);
 				}
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * stores the file from the local blob cache, returns false if the content isn't available locally
+	 */
+	protected boolean storeFromCache(String resourcePath, long timestamp, String hash) {
+		if (blobCache == null) {
+			return false;
+		}
+
+		byte[] content = blobCache.get(hash);
+		if (content == null) {
+			return false;
+		}
+
+		storeResource(resourcePath, timestamp, hash, content);
+		return true;
+	}
+
+	protected void storeResource(final String resourcePath, long timestamp, final String hash, byte[] content) {
+		workspaceWriter.write(project.getFile(resourcePath), content, timestamp, new WorkspaceWriter.Callback() {
+			@Override
+			public void written(IFile file) {
+				try {
+					recordDownloaded(resourcePath, hash);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			@Override
+			public void writeFailed(IFile file, CoreException e) {
+				e.printStackTrace();
+				failed();
+			}
+		});
+	}
+
+	protected boolean isDownloaded(String resourcePath, String hash) {
+		String downloadedHash = downloadedFiles.get(resourcePath);
+		return downloadedHash != null && downloadedHash.length() > 0 && downloadedHash.equals(hash) && project.getFile(resourcePath).exists();
+	}
+
+	protected File getProgressRecordFile() {
+		return getProgressRecordFile(project);
+	}
+
+	protected static File getProgressRecordFile(IProject project) {
+		return project.getWorkingLocation(Activator.PLUGIN_ID).append(PROGRESS_RECORD).toFile();
+	}
+
+	/**
+	 * returns true if the project was created by a download that didn't finish,
+	 * running a new download for it continues where the last one stopped
+	 */
+	public static boolean isInterrupted(IProject project) {
+		return project.exists() && project.getLocation() != null && getProgressRecordFile(project).exists();
+	}
+
+	/**
+	 * reads the files that got downloaded by an earlier (interrupted) run and opens the record
+	 * for this run, every line of the record contains the hash and the path of a downloaded file
+	 */
+	protected void openProgressRecord() throws IOException {
+		File recordFile = getProgressRecordFile();
+		if (recordFile.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(recordFile), "UTF-8"));
+			try {
+				String line = reader.readLine();
+				while (line != null) {
+					int separator = line.indexOf(' ');
+					if (separator > 0) {
+						downloadedFiles.put(line.substring(separator + 1), line.substring(0, separator));
+					}
+					line = reader.readLine();
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+
+		this.progressRecord = new OutputStreamWriter(new FileOutputStream(recordFile, true), "UTF-8");
+	}
+
+	protected void recordDownloaded(String resourcePath, String hash) throws IOException {
+		if (hash != null && hash.length() > 0) {
+			downloadedFiles.put(resourcePath, hash);
+			synchronized (progressRecord) {
+				progressRecord.write(hash + " " + resourcePath + "\n");
+				progressRecord.flush();
+			}
+		}
+	}
+
+	protected void closeProgressRecord(boolean delete) {
+		if (this.progressRecord != null) {
+			try {
+				this.progressRecord.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			if (delete) {
+				getProgressRecordFile().delete();
+			}
+		}
+	}
+
+	protected void completed() {
+		// the download is complete once the last files are written to the workspace
+		this.workspaceWriter.flush();
+
+		if (finished.compareAndSet(false, true)) {
+			this.messagingConnector.removeMessageHandler(projectResponseHandler);
+			this.downloader.stop();
+			closeProgressRecord(true);
+			this.completionCallback.downloadComplete(project);
+		}
+	}
+
+	protected void failed() {
+		if (finished.compareAndSet(false, true)) {
 			this.messagingConnector.removeMessageHandler(projectResponseHandler);
-			this.messagingConnector.removeMessageHandler(resourceResponseHandler);
+			this.downloader.stop();
+			closeProgressRecord(false);
 			this.completionCallback.downloadFailed();
 		}
 	}
-	
+
 }
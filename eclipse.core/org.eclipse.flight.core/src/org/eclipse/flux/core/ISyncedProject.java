@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+/**
+ * The index of a synced project: the timestamps and hashes of its files and folders
+ * (by project relative path), as used by the {@link AbstractRepository}.
+ */
+public interface ISyncedProject {
+
+	/**
+	 * the hash of folders
+	 */
+	public static final String FOLDER_HASH = "0";
+
+	public String getName();
+
+	public void setTimestamp(String resourcePath, long newTimestamp);
+	public long getTimestamp(String resourcePath);
+
+	public void setHash(String resourcePath, String hash);
+	public String getHash(String resourcePath);
+
+	/**
+	 * remembers the quick hash of the file content that was hashed last, together with its size
+	 * and local timestamp (see {@link Hashing})
+	 */
+	public void setQuickHash(String resourcePath, long quickHash, long size, long localTimestamp);
+
+	/**
+	 * returns true if the content has the same quick hash, size and local timestamp as the content
+	 * that was hashed last (so running SHA-1 again is not needed)
+	 */
+	public boolean hasQuickHash(String resourcePath, long quickHash, long size, long localTimestamp);
+
+	/**
+	 * returns the paths of the resources in sorted order, starting after the given path
+	 * (or at the beginning, if the path is null)
+	 */
+	public Iterable<String> getResourcePaths(String after);
+
+	public boolean containsResource(String resourcePath);
+	public void removeResource(String resourcePath);
+
+	public boolean isIgnored(String resourcePath, boolean folder);
+
+}
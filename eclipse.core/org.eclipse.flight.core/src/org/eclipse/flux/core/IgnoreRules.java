@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The rules of a .fluxignore file. The file uses the syntax of .gitignore files:
+ * one pattern per line, # starts a comment, ! negates a pattern, a trailing /
+ * matches folders only, a leading / (or a / in the middle) anchors the pattern at
+ * the project root, * and ? match within a path segment and ** matches across segments.
+ *
+ * Everything inside an ignored folder is ignored, the decisions for folders are cached.
+ */
+public class IgnoreRules {
+
+	public static final String IGNORE_FILE = ".fluxignore";
+
+	public static final IgnoreRules NONE = new IgnoreRules(new ArrayList<Rule>());
+
+	private final List<Rule> rules;
+	private final Map<String, Boolean> folderDecisions;
+
+	protected IgnoreRules(List<Rule> rules) {
+		this.rules = rules;
+		this.folderDecisions = new ConcurrentHashMap<String, Boolean>();
+	}
+
+	public static IgnoreRules read(InputStream in, String charset) throws IOException {
+		try {
+			return parse(IOUtils.toString(in, charset));
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	public static IgnoreRules parse(String content) {
+		List<Rule> rules = new ArrayList<Rule>();
+
+		for (String line : content.split("\r\n|\r|\n")) {
+			String pattern = trimTrailingSpaces(line);
+			if (pattern.length() == 0 || pattern.startsWith("#")) {
+				continue;
+			}
+
+			boolean negated = false;
+			if (pattern.startsWith("!")) {
+				negated = true;
+				pattern = pattern.substring(1);
+			}
+			else if (pattern.startsWith("\\#") || pattern.startsWith("\\!")) {
+				pattern = pattern.substring(1);
+			}
+
+			boolean folderOnly = false;
+			if (pattern.endsWith("/")) {
+				folderOnly = true;
+				pattern = pattern.substring(0, pattern.length() - 1);
+			}
+
+			boolean anchored = pattern.indexOf('/') >= 0;
+			if (pattern.startsWith("/")) {
+				pattern = pattern.substring(1);
+			}
+
+			if (pattern.length() > 0) {
+				rules.add(new Rule(compile(pattern, anchored), negated, folderOnly));
+			}
+		}
+
+		return rules.isEmpty() ? NONE : new IgnoreRules(rules);
+	}
+
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	/**
+	 * returns true if the resource with the given project relative path is ignored
+	 */
+	public boolean isIgnored(String path, boolean folder) {
+		if (rules.isEmpty() || path.length() == 0) {
+			return false;
+		}
+
+		if (folder) {
+			Boolean decision = folderDecisions.get(path);
+			if (decision == null) {
+				decision = isParentIgnored(path) || matches(path, true);
+				folderDecisions.put(path, decision);
+			}
+			return decision;
+		}
+		else {
+			return isParentIgnored(path) || matches(path, false);
+		}
+	}
+
+	protected boolean isParentIgnored(String path) {
+		int separator = path.lastIndexOf('/');
+		return separator > 0 && isIgnored(path.substring(0, separator), true);
+	}
+
+	protected boolean matches(String path, boolean folder) {
+		boolean ignored = false;
+		for (Rule rule : rules) {
+			if (ignored == rule.negated && (folder || !rule.folderOnly) && rule.pattern.matcher(path).matches()) {
+				ignored = !rule.negated;
+			}
+		}
+		return ignored;
+	}
+
+	protected static Pattern compile(String pattern, boolean anchored) {
+		StringBuilder regex = new StringBuilder();
+		if (!anchored) {
+			regex.append("(?:.*/)?");
+		}
+
+		int i = 0;
+		while (i < pattern.length()) {
+			char c = pattern.charAt(i);
+			if (c == '*') {
+				if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+					boolean slashFollows = i + 2 < pattern.length() && pattern.charAt(i + 2) == '/';
+					if (slashFollows) {
+						// **/ matches zero or more folders
+						regex.append("(?:.*/)?");
+						i += 3;
+					}
+					else {
+						regex.append(".*");
+						i += 2;
+					}
+					continue;
+				}
+				regex.append("[^/]*");
+			}
+			else if (c == '?') {
+				regex.append("[^/]");
+			}
+			else if (c == '[') {
+				int end = pattern.indexOf(']', i + 1);
+				if (end > i + 1) {
+					String set = pattern.substring(i + 1, end);
+					if (set.startsWith("!")) {
+						set = "^" + set.substring(1);
+					}
+					regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+					i = end + 1;
+					continue;
+				}
+				regex.append("\\[");
+			}
+			else if (c == '\\' && i + 1 < pattern.length()) {
+				regex.append(Pattern.quote(String.valueOf(pattern.charAt(i + 1))));
+				i += 2;
+				continue;
+			}
+			else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+			i++;
+		}
+
+		return Pattern.compile(regex.toString());
+	}
+
+	protected static String trimTrailingSpaces(String line) {
+		int end = line.length();
+		while (end > 0 && line.charAt(end - 1) == ' ' && !(end > 1 && line.charAt(end - 2) == '\\')) {
+			end--;
+		}
+		return line.substring(0, end);
+	}
+
+	private static class Rule {
+		private final Pattern pattern;
+		private final boolean negated;
+		private final boolean folderOnly;
+
+		public Rule(Pattern pattern, boolean negated, boolean folderOnly) {
+			this.pattern = pattern;
+			this.negated = negated;
+			this.folderOnly = folderOnly;
+		}
+	}
+
+}
@@ -0,0 +1,421 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The content of a resource that is edited live, kept as a sequence of text chunks in a
+ * balanced tree (a treap, ordered by the position of the chunks in the text). Replacing
+ * text costs O(log n) plus the length of the new text, the position of line starts is
+ * found in O(log n) as well.
+ *
+ * The tree is never modified, an edit creates new nodes along its path only. A snapshot
+ * of the document is therefore just its current root and stays valid while the document
+ * is edited further, it can be read without any locking.
+ *
+ * Every node also keeps a polynomial hash of its subtree, so the content hash of the
+ * document is maintained with every edit at no extra cost. SHA-1 (the hash used in the
+ * messages) is computed only when it is asked for and remembered together with the
+ * polynomial hash, so comparing the document with a known SHA-1 hash (like the one of
+ * the save point) doesn't need to look at the whole content again.
+ */
+public class LiveDocument {
+
+	/**
+	 * max length of the text of a single chunk, small edits are merged into the chunk
+	 * in front of them up to this length
+	 */
+	private static final int MAX_CHUNK_LENGTH = 512;
+
+	/**
+	 * number of SHA-1 hashes that are remembered for the contents a document had
+	 */
+	private static final int MAX_KNOWN_HASHES = 16;
+
+	private static final long MOD = (1L << 61) - 1;
+	private static final long BASE = 256 + new Random().nextInt(1 << 30);
+
+	private static final Random PRIORITIES = new Random();
+
+	private final Node root;
+	private final KnownHashes knownHashes;
+
+	public LiveDocument(String content) {
+		this(build(content), new KnownHashes());
+	}
+
+	private LiveDocument(Node root, KnownHashes knownHashes) {
+		this.root = root;
+		this.knownHashes = knownHashes;
+	}
+
+	public int getLength() {
+		return length(root);
+	}
+
+	public int getNumberOfLines() {
+		return lineBreaks(root) + 1;
+	}
+
+	/**
+	 * returns the document with the text between offset and offset + removedCharCount
+	 * replaced by the new text, this document stays as it is
+	 */
+	public LiveDocument replace(int offset, int removedCharCount, String newText) {
+		if (offset < 0 || removedCharCount < 0 || offset + removedCharCount > getLength()) {
+			throw new IndexOutOfBoundsException("replace " + offset + "/" + removedCharCount + " in document of length " + getLength());
+		}
+
+		Node[] head = split(root, offset);
+		Node[] tail = split(head[1], removedCharCount);
+		Node left = head[0];
+		String text = newText != null ? newText : "";
+
+		// typing adds single characters, those go into the chunk in front instead of a chunk on their own
+		Node last = last(left);
+		if (last != null && text.length() > 0 && last.text.length() + text.length() <= MAX_CHUNK_LENGTH) {
+			left = split(left, length(left) - last.text.length())[0];
+			text = last.text + text;
+		}
+
+		return new LiveDocument(merge(merge(left, build(text)), tail[1]), knownHashes);
+	}
+
+	/**
+	 * the content of the document (this costs O(n), use the offset based methods where possible)
+	 */
+	public String getText() {
+		StringBuilder text = new StringBuilder(getLength());
+		append(root, text);
+		return text.toString();
+	}
+
+	public String getText(int offset, int length) {
+		Node[] head = split(root, offset);
+		Node[] range = split(head[1], length);
+
+		StringBuilder text = new StringBuilder(length);
+		append(range[0], text);
+		return text.toString();
+	}
+
+	/**
+	 * the SHA-1 hash of the content, computed only if this content wasn't hashed before
+	 */
+	public String getHash() {
+		long contentHash = getContentHash();
+		String result = knownHashes.get(contentHash);
+		if (result == null) {
+			result = Hashing.sha1Hex(getText());
+			knownHashes.put(contentHash, result);
+		}
+		return result;
+	}
+
+	/**
+	 * compares the content with the given SHA-1 hash, without computing the SHA-1 hash
+	 * of the content if the hash belongs to a different content that this document had
+	 */
+	public boolean hasHash(String sha1) {
+		if (sha1 == null) {
+			return false;
+		}
+
+		long contentHash = getContentHash();
+		String known = knownHashes.get(contentHash);
+		if (known != null) {
+			return known.equals(sha1);
+		}
+		else if (knownHashes.containsValue(sha1)) {
+			// the content with that hash had a different polynomial hash, so it is a different content
+			return false;
+		}
+		return getHash().equals(sha1);
+	}
+
+	/**
+	 * the polynomial hash of the content (together with its length), which is kept up to date
+	 * with every edit: equal contents have the same hash, different contents almost never
+	 */
+	public long getContentHash() {
+		return root != null ? root.hash ^ ((long) root.length << 3) : 0;
+	}
+
+	/**
+	 * returns the (zero based) number of the line that contains the offset
+	 */
+	public int getLineOfOffset(int offset) {
+		int line = 0;
+		Node node = root;
+		while (node != null) {
+			int leftLength = length(node.left);
+			if (offset <= leftLength) {
+				node = node.left;
+			}
+			else if (offset < leftLength + node.text.length()) {
+				line += lineBreaks(node.left);
+				for (int i = 0; i < offset - leftLength; i++) {
+					if (node.text.charAt(i) == '\n') {
+						line++;
+					}
+				}
+				return line;
+			}
+			else {
+				line += lineBreaks(node.left) + node.textLineBreaks;
+				offset -= leftLength + node.text.length();
+				node = node.right;
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * returns the offset at which the (zero based) line starts
+	 */
+	public int getLineOffset(int line) {
+		if (line < 0 || line > lineBreaks(root)) {
+			throw new IndexOutOfBoundsException("line " + line + " in document with " + getNumberOfLines() + " lines");
+		}
+		if (line == 0) {
+			return 0;
+		}
+
+		// the position right behind the line-th line break
+		int offset = 0;
+		Node node = root;
+		while (node != null) {
+			int leftBreaks = lineBreaks(node.left);
+			int ownBreaks = node.textLineBreaks;
+			if (line <= leftBreaks) {
+				node = node.left;
+			}
+			else if (line <= leftBreaks + ownBreaks) {
+				offset += length(node.left);
+				int remaining = line - leftBreaks;
+				for (int i = 0; i < node.text.length(); i++) {
+					if (node.text.charAt(i) == '\n' && --remaining == 0) {
+						return offset + i + 1;
+					}
+				}
+			}
+			else {
+				line -= leftBreaks + ownBreaks;
+				offset += length(node.left) + node.text.length();
+				node = node.right;
+			}
+		}
+		return offset;
+	}
+
+	protected static Node build(String text) {
+		Node result = null;
+		for (int start = 0; start < text.length(); start += MAX_CHUNK_LENGTH) {
+			result = merge(result, new Node(text.substring(start, Math.min(text.length(), start + MAX_CHUNK_LENGTH)), PRIORITIES.nextInt(), null, null));
+		}
+		return result;
+	}
+
+	/**
+	 * splits the tree into the first offset characters and the rest, a chunk that
+	 * contains the offset is split into two
+	 */
+	protected static Node[] split(Node node, int offset) {
+		if (node == null) {
+			return new Node[] {null, null};
+		}
+
+		int leftLength = length(node.left);
+		if (offset <= leftLength) {
+			Node[] parts = split(node.left, offset);
+			return new Node[] {parts[0], node.with(parts[1], node.right)};
+		}
+		else if (offset >= leftLength + node.text.length()) {
+			Node[] parts = split(node.right, offset - leftLength - node.text.length());
+			return new Node[] {node.with(node.left, parts[0]), parts[1]};
+		}
+		else {
+			int cut = offset - leftLength;
+			Node head = new Node(node.text.substring(0, cut), node.priority, node.left, null);
+			Node tail = new Node(node.text.substring(cut), PRIORITIES.nextInt(), null, null);
+			return new Node[] {head, merge(tail, node.right)};
+		}
+	}
+
+	protected static Node merge(Node left, Node right) {
+		if (left == null) {
+			return right;
+		}
+		else if (right == null) {
+			return left;
+		}
+		else if (left.priority > right.priority) {
+			return left.with(left.left, merge(left.right, right));
+		}
+		else {
+			return right.with(merge(left, right.left), right.right);
+		}
+	}
+
+	protected static Node last(Node node) {
+		while (node != null && node.right != null) {
+			node = node.right;
+		}
+		return node;
+	}
+
+	protected static void append(Node node, StringBuilder text) {
+		while (node != null) {
+			append(node.left, text);
+			text.append(node.text);
+			node = node.right;
+		}
+	}
+
+	protected static int length(Node node) {
+		return node != null ? node.length : 0;
+	}
+
+	protected static int lineBreaks(Node node) {
+		return node != null ? node.lineBreaks : 0;
+	}
+
+	protected static long hash(String text) {
+		long result = 0;
+		for (int i = 0; i < text.length(); i++) {
+			result = add(multiply(result, BASE), text.charAt(i) + 1);
+		}
+		return result;
+	}
+
+	protected static long power(int exponent) {
+		long result = 1;
+		long factor = BASE;
+		while (exponent > 0) {
+			if ((exponent & 1) != 0) {
+				result = multiply(result, factor);
+			}
+			factor = multiply(factor, factor);
+			exponent >>= 1;
+		}
+		return result;
+	}
+
+	protected static long add(long a, long b) {
+		long result = a + b;
+		return result >= MOD ? result - MOD : result;
+	}
+
+	/**
+	 * a * b modulo 2^61 - 1, without 128 bit arithmetic
+	 */
+	protected static long multiply(long a, long b) {
+		long aHigh = a >>> 31;
+		long aLow = a & 0x7FFFFFFFL;
+		long bHigh = b >>> 31;
+		long bLow = b & 0x7FFFFFFFL;
+
+		long middle = aLow * bHigh + aHigh * bLow;
+		long result = (aHigh * bHigh << 1) + (middle >>> 30) + ((middle & 0x3FFFFFFFL) << 31) + aLow * bLow;
+
+		result = (result >>> 61) + (result & MOD);
+		return result >= MOD ? result - MOD : result;
+	}
+
+	protected static int countLineBreaks(String text) {
+		int count = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * a chunk of text in the tree, with the length, number of line breaks and polynomial
+	 * hash of its subtree (hash = sum of char * BASE^(number of chars behind it))
+	 */
+	protected static class Node {
+
+		private final String text;
+		private final int priority;
+		private final Node left;
+		private final Node right;
+		private final int textLineBreaks;
+		private final long textHash;
+		private final long textPower;
+		private final int length;
+		private final int lineBreaks;
+		private final long hash;
+		private final long power;
+
+		public Node(String text, int priority, Node left, Node right) {
+			this(text, countLineBreaks(text), LiveDocument.hash(text), LiveDocument.power(text.length()), priority, left, right);
+		}
+
+		private Node(String text, int textLineBreaks, long textHash, long textPower, int priority, Node left, Node right) {
+			this.text = text;
+			this.textLineBreaks = textLineBreaks;
+			this.textHash = textHash;
+			this.textPower = textPower;
+			this.priority = priority;
+			this.left = left;
+			this.right = right;
+			this.length = length(left) + text.length() + length(right);
+			this.lineBreaks = lineBreaks(left) + textLineBreaks + lineBreaks(right);
+
+			long leftHash = left != null ? left.hash : 0;
+			long rightHash = right != null ? right.hash : 0;
+			long rightPower = right != null ? right.power : 1;
+			this.hash = add(multiply(add(multiply(leftHash, textPower), textHash), rightPower), rightHash);
+			this.power = multiply(multiply(left != null ? left.power : 1, textPower), rightPower);
+		}
+
+		public Node with(Node newLeft, Node newRight) {
+			if (newLeft == left && newRight == right) {
+				return this;
+			}
+			return new Node(text, textLineBreaks, textHash, textPower, priority, newLeft, newRight);
+		}
+	}
+
+	/**
+	 * the SHA-1 hashes of the (last few) contents of a document and the documents derived from it,
+	 * by the polynomial hash of the content
+	 */
+	protected static class KnownHashes {
+
+		private final Map<Long, String> hashes = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+				return size() > MAX_KNOWN_HASHES;
+			}
+		};
+
+		public synchronized String get(long contentHash) {
+			return hashes.get(contentHash);
+		}
+
+		public synchronized void put(long contentHash, String sha1) {
+			hashes.put(contentHash, sha1);
+		}
+
+		public synchronized boolean containsValue(String sha1) {
+			return hashes.containsValue(sha1);
+		}
+	}
+
+}
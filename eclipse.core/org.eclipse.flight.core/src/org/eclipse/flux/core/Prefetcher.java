@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+
+/**
+ * Fetches the resources that are likely needed next when a resource gets opened in a
+ * project that is still being downloaded: the types that a Java file imports, the
+ * resources in the packages it imports with a wildcard and the other resources in the
+ * same folder. Those resources are not downloaded on their own, they are moved up in
+ * the queue of the project download.
+ *
+ * The number of prefetched resources is bounded, the prefetch for a resource can be
+ * cancelled (e.g. when the editor gets closed), its resources go back to their old queue.
+ */
+public class Prefetcher {
+
+	/**
+	 * max number of resources that are prefetched for a single opened resource
+	 */
+	public static final int MAX_CANDIDATES = 50;
+
+	/**
+	 * max number of prefetched resources of all opened resources, the oldest prefetches
+	 * are cancelled when there are more
+	 */
+	public static final int MAX_PREFETCHED = 200;
+
+	private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+	private static final Pattern IMPORT = Pattern.compile("^\\s*import\\s+(static\\s+)?([\\w.]+?)(\\.\\*)?\\s*;", Pattern.MULTILINE);
+
+	private final Map<String, Prefetch> prefetches;
+	private int prefetchedCount;
+
+	public Prefetcher() {
+		this.prefetches = new LinkedHashMap<String, Prefetch>();
+	}
+
+	/**
+	 * moves the resources that are likely needed together with the given resource to the
+	 * front of the download
+	 */
+	public void prefetch(ResourceDownloader downloader, IProject project, String resourcePath) {
+		// the file is read before the prefetcher gets locked
+		String content = readJavaFile(project, resourcePath);
+
+		synchronized (this) {
+			String key = project.getName() + "/" + resourcePath;
+			cancel(key);
+
+			Map<String, Integer> prefetched = new LinkedHashMap<String, Integer>();
+			for (String candidate : getCandidates(downloader, resourcePath, content)) {
+				if (prefetched.size() >= MAX_CANDIDATES) {
+					break;
+				}
+				if (!candidate.equals(resourcePath)) {
+					int priority = downloader.requeue(candidate, ResourceDownloader.PRIORITY_HIGH);
+					if (priority >= 0) {
+						prefetched.put(candidate, priority);
+					}
+				}
+			}
+
+			if (!prefetched.isEmpty()) {
+				prefetches.put(key, new Prefetch(downloader, prefetched));
+				prefetchedCount += prefetched.size();
+
+				while (prefetchedCount > MAX_PREFETCHED && prefetches.size() > 1) {
+					cancel(prefetches.keySet().iterator().next());
+				}
+
+				downloader.fill();
+			}
+		}
+	}
+
+	/**
+	 * moves the resources that are not downloaded yet back to their old queue
+	 */
+	public synchronized void cancel(String projectName, String resourcePath) {
+		cancel(projectName + "/" + resourcePath);
+	}
+
+	protected void cancel(String key) {
+		Prefetch prefetch = prefetches.remove(key);
+		if (prefetch == null) {
+			return;
+		}
+
+		prefetchedCount -= prefetch.resources.size();
+		for (Map.Entry<String, Integer> resource : prefetch.resources.entrySet()) {
+			prefetch.downloader.restore(resource.getKey(), ResourceDownloader.PRIORITY_HIGH, resource.getValue());
+		}
+	}
+
+	/**
+	 * returns the content of the Java file or null, if the resource is not a Java file
+	 * (or not there yet)
+	 */
+	protected String readJavaFile(IProject project, String resourcePath) {
+		IFile file = project.getFile(resourcePath);
+		if (resourcePath.endsWith(".java") && file.exists()) {
+			try {
+				return IOUtils.toString(file.getContents(), file.getCharset());
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * returns the candidates in the order of their likelihood: the imported types first,
+	 * the resources of packages that are imported with a wildcard next and the other
+	 * resources in the same folder last
+	 */
+	protected List<String> getCandidates(ResourceDownloader downloader, String resourcePath, String content) {
+		Set<String> candidates = new LinkedHashSet<String>();
+
+		int separator = resourcePath.lastIndexOf('/');
+		String folderPath = separator > 0 ? resourcePath.substring(0, separator) : "";
+
+		if (content != null) {
+			String sourceFolder = getSourceFolder(resourcePath, content);
+
+			List<String> wildcardImports = new ArrayList<String>();
+			for (String importedPath : getImports(content, wildcardImports)) {
+				candidates.add(sourceFolder + importedPath);
+			}
+			for (String importedFolder : wildcardImports) {
+				candidates.addAll(downloader.getQueued(sourceFolder + importedFolder, MAX_CANDIDATES));
+			}
+		}
+
+		candidates.addAll(downloader.getQueued(folderPath, MAX_CANDIDATES));
+		return new ArrayList<String>(candidates);
+	}
+
+	/**
+	 * returns the path of the source folder (with a trailing /) of the Java file, based on its package
+	 */
+	protected static String getSourceFolder(String resourcePath, String content) {
+		int separator = resourcePath.lastIndexOf('/');
+		String folderPath = separator > 0 ? resourcePath.substring(0, separator + 1) : "";
+
+		Matcher matcher = PACKAGE.matcher(getHeader(content));
+		if (matcher.find()) {
+			String packagePath = matcher.group(1).replace('.', '/') + "/";
+			if (folderPath.endsWith(packagePath)) {
+				return folderPath.substring(0, folderPath.length() - packagePath.length());
+			}
+		}
+		return folderPath;
+	}
+
+	/**
+	 * returns the source folder relative paths of the files of the imported types, the folders
+	 * of wildcard imports are added to the given list. Imports of nested types (and static
+	 * imports) result in candidates for every possible enclosing type.
+	 */
+	protected static List<String> getImports(String content, List<String> wildcardImports) {
+		List<String> result = new ArrayList<String>();
+
+		Matcher matcher = IMPORT.matcher(getHeader(content));
+		while (matcher.find()) {
+			boolean isStatic = matcher.group(1) != null;
+			boolean wildcard = matcher.group(3) != null;
+			String[] segments = matcher.group(2).split("\\.");
+
+			if (wildcard && !isStatic) {
+				wildcardImports.add(matcher.group(2).replace('.', '/'));
+				continue;
+			}
+
+			int last = isStatic && !wildcard ? segments.length - 1 : segments.length;
+			for (int end = last; end > 0; end--) {
+				if (!Character.isUpperCase(segments[end - 1].charAt(0))) {
+					break;
+				}
+
+				StringBuilder path = new StringBuilder();
+				for (int i = 0; i < end; i++) {
+					path.append(segments[i]).append(i < end - 1 ? "/" : ".java");
+				}
+				result.add(path.toString());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * the part of the Java file in front of the first type declaration
+	 */
+	protected static String getHeader(String content) {
+		int body = content.indexOf('{');
+		return body >= 0 ? content.substring(0, body) : content;
+	}
+
+	private static class Prefetch {
+		private final ResourceDownloader downloader;
+		private final Map<String, Integer> resources;
+
+		public Prefetch(ResourceDownloader downloader, Map<String, Integer> resources) {
+			this.downloader = downloader;
+			this.resources = resources;
+		}
+	}
+
+}
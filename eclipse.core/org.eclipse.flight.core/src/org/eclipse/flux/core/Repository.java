@@ -10,17 +10,17 @@
 *******************************************************************************/
 package org.eclipse.flux.core;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.ConcurrentMap;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
-import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IMarker;
@@ -28,8 +28,9 @@ import org.eclipse.core.resources.IMarkerDelta;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDelta;
-import org.eclipse.core.resources.IResourceVisitor;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.flux.core.internal.ChangeDebouncer;
+import org.eclipse.flux.core.internal.MarkerCache;
 import org.eclipse.jdt.core.IClassFile;
 import org.eclipse.jdt.core.IJavaProject;
 import org.eclipse.jdt.core.IType;
@@ -40,430 +41,228 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
+ * The repository of the workspace: syncs the connected workspace projects, the sync
+ * protocol itself is implemented by the {@link AbstractRepository}.
+ *
  * @author Martin Lippert
  */
-public class Repository {
-
-	private String username;
-	private IMessagingConnector messagingConnector;
+public class Repository extends AbstractRepository<ConnectedProject> {
 
-	private ConcurrentMap<String, ConnectedProject> syncedProjects;
+	private Set<String> connectingProjects;
 	private Collection<IRepositoryListener> repositoryListeners;
-	
-	private static int GET_PROJECT_CALLBACK = "Repository - getProjectCallback".hashCode();
-	private static int GET_RESOURCE_CALLBACK = "Repository - getResourceCallback".hashCode();
+
+	private WorkspaceWriter workspaceWriter;
+
+	private ChangeDebouncer<IResource> resourceChanges;
+	private ChangeDebouncer<String> metadataChanges;
+	private Map<String, Map<IResource, MarkerChanges>> pendingMarkerChanges;
+	private MarkerCache markerCache;
+	private Prefetcher prefetcher;
+	private LiveEditCoordinator liveEditCoordinator;
 
 	public Repository(IMessagingConnector messagingConnector, String user) {
-		this.username = user;
-		this.messagingConnector = messagingConnector;
+		this(messagingConnector, user, null);
+	}
 
-		this.syncedProjects = new ConcurrentHashMap<String, ConnectedProject>();
+	public Repository(IMessagingConnector messagingConnector, String user, BlobCache blobCache) {
+		super(messagingConnector, user, blobCache);
+
+		this.connectingProjects = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 		this.repositoryListeners = new ConcurrentLinkedDeque<>();
-		
-		this.messagingConnector.addConnectionListener(new IConnectionListener() {
-			@Override
-			public void connected() {
-				connect();
-			}
-			@Override
-			public void disconnected() {
-			}
-		});
-		
-		IMessageHandler resourceChangedHandler = new AbstractMessageHandler("resourceChanged") {
-			@Override
-			public void handleMessage(String messageType, JSONObject message) {
-				updateResource(message);
-			}
-		};
-		this.messagingConnector.addMessageHandler(resourceChangedHandler);
-		
-		IMessageHandler resourceCreatedHandler = new AbstractMessageHandler("resourceCreated") {
-			@Override
-			public void handleMessage(String messageType, JSONObject message) {
-				createResource(message);
-			}
-		};
-		this.messagingConnector.addMessageHandler(resourceCreatedHandler);
-		
-		IMessageHandler resourceDeletedHandler = new AbstractMessageHandler("resourceDeleted") {
-			@Override
-			public void handleMessage(String messageType, JSONObject message) {
-				deleteResource(message);
-			}
-		};
-		this.messagingConnector.addMessageHandler(resourceDeletedHandler);
+		this.workspaceWriter = new WorkspaceWriter();
 
-		IMessageHandler getProjectsRequestHandler = new AbstractMessageHandler("getProjectsRequest") {
-			@Override
-			public void handleMessage(String messageType, JSONObject message) {
-				getProjects(message);
-			}
-		};
-		this.messagingConnector.addMessageHandler(getProjectsRequestHandler);
-		
-		IMessageHandler getProjectRequestHandler = new AbstractMessageHandler("getProjectRequest") {
-			@Override
-			public void handleMessage(String messageType, JSONObject message) {
-				getProject(message);
-			}
-		};
-		this.messagingConnector.addMessageHandler(getProjectRequestHandler);
-		
-		IMessageHandler getProjectResponseHandler = new CallbackIDAwareMessageHandler("getProjectResponse", Repository.GET_PROJECT_CALLBACK) {
+		this.resourceChanges = new ChangeDebouncer<IResource>("Flux resource changes", CHANGE_DELAY, new ChangeDebouncer.Handler<IResource>() {
 			@Override
-			public void handleMessage(String messageType, JSONObject message) {
-				getProjectResponse(message);
-			}
-		};
-		this.messagingConnector.addMessageHandler(getProjectResponseHandler);
-		
-		IMessageHandler getResourceRequestHandler = new AbstractMessageHandler("getResourceRequest") {
-			@Override
-			public void handleMessage(String messageType, JSONObject message) {
-				try {
-					final String resourcePath = message.getString("resource");
-					
-					if (resourcePath.startsWith("classpath:")) {
-						getClasspathResource(message);
-					}
-					else {
-						getResource(message);
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
+			public void changed(IResource resource, int kind) {
+				if (isConnected(resource.getProject())) {
+					reactToResourceChange(resource, kind);
 				}
 			}
-		};
-		this.messagingConnector.addMessageHandler(getResourceRequestHandler);
-		
-		IMessageHandler getResourceResponseHandler = new CallbackIDAwareMessageHandler("getResourceResponse", Repository.GET_RESOURCE_CALLBACK) {
+		});
+		this.metadataChanges = new ChangeDebouncer<String>("Flux metadata changes", CHANGE_DELAY, new ChangeDebouncer.Handler<String>() {
 			@Override
-			public void handleMessage(String messageType, JSONObject message) {
-				getResourceResponse(message);
+			public void changed(String projectName, int kind) {
+				sendMetadataChanges(projectName);
 			}
-		};
-		this.messagingConnector.addMessageHandler(getResourceResponseHandler);
-		
+		});
+		this.pendingMarkerChanges = new LinkedHashMap<String, Map<IResource, MarkerChanges>>();
+		this.markerCache = new MarkerCache();
+		this.prefetcher = new Prefetcher();
+
 		IMessageHandler getMetadataRequestHandler = new AbstractMessageHandler("getMetadataRequest") {
 			@Override
 			public void handleMessage(String messageType, JSONObject message) {
 				getMetadata(message);
 			}
 		};
-		this.messagingConnector.addMessageHandler(getMetadataRequestHandler);
-	}
-	
-	public String getUsername() {
-		return this.username;
+		messagingConnector.addMessageHandler(getMetadataRequestHandler);
 	}
 
-	protected void connect() {
-		for (String projectName : syncedProjects.keySet()) {
-			sendProjectConnectedMessage(projectName);
-			syncConnectedProject(projectName);
-		}
+	/**
+	 * stops the background work of the repository (reading, downloading and collecting changes)
+	 */
+	@Override
+	public void dispose() {
+		this.resourceChanges.dispose();
+		this.metadataChanges.dispose();
+		super.dispose();
+		this.workspaceWriter.dispose();
 	}
 
-	public boolean isConnected() {
-		return messagingConnector.isConnected();
+	/**
+	 * the coordinator is told about saved resources, its logs of the live edits start there
+	 */
+	public void setLiveEditCoordinator(LiveEditCoordinator liveEditCoordinator) {
+		this.liveEditCoordinator = liveEditCoordinator;
 	}
 
 	public ConnectedProject getProject(IProject project) {
 		return getProject(project.getName());
 	}
-	
-	public ConnectedProject getProject(String projectName) {
-		return this.syncedProjects.get(projectName);
-	}
 
 	public boolean isConnected(IProject project) {
-		return this.syncedProjects.containsKey(project.getName());
+		return isConnected(project.getName());
 	}
 
-	public boolean isConnected(String project) {
-		return this.syncedProjects.containsKey(project);
+	/**
+	 * marks the project as connecting, the project becomes connected once {@link #addProject(IProject)}
+	 * has built its index (or not at all, if connecting is set to false again)
+	 */
+	public void setConnecting(IProject project, boolean connecting) {
+		if (connecting) {
+			this.connectingProjects.add(project.getName());
+		}
+		else {
+			this.connectingProjects.remove(project.getName());
+		}
+	}
+
+	public boolean isConnecting(String projectName) {
+		return this.connectingProjects.contains(projectName);
 	}
 
 	public void addProject(IProject project) {
 		String projectName = project.getName();
-		if (!this.syncedProjects.containsKey(projectName)) {
-			this.syncedProjects.put(projectName, new ConnectedProject(project));
-			notifyProjectConnected(project);
-
-			if (isConnected()) {
-				sendProjectConnectedMessage(projectName);
-				syncConnectedProject(projectName);
+		try {
+			if (!isConnected(projectName) && connectProject(new ConnectedProject(project))) {
+				notifyProjectConnected(project);
 			}
 		}
+		finally {
+			this.connectingProjects.remove(projectName);
+		}
 	}
 
 	public void removeProject(IProject project) {
-		String projectName = project.getName();
-		if (this.syncedProjects.containsKey(projectName)) {
-			this.syncedProjects.remove(projectName);
-			notifyProjectDisonnected(project);
-
-			if (isConnected()) {
-				try {
-					JSONObject message = new JSONObject();
-					message.put("username", this.username);
-					message.put("project", projectName);
-					messagingConnector.send("projectDisconnected", message);
-				} catch (JSONException e) {
-					e.printStackTrace();
-				}
+		if (disconnectProject(project.getName()) != null) {
+			this.workspaceWriter.discard(project);
+			this.markerCache.remove(project);
+			synchronized (this.pendingMarkerChanges) {
+				this.pendingMarkerChanges.remove(project.getName());
 			}
+			notifyProjectDisonnected(project);
 		}
 	}
 
-	protected void syncConnectedProject(String projectName) {
-		try {
-			JSONObject message = new JSONObject();
-			message.put("username", this.username);
-			message.put("project", projectName);
-			message.put("includeDeleted", true);
-			message.put("callback_id", GET_PROJECT_CALLBACK);
-			messagingConnector.send("getProjectRequest", message);
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
+	@Override
+	protected void downloadFailed(String projectName, String resourcePath) {
+		Activator.logWarning("failed to fetch " + projectName + "/" + resourcePath);
 	}
 
-	protected void sendProjectConnectedMessage(String projectName) {
-		try {
-			JSONObject message = new JSONObject();
-			message.put("username", this.username);
-			message.put("project", projectName);
-			messagingConnector.send("projectConnected", message);
-		} catch (JSONException e) {
-			e.printStackTrace();
+	/**
+	 * moves the resources that are likely needed together with the opened resource
+	 * to the front of the download of the project (if the project is still downloading)
+	 */
+	public void prefetch(String projectName, String resourcePath) {
+		ResourceDownloader downloader = getActiveDownloader(projectName);
+		ConnectedProject connectedProject = getProject(projectName);
+		if (downloader != null && connectedProject != null && !downloader.isFinished()) {
+			prefetcher.prefetch(downloader, connectedProject.getProject(), resourcePath);
 		}
 	}
 
-	public void getProjects(JSONObject request) {
-		try {
-			int callbackID = request.getInt("callback_id");
-			String sender = request.getString("requestSenderID");
-			String username = request.getString("username");
-
-			if (this.username.equals(username)) {
-				JSONArray projects = new JSONArray();
-				for (String projectName : this.syncedProjects.keySet()) {
-					JSONObject proj = new JSONObject();
-					proj.put("name", projectName);
-					projects.put(proj);
-				}
+	public void cancelPrefetch(String projectName, String resourcePath) {
+		prefetcher.cancel(projectName, resourcePath);
+	}
 
-				JSONObject message = new JSONObject();
-				message.put("callback_id", callbackID);
-				message.put("requestSenderID", sender);
-				message.put("username", this.username);
-				message.put("projects", projects);
+	@Override
+	protected String getType(ConnectedProject connectedProject, String resourcePath) {
+		IProject project = connectedProject.getProject();
+		IResource resource = resourcePath.length() == 0 ? project : project.findMember(resourcePath);
 
-				messagingConnector.send("getProjectsResponse", message);
-			}
-		} catch (JSONException e) {
-			e.printStackTrace();
+		if (resource == null || resource.isDerived(IResource.CHECK_ANCESTORS)) {
+			return null;
+		}
+		else if (resource instanceof IFile) {
+			return "file";
 		}
+		else if (resource instanceof IFolder) {
+			return "folder";
+		}
+		return "";
 	}
 
-	public void getProject(JSONObject request) {
-		try {
-			final int callbackID = request.getInt("callback_id");
-			final String sender = request.getString("requestSenderID");
-			final String projectName = request.getString("project");
-			final String username = request.getString("username");
-
-			final ConnectedProject connectedProject = this.syncedProjects.get(projectName);
-			if (this.username.equals(username) && connectedProject != null) {
-
-				final JSONArray files = new JSONArray();
+	@Override
+	protected byte[] read(ConnectedProject connectedProject, String resourcePath) throws Exception {
+		IFile file = connectedProject.getProject().getFile(resourcePath);
+		if (!file.isSynchronized(IResource.DEPTH_ZERO)) {
+			file.refreshLocal(IResource.DEPTH_ZERO, null);
+		}
 
-				IProject project = connectedProject.getProject();
+		ByteArrayOutputStream array = new ByteArrayOutputStream();
+		IOUtils.copy(file.getContents(), array);
+		return array.toByteArray();
+	}
 
-				try {
-					project.accept(new IResourceVisitor() {
-						@Override
-						public boolean visit(IResource resource) throws CoreException {
-							JSONObject projectResource = new JSONObject();
-							String path = resource.getProjectRelativePath().toString();
-							try {
-								projectResource.put("path", path);
-								projectResource.put("timestamp", connectedProject.getTimestamp(path));
-								projectResource.put("hash", connectedProject.getHash(path));
-
-								if (resource instanceof IFile) {
-									projectResource.put("type", "file");
-								} else if (resource instanceof IFolder) {
-									projectResource.put("type", "folder");
-								}
-
-								files.put(projectResource);
-							} catch (JSONException e) {
-								e.printStackTrace();
-							}
-							return true;
-						}
-					}, IResource.DEPTH_INFINITE, IContainer.EXCLUDE_DERIVED);
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-				
-				JSONObject message = new JSONObject();
-				message.put("callback_id", callbackID);
-				message.put("requestSenderID", sender);
-				message.put("username", this.username);
-				message.put("project", projectName);
-				message.put("username", this.username);
-				message.put("files", files);
+	@Override
+	protected String getCharset(ConnectedProject connectedProject, String resourcePath) throws CoreException {
+		return connectedProject.getProject().getFile(resourcePath).getCharset();
+	}
 
-				messagingConnector.send("getProjectResponse", message);
+	@Override
+	protected void write(final ConnectedProject connectedProject, final String resourcePath, final long timestamp, final String hash, byte[] content) {
+		workspaceWriter.write(connectedProject.getProject().getFile(resourcePath), content, timestamp, new WorkspaceWriter.Callback() {
+			@Override
+			public void written(IFile file) {
+				sendResourceStored(connectedProject, resourcePath, timestamp, hash);
 			}
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
+			@Override
+			public void writeFailed(IFile file, CoreException e) {
+				e.printStackTrace();
+			}
+		});
 	}
 
-	public void getProjectResponse(JSONObject response) {
-		try {
-			final String username = response.getString("username");
-			final String projectName = response.getString("project");
-			final JSONArray files = response.getJSONArray("files");
-			final JSONArray deleted = response.optJSONArray("deleted");
-
-			ConnectedProject connectedProject = this.syncedProjects.get(projectName);
-			if (this.username.equals(username) && connectedProject != null) {
-
-				for (int i = 0; i < files.length(); i++) {
-					JSONObject resource = files.getJSONObject(i);
-
-					String resourcePath = resource.getString("path");
-					long timestamp = resource.getLong("timestamp");
-
-					String type = resource.optString("type");
-					String hash = resource.optString("hash");
-					
-					boolean newFile = type != null && type.equals("file") && !connectedProject.containsResource(resourcePath);
-					boolean updatedFileTimestamp =  type != null && type.equals("file") && connectedProject.containsResource(resourcePath)
-							&& connectedProject.getHash(resourcePath).equals(hash) && connectedProject.getTimestamp(resourcePath) < timestamp;
-					boolean updatedFile = type != null && type.equals("file") && connectedProject.containsResource(resourcePath)
-							&& !connectedProject.getHash(resourcePath).equals(hash) && connectedProject.getTimestamp(resourcePath) < timestamp;
-
-					if (newFile || updatedFile) {
-						JSONObject message = new JSONObject();
-						message.put("callback_id", GET_RESOURCE_CALLBACK);
-						message.put("project", projectName);
-						message.put("username", this.username);
-						message.put("resource", resourcePath);
-						message.put("timestamp", timestamp);
-						message.put("hash", hash);
-
-						messagingConnector.send("getResourceRequest", message);
-					}
-					
-					if (updatedFileTimestamp) {
-						connectedProject.setTimestamp(resourcePath, timestamp);
-						IResource file  = connectedProject.getProject().findMember(resourcePath);
-						file.setLocalTimeStamp(timestamp);
-					}
-					
-					boolean newFolder = type != null && type.equals("folder") && !connectedProject.containsResource(resourcePath);
-					boolean updatedFolder = type != null && type.equals("folder") && connectedProject.containsResource(resourcePath)
-							&& !connectedProject.getHash(resourcePath).equals(hash) && connectedProject.getTimestamp(resourcePath) < timestamp;
-
-					if (newFolder) {
-						IProject project = connectedProject.getProject();
-						IFolder folder = project.getFolder(resourcePath);
-
-						connectedProject.setHash(resourcePath, hash);
-						connectedProject.setTimestamp(resourcePath, timestamp);
-
-						folder.create(true, true, null);
-						folder.setLocalTimeStamp(timestamp);
-					}
-					else if (updatedFolder) {
-					}
-				}
-				
-				if (deleted != null) {
-					for (int i = 0; i < deleted.length(); i++) {
-						JSONObject deletedResource = deleted.getJSONObject(i);
-
-						String resourcePath = deletedResource.getString("path");
-						long deletedTimestamp = deletedResource.getLong("timestamp");
-
-						IProject project = connectedProject.getProject();
-						IResource resource = project.findMember(resourcePath);
+	@Override
+	protected void createFolder(ConnectedProject connectedProject, String resourcePath, long timestamp) throws CoreException {
+		IFolder folder = connectedProject.getProject().getFolder(resourcePath);
+		folder.create(true, true, null);
+		folder.setLocalTimeStamp(timestamp);
+	}
 
-						if (resource != null && resource.exists() && (resource instanceof IFile || resource instanceof IFolder)) {
-							long localTimestamp = connectedProject.getTimestamp(resourcePath);
+	@Override
+	protected void setLocalTimestamp(ConnectedProject connectedProject, String resourcePath, long timestamp) throws CoreException {
+		IResource resource = connectedProject.getProject().findMember(resourcePath);
+		if (resource != null) {
+			resource.setLocalTimeStamp(timestamp);
+		}
+	}
 
-							if (localTimestamp < deletedTimestamp) {
-								resource.delete(true, null);
-							}
-						}
-					}
-				}
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
+	@Override
+	protected void delete(ConnectedProject connectedProject, String resourcePath) throws CoreException {
+		IResource resource = connectedProject.getProject().findMember(resourcePath);
+		if (resource != null) {
+			resource.delete(true, null);
 		}
 	}
 
+	@Override
 	public void getResource(JSONObject request) {
-		try {
-			final String username = request.getString("username");
-			final int callbackID = request.getInt("callback_id");
-			final String sender = request.getString("requestSenderID");
-			final String projectName = request.getString("project");
-			final String resourcePath = request.getString("resource");
-
-			ConnectedProject connectedProject = this.syncedProjects.get(projectName);
-			if (this.username.equals(username) && connectedProject != null && connectedProject.containsResource(resourcePath)) {
-				IProject project = connectedProject.getProject();
-
-				if (request.has("timestamp") && request.getLong("timestamp") != connectedProject.getTimestamp(resourcePath)) {
-					return;
-				}
-
-				IResource resource = project.findMember(resourcePath);
-
-				JSONObject message = new JSONObject();
-				message.put("callback_id", callbackID);
-				message.put("requestSenderID", sender);
-				message.put("username", this.username);
-				message.put("project", projectName);
-				message.put("resource", resourcePath);
-				message.put("timestamp", connectedProject.getTimestamp(resourcePath));
-				message.put("hash", connectedProject.getHash(resourcePath));
-
-				if (resource instanceof IFile) {
-					if (request.has("hash") && !request.getString("hash").equals(connectedProject.getHash(resourcePath))) {
-						return;
-					}
-
-					IFile file = (IFile) resource;
-
-					ByteArrayOutputStream array = new ByteArrayOutputStream();
-					if (!file.isSynchronized(IResource.DEPTH_ZERO)) {
-						file.refreshLocal(IResource.DEPTH_ZERO, null);
-					}
-					
-					IOUtils.copy(file.getContents(), array);
-
-					String content = new String(array.toByteArray(), file.getCharset());
-
-					message.put("content", content);
-					message.put("type", "file");
-				} else if (resource instanceof IFolder) {
-					message.put("type", "folder");
-				}
-
-				messagingConnector.send("getResourceResponse", message);
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		if (request.optString("resource").startsWith("classpath:")) {
+			getClasspathResource(request);
+		}
+		else {
+			super.getResource(request);
 		}
 	}
 
@@ -475,8 +274,8 @@ public class Repository {
 			final String resourcePath = request.getString("resource");
 			final String username = request.getString("username");
 
-			ConnectedProject connectedProject = this.syncedProjects.get(projectName);
-			if (this.username.equals(username) && connectedProject != null) {
+			ConnectedProject connectedProject = getProject(projectName);
+			if (getUsername().equals(username) && connectedProject != null) {
 				String typeName = resourcePath.substring("classpath:/".length());
 				if (typeName.endsWith(".class")) {
 					typeName = typeName.substring(0, typeName.length() - ".class".length());
@@ -492,7 +291,7 @@ public class Repository {
 						JSONObject message = new JSONObject();
 						message.put("callback_id", callbackID);
 						message.put("requestSenderID", sender);
-						message.put("username", this.username);
+						message.put("username", getUsername());
 						message.put("project", projectName);
 						message.put("resource", resourcePath);
 						message.put("readonly", true);
@@ -502,7 +301,7 @@ public class Repository {
 						message.put("content", content);
 						message.put("type", "file");
 
-						messagingConnector.send("getResourceResponse", message);
+						getMessagingConnector().send("getResourceResponse", message);
 					}
 				}
 			}
@@ -513,232 +312,177 @@ public class Repository {
 		}
 	}
 
-	public void updateResource(JSONObject request) {
+	public void getMetadata(JSONObject request) {
 		try {
 			final String username = request.getString("username");
+			final int callbackID = request.getInt("callback_id");
+			final String sender = request.getString("requestSenderID");
 			final String projectName = request.getString("project");
 			final String resourcePath = request.getString("resource");
-			final long updateTimestamp = request.getLong("timestamp");
-			final String updateHash = request.optString("hash");
 
-			ConnectedProject connectedProject = this.syncedProjects.get(projectName);
-			if (this.username.equals(username) && connectedProject != null) {
+			ConnectedProject connectedProject = getProject(projectName);
+			if (getUsername().equals(username) && connectedProject != null) {
 				IProject project = connectedProject.getProject();
 				IResource resource = project.findMember(resourcePath);
 
-				if (resource != null && resource instanceof IFile) {
-					String localHash = connectedProject.getHash(resourcePath);
-					long localTimestamp = connectedProject.getTimestamp(resourcePath);
-
-					if (localHash != null && !localHash.equals(updateHash) && localTimestamp < updateTimestamp) {
-						JSONObject message = new JSONObject();
-						message.put("callback_id", GET_RESOURCE_CALLBACK);
-						message.put("username", this.username);
-						message.put("project", projectName);
-						message.put("resource", resourcePath);
-						message.put("timestamp", updateTimestamp);
-						message.put("hash", updateHash);
+				JSONObject message = new JSONObject();
+				message.put("callback_id", callbackID);
+				message.put("requestSenderID", sender);
+				message.put("username", getUsername());
+				message.put("project", projectName);
+				message.put("resource", resourcePath);
+				message.put("type", "marker");
 
-						messagingConnector.send("getResourceRequest", message);
-					}
+				if (resource instanceof IFile) {
+					message.put("metadata", markerCache.getMarkers(resource));
+				}
+				else {
+					message.put("metadata", new JSONArray(toJSON(resource.findMarkers(null, true, IResource.DEPTH_INFINITE))));
 				}
-			}
 
+				getMessagingConnector().send("getMetadataResponse", message);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	public void createResource(JSONObject request) {
-		try {
-			final String username = request.getString("username");
-			final String projectName = request.getString("project");
-			final String resourcePath = request.getString("resource");
-			final long updateTimestamp = request.getLong("timestamp");
-			final String updateHash = request.optString("hash");
-			final String type = request.optString("type");
-
-			ConnectedProject connectedProject = this.syncedProjects.get(projectName);
-			if (this.username.equals(username) && connectedProject != null) {
-				IProject project = connectedProject.getProject();
-				IResource resource = project.findMember(resourcePath);
-				
-				if (resource == null) {
-					if ("folder".equals(type)) {
-						IFolder newFolder = project.getFolder(resourcePath);
-						
-						connectedProject.setHash(resourcePath, updateHash);
-						connectedProject.setTimestamp(resourcePath, updateTimestamp);
-
-						newFolder.create(true, true, null);
-						newFolder.setLocalTimeStamp(updateTimestamp);
-					}
-					else if ("file".equals(type)) {
-						JSONObject message = new JSONObject();
-						message.put("callback_id", GET_RESOURCE_CALLBACK);
-						message.put("username", this.username);
-						message.put("project", projectName);
-						message.put("resource", resourcePath);
-						message.put("timestamp", updateTimestamp);
-						message.put("hash", updateHash);
-
-						messagingConnector.send("getResourceRequest", message);
-					}
-				}
-				else {
-					// TODO
-				}
+	public void resourceChanged(IResourceDelta delta) {
+		IProject project = delta.getResource().getProject();
+		if (project != null) {
+			if (isConnected(project)) {
+				reactToResourceChange(delta);
 			}
-
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
 	}
 
-	public void deleteResource(JSONObject request) {
-		try {
-			final String username = request.getString("username");
-			final String projectName = request.getString("project");
-			final String resourcePath = request.getString("resource");
-			final long deletedTimestamp = request.getLong("timestamp");
-
-			ConnectedProject connectedProject = this.syncedProjects.get(projectName);
-			if (this.username.equals(username) && connectedProject != null) {
-				IProject project = connectedProject.getProject();
-				IResource resource = project.findMember(resourcePath);
-
-				if (resource != null && resource.exists() && (resource instanceof IFile || resource instanceof IFolder)) {
-					long localTimestamp = connectedProject.getTimestamp(resourcePath);
+	/**
+	 * collects the marker changes of a build, the changes of consecutive builds are folded
+	 * and sent out once the project stays quiet for a moment, as one message per project that
+	 * lists the added and the removed markers of every resource (changed markers are removed
+	 * and added again): {username, project, type: "marker", incremental: true, resources: [{resource, added, removed}]}.
+	 * Messages without the incremental flag carry the metadata of a single resource as a whole.
+	 */
+	public void metadataChanged(IMarkerDelta[] markerDeltas) {
+		for (IMarkerDelta markerDelta : markerDeltas) {
+			IResource resource = markerDelta.getResource();
+			IProject project = resource.getProject();
+			if (project == null || !isConnected(project)) {
+				continue;
+			}
 
-					if (localTimestamp < deletedTimestamp) {
-						resource.delete(true, null);
-					}
+			JSONObject marker = null;
+			try {
+				if (markerDelta.getKind() != IResourceDelta.REMOVED) {
+					marker = MarkerCache.toJSON(markerDelta.getMarker());
 				}
+			} catch (JSONException e) {
+				e.printStackTrace();
+				continue;
 			}
+			markerCache.update(markerDelta, marker);
 
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
-
-	public void getResourceResponse(JSONObject response) {
-		try {
-			final String username = response.getString("username");
-			final String projectName = response.getString("project");
-			final String resourcePath = response.getString("resource");
-			final long updateTimestamp = response.getLong("timestamp");
-			final String updateHash = response.getString("hash");
-
-			ConnectedProject connectedProject = this.syncedProjects.get(projectName);
-			if (this.username.equals(username) && connectedProject != null) {
-				boolean stored = false;
-				
-				IProject project = connectedProject.getProject();
-				IResource resource = project.findMember(resourcePath);
-				
-				if (resource != null) {
-					if (resource instanceof IFile) {
-						String localHash = connectedProject.getHash(resourcePath);
-						long localTimestamp = connectedProject.getTimestamp(resourcePath);
-
-						if (localHash != null && !localHash.equals(updateHash) && localTimestamp < updateTimestamp) {
-							IFile file = (IFile) resource;
-							String newResourceContent = response.getString("content");
-
-							connectedProject.setTimestamp(resourcePath, updateTimestamp);
-							connectedProject.setHash(resourcePath, updateHash);
-
-							file.setContents(new ByteArrayInputStream(newResourceContent.getBytes()), true, true, null);
-							file.setLocalTimeStamp(updateTimestamp);
-							stored = true;
-						}
-					}
+			synchronized (pendingMarkerChanges) {
+				Map<IResource, MarkerChanges> projectChanges = pendingMarkerChanges.get(project.getName());
+				if (projectChanges == null) {
+					projectChanges = new LinkedHashMap<IResource, MarkerChanges>();
+					pendingMarkerChanges.put(project.getName(), projectChanges);
 				}
-				else {
-					IFile newFile = project.getFile(resourcePath);
-					String newResourceContent = response.getString("content");
 
-					connectedProject.setHash(resourcePath, updateHash);
-					connectedProject.setTimestamp(resourcePath, updateTimestamp);
-
-					newFile.create(new ByteArrayInputStream(newResourceContent.getBytes()), true, null);
-					newFile.setLocalTimeStamp(updateTimestamp);
-					stored = true;
-				}
-				
-				if (stored) {
-					JSONObject message = new JSONObject();
-					message.put("username", this.username);
-					message.put("project", connectedProject.getName());
-					message.put("resource", resourcePath);
-					message.put("timestamp", updateTimestamp);
-					message.put("hash", updateHash);
-					messagingConnector.send("resourceStored", message);
+				MarkerChanges resourceChanges = projectChanges.get(resource);
+				if (resourceChanges == null) {
+					resourceChanges = new MarkerChanges();
+					projectChanges.put(resource, resourceChanges);
 				}
+				resourceChanges.add(markerDelta.getKind(), markerDelta.getId(), marker);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+			metadataChanges.add(project.getName(), ChangeDebouncer.CHANGED);
 		}
 	}
 
-	public void getMetadata(JSONObject request) {
-		try {
-			final String username = request.getString("username");
-			final int callbackID = request.getInt("callback_id");
-			final String sender = request.getString("requestSenderID");
-			final String projectName = request.getString("project");
-			final String resourcePath = request.getString("resource");
+	protected void sendMetadataChanges(String projectName) {
+		Map<IResource, MarkerChanges> projectChanges;
+		synchronized (pendingMarkerChanges) {
+			projectChanges = pendingMarkerChanges.remove(projectName);
+		}
+		if (projectChanges == null || !isConnected() || !isConnected(projectName)) {
+			return;
+		}
 
-			ConnectedProject connectedProject = this.syncedProjects.get(projectName);
-			if (this.username.equals(username) && connectedProject != null) {
-				IProject project = connectedProject.getProject();
-				IResource resource = project.findMember(resourcePath);
+		try {
+			JSONArray resources = new JSONArray();
+			for (Map.Entry<IResource, MarkerChanges> resourceChanges : projectChanges.entrySet()) {
+				MarkerChanges changes = resourceChanges.getValue();
+				if (changes.added.isEmpty() && changes.removed.isEmpty()) {
+					continue;
+				}
 
-				JSONObject message = new JSONObject();
-				message.put("callback_id", callbackID);
-				message.put("requestSenderID", sender);
-				message.put("username", this.username);
-				message.put("project", projectName);
-				message.put("resource", resourcePath);
-				message.put("type", "marker");
+				JSONObject resource = new JSONObject();
+				resource.put("resource", resourceChanges.getKey().getProjectRelativePath().toString());
+				resource.put("added", new JSONArray(changes.added.values()));
+				resource.put("removed", new JSONArray(changes.removed));
+				resources.put(resource);
+			}
+			if (resources.length() == 0) {
+				return;
+			}
 
-				IMarker[] markers = resource.findMarkers(null, true, IResource.DEPTH_INFINITE);
-				String markerJSON = toJSON(markers);
-				JSONArray content = new JSONArray(markerJSON);
-				message.put("metadata", content);
+			JSONObject message = new JSONObject();
+			message.put("username", getUsername());
+			message.put("project", projectName);
+			message.put("type", "marker");
+			message.put("incremental", true);
+			message.put("resources", resources);
 
-				messagingConnector.send("getMetadataResponse", message);
-			}
-		} catch (Exception e) {
+			getMessagingConnector().send("metadataChanged", message);
+		} catch (JSONException e) {
 			e.printStackTrace();
 		}
 	}
 
-	public void resourceChanged(IResourceDelta delta) {
-		IProject project = delta.getResource().getProject();
-		if (project != null) {
-			if (isConnected(project)) {
-				reactToResourceChange(delta);
-			}
+	/**
+	 * collects the change, bursts of changes to the same resource are sent out as one
+	 * change (with the net effect of all of them) once the resource stays untouched for a moment
+	 */
+	public void reactToResourceChange(IResourceDelta delta) {
+		IResource resource = delta.getResource();
+
+		if (resource != null && delta.getKind() == IResourceDelta.REMOVED) {
+			markerCache.remove(resource);
 		}
-	}
 
-	public void metadataChanged(IResourceDelta delta) {
-		IProject project = delta.getResource().getProject();
-		IMarkerDelta[] markerDeltas = delta.getMarkerDeltas();
-		if (project != null && isConnected(project) && markerDeltas != null && markerDeltas.length > 0) {
-			sendMetadataUpdate(delta.getResource());
+		if (resource != null && resource.isDerived(IResource.CHECK_ANCESTORS)) {
+			return;
 		}
-	}
 
-	public void reactToResourceChange(IResourceDelta delta) {
-		IResource resource = delta.getResource();
+		if (resource instanceof IProject && delta.getKind() == IResourceDelta.REMOVED) {
+			reactOnResourceRemoved(resource);
+			return;
+		}
 
-		if (resource != null && resource.isDerived(IResource.CHECK_ANCESTORS)) {
+		ConnectedProject connectedProject = getProject(resource.getProject());
+		if (connectedProject == null || connectedProject.isIgnored(resource)) {
 			return;
 		}
 
+		if (resource instanceof IFile && resource.getProjectRelativePath().toString().equals(IgnoreRules.IGNORE_FILE)) {
+			// resources that are no longer ignored are reported as new ones
+			for (IResource unignored : connectedProject.updateIgnoreRules()) {
+				resourceChanges.add(unignored, IResourceDelta.ADDED);
+			}
+		}
+
 		switch (delta.getKind()) {
+		case IResourceDelta.ADDED:
+		case IResourceDelta.REMOVED:
+		case IResourceDelta.CHANGED:
+			resourceChanges.add(resource, delta.getKind());
+			break;
+		}
+	}
+
+	protected void reactToResourceChange(IResource resource, int kind) {
+		switch (kind) {
 		case IResourceDelta.ADDED:
 			reactOnResourceAdded(resource);
 			break;
@@ -753,46 +497,9 @@ public class Repository {
 
 	protected void reactOnResourceAdded(IResource resource) {
 		try {
-			ConnectedProject connectedProject = this.syncedProjects.get(resource.getProject().getName());
-
+			ConnectedProject connectedProject = getProject(resource.getProject());
 			String resourcePath = resource.getProjectRelativePath().toString();
-			long timestamp = resource.getLocalTimeStamp();
-			String hash = "0";
-			String type = null;
-
-			connectedProject.setTimestamp(resourcePath, timestamp);
-
-			if (resource instanceof IFile) {
-				try {
-					IFile file = (IFile) resource;
-					hash = DigestUtils.shaHex(file.getContents());
-					type = "file";
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			} else if (resource instanceof IFolder) {
-				type = "folder";
-			}
-
-			connectedProject.setHash(resourcePath, hash);
-
-			JSONObject createdMessage = new JSONObject();
-			createdMessage.put("username", this.username);
-			createdMessage.put("project", connectedProject.getName());
-			createdMessage.put("resource", resourcePath);
-			createdMessage.put("timestamp", timestamp);
-			createdMessage.put("hash", hash);
-			createdMessage.put("type", type);
-			messagingConnector.send("resourceCreated", createdMessage);
-			
-			JSONObject storedMessage = new JSONObject();
-			storedMessage.put("username", this.username);
-			storedMessage.put("project", connectedProject.getName());
-			storedMessage.put("resource", resourcePath);
-			storedMessage.put("timestamp", timestamp);
-			storedMessage.put("hash", hash);
-			messagingConnector.send("resourceStored", storedMessage);
-
+			reportResourceAdded(connectedProject, resourcePath, resource.getLocalTimeStamp(), !(resource instanceof IFile));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -803,59 +510,23 @@ public class Repository {
 			this.removeProject((IProject) resource);
 		}
 		else if (!resource.isDerived() && (resource instanceof IFile || resource instanceof IFolder)) {
-			ConnectedProject connectedProject = this.syncedProjects.get(resource.getProject().getName());
-			String resourcePath = resource.getProjectRelativePath().toString();
-			long deletedTimestamp = System.currentTimeMillis();
-			
-			try {
-				JSONObject message = new JSONObject();
-				message.put("username", this.username);
-				message.put("project", connectedProject.getName());
-				message.put("resource", resourcePath);
-				message.put("timestamp", deletedTimestamp);
-	
-				messagingConnector.send("resourceDeleted", message);
-			}
-			catch (Exception e) {
-				e.printStackTrace();
-			}
+			ConnectedProject connectedProject = getProject(resource.getProject());
+			reportResourceRemoved(connectedProject, resource.getProjectRelativePath().toString(), System.currentTimeMillis());
 		}
 	}
 
 	protected void reactOnResourceChange(IResource resource) {
 		if (resource != null && resource instanceof IFile) {
-			IFile file = (IFile) resource;
-
-			ConnectedProject connectedProject = this.syncedProjects.get(file.getProject().getName());
-			String resourcePath = resource.getProjectRelativePath().toString();
-
 			try {
+				ConnectedProject connectedProject = getProject(resource.getProject());
+				String resourcePath = resource.getProjectRelativePath().toString();
+				String hash = connectedProject.getHash(resourcePath);
 
-				long changeTimestamp = file.getLocalTimeStamp();
-				if (changeTimestamp > connectedProject.getTimestamp(resourcePath)) {
-					String changeHash = DigestUtils.shaHex(file.getContents());
-					if (!changeHash.equals(connectedProject.getHash(resourcePath))) {
-
-						connectedProject.setTimestamp(resourcePath, changeTimestamp);
-						connectedProject.setHash(resourcePath, changeHash);
-
-						JSONObject changedMessage = new JSONObject();
-						changedMessage.put("username", this.username);
-						changedMessage.put("project", connectedProject.getName());
-						changedMessage.put("resource", resourcePath);
-						changedMessage.put("timestamp", changeTimestamp);
-						changedMessage.put("hash", changeHash);
-						messagingConnector.send("resourceChanged", changedMessage);
-						
-						JSONObject storedMessage = new JSONObject();
-						storedMessage.put("username", this.username);
-						storedMessage.put("project", connectedProject.getName());
-						storedMessage.put("resource", resourcePath);
-						storedMessage.put("timestamp", changeTimestamp);
-						storedMessage.put("hash", changeHash);
-						messagingConnector.send("resourceStored", storedMessage);
+				reportResourceChanged(connectedProject, resourcePath, resource.getLocalTimeStamp());
 
-					}
+				String savedHash = connectedProject.getHash(resourcePath);
+				if (liveEditCoordinator != null && savedHash != null && !savedHash.equals(hash)) {
+					liveEditCoordinator.resourceSaved(connectedProject.getName(), resourcePath, savedHash);
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -863,49 +534,11 @@ public class Repository {
 		}
 	}
 
-	public void sendMetadataUpdate(IResource resource) {
-		try {
-			String project = resource.getProject().getName();
-			String resourcePath = resource.getProjectRelativePath().toString();
-
-			JSONObject message = new JSONObject();
-			message.put("username", this.username);
-			message.put("project", project);
-			message.put("resource", resourcePath);
-			message.put("type", "marker");
-
-			IMarker[] markers = resource.findMarkers(null, true, IResource.DEPTH_INFINITE);
-			String markerJSON = toJSON(markers);
-			JSONArray content = new JSONArray(markerJSON);
-			message.put("metadata", content);
-
-			messagingConnector.send("metadataChanged", message);
-		} catch (Exception e) {
-
-		}
-	}
-
-	public String toJSON(IMarker[] markers) {
-		StringBuilder result = new StringBuilder();
-		boolean flag = false;
-		result.append("[");
-		for (IMarker m : markers) {
-			if (flag) {
-				result.append(",");
-			}
-
-			result.append("{");
-			result.append("\"description\":" + JSONObject.quote(m.getAttribute("message", "")));
-			result.append(",\"line\":" + m.getAttribute("lineNumber", 0));
-			result.append(",\"severity\":\"" + (m.getAttribute("severity", IMarker.SEVERITY_WARNING) == IMarker.SEVERITY_ERROR ? "error" : "warning")
-					+ "\"");
-			result.append(",\"start\":" + m.getAttribute("charStart", 0));
-			result.append(",\"end\":" + m.getAttribute("charEnd", 0));
-			result.append("}");
-
-			flag = true;
+	public String toJSON(IMarker[] markers) throws JSONException {
+		JSONArray result = new JSONArray();
+		for (IMarker marker : markers) {
+			result.put(MarkerCache.toJSON(marker));
 		}
-		result.append("]");
 		return result.toString();
 	}
 	
@@ -929,4 +562,24 @@ public class Repository {
 		}
 	}
 
+	/**
+	 * the net marker changes of a resource since the last metadataChanged message,
+	 * a marker that is added and removed again before the message goes out doesn't show up at all
+	 */
+	private static class MarkerChanges {
+
+		private Map<Long, JSONObject> added = new LinkedHashMap<Long, JSONObject>();
+		private Set<Long> removed = new LinkedHashSet<Long>();
+
+		public void add(int kind, long id, JSONObject marker) {
+			if (kind != IResourceDelta.ADDED && added.remove(id) == null) {
+				removed.add(id);
+			}
+			if (kind != IResourceDelta.REMOVED) {
+				added.put(id, marker);
+			}
+		}
+
+	}
+
 }
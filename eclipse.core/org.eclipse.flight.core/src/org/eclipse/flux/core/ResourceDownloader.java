@@ -0,0 +1,574 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Fetches resources of a project from the other participants. Only a limited
+ * number of resources is requested at the same time (the window), requests that
+ * don't get an answer in time are sent again, and progress is reported to the
+ * listener while the resources arrive. Resources with a higher priority are
+ * requested first, a queued resource can be moved to the front at any time.
+ */
+public class ResourceDownloader {
+
+	public interface Listener {
+		/**
+		 * called for every downloaded resource, an exception thrown here
+		 * lets the downloader request the resource again
+		 */
+		public void resourceDownloaded(JSONObject resource) throws Exception;
+		public void resourceFailed(String resourcePath);
+		public void downloadProgress(int downloadedCount, int totalCount, long bytesPerSecond);
+		public void downloadFinished();
+	}
+
+	public static final int DEFAULT_WINDOW_SIZE = 500;
+	public static final long DEFAULT_TIMEOUT = 30000;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	public static final int PRIORITY_URGENT = 0;
+	public static final int PRIORITY_HIGH = 1;
+	public static final int PRIORITY_NORMAL = 2;
+	public static final int PRIORITY_LOW = 3;
+
+	private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+	private static final long PROGRESS_INTERVAL = 500;
+
+	private IMessagingConnector messagingConnector;
+	private String username;
+	private String projectName;
+	private int callbackID;
+	private Listener listener;
+
+	private int windowSize = DEFAULT_WINDOW_SIZE;
+	private long timeout = DEFAULT_TIMEOUT;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+
+	private Deque<JSONObject>[] queues;
+	private Map<String, JSONObject> requested;
+	private Map<String, Long> inFlight;
+	private Map<String, Integer> attempts;
+
+	private int totalCount;
+	private int downloadedCount;
+	private int failedCount;
+	private long downloadedBytes;
+	private long startTime;
+	private long lastProgress;
+
+	private ScheduledExecutorService timer;
+	private CallbackIDAwareMessageHandler resourceResponseHandler;
+	private CallbackIDAwareMessageHandler resourcesResponseHandler;
+
+	public ResourceDownloader(IMessagingConnector messagingConnector, String username, String projectName, int callbackID, Listener listener) {
+		this.messagingConnector = messagingConnector;
+		this.username = username;
+		this.projectName = projectName;
+		this.callbackID = callbackID;
+		this.listener = listener;
+
+		this.queues = createQueues();
+		this.requested = new HashMap<String, JSONObject>();
+		this.inFlight = new HashMap<String, Long>();
+		this.attempts = new HashMap<String, Integer>();
+
+		resourceResponseHandler = new CallbackIDAwareMessageHandler("getResourceResponse", callbackID) {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				if (isResponseForThisDownload(message)) {
+					resourceArrived(message);
+				}
+			}
+		};
+		resourcesResponseHandler = new CallbackIDAwareMessageHandler("getResourcesResponse", callbackID) {
+			@Override
+			public void handleMessage(String messageType, JSONObject message) {
+				if (isResponseForThisDownload(message)) {
+					resourcesArrived(message);
+				}
+			}
+		};
+	}
+
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public String getProjectName() {
+		return projectName;
+	}
+
+	public synchronized void start() {
+		if (timer == null) {
+			this.startTime = System.currentTimeMillis();
+			this.messagingConnector.addMessageHandler(resourceResponseHandler);
+			this.messagingConnector.addMessageHandler(resourcesResponseHandler);
+
+			this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Flux resource download: " + projectName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.timer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					checkTimeouts();
+				}
+			}, TIMEOUT_CHECK_INTERVAL, TIMEOUT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if (timer != null) {
+			this.messagingConnector.removeMessageHandler(resourceResponseHandler);
+			this.messagingConnector.removeMessageHandler(resourcesResponseHandler);
+			this.timer.shutdownNow();
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * stops the downloader if everything is downloaded, {@link #start()} starts it again for the next resources
+	 */
+	public synchronized boolean stopIfFinished() {
+		if (isFinished()) {
+			stop();
+			return true;
+		}
+		return false;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	protected static Deque<JSONObject>[] createQueues() {
+		Deque<JSONObject>[] queues = new Deque[PRIORITY_LOW + 1];
+		for (int i = 0; i < queues.length; i++) {
+			queues[i] = new ArrayDeque<JSONObject>();
+		}
+		return queues;
+	}
+
+	/**
+	 * adds a resource to the download queue, the given hash and timestamp (if not null)
+	 * are sent along with the request so that only a matching version is returned
+	 */
+	public void add(String resourcePath, String hash, Long timestamp) {
+		add(resourcePath, hash, timestamp, PRIORITY_NORMAL);
+	}
+
+	public void add(String resourcePath, String hash, Long timestamp, int priority) {
+		try {
+			JSONObject resource = new JSONObject();
+			resource.put("resource", resourcePath);
+			if (hash != null && hash.length() > 0) {
+				resource.put("hash", hash);
+			}
+			if (timestamp != null) {
+				resource.put("timestamp", timestamp.longValue());
+			}
+			add(resource, priority);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * adds the resource request (containing at least the resource path) to the download queue
+	 */
+	public void add(JSONObject resource, int priority) {
+		String resourcePath = resource.optString("resource");
+		synchronized (this) {
+			if (!requested.containsKey(resourcePath)) {
+				requested.put(resourcePath, resource);
+				queues[Math.max(PRIORITY_URGENT, Math.min(PRIORITY_LOW, priority))].addLast(resource);
+				totalCount++;
+			}
+		}
+	}
+
+	/**
+	 * moves the resource to the front of the queue, returns true if the
+	 * resource is not downloaded yet (queued or already requested)
+	 */
+	public boolean prioritize(String resourcePath) {
+		synchronized (this) {
+			JSONObject resource = requested.get(resourcePath);
+			if (resource == null) {
+				return false;
+			}
+			if (inFlight.containsKey(resourcePath)) {
+				return true;
+			}
+
+			for (Deque<JSONObject> queue : queues) {
+				if (queue.remove(resource)) {
+					break;
+				}
+			}
+			queues[PRIORITY_URGENT].addFirst(resource);
+		}
+
+		fill();
+		return true;
+	}
+
+	/**
+	 * moves a queued resource into the queue with the given priority (behind the resources
+	 * that are already in there) if that is higher than its current priority, returns the
+	 * priority the resource had before or -1, if the resource is not waiting in a queue
+	 * or has the same or a higher priority already
+	 */
+	public synchronized int requeue(String resourcePath, int priority) {
+		JSONObject resource = requested.get(resourcePath);
+		if (resource == null || inFlight.containsKey(resourcePath)) {
+			return -1;
+		}
+
+		priority = Math.max(PRIORITY_URGENT, Math.min(PRIORITY_LOW, priority));
+		for (int i = priority + 1; i < queues.length; i++) {
+			if (queues[i].remove(resource)) {
+				queues[priority].addLast(resource);
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * moves a resource that was raised by {@link #requeue(String, int)} back into the queue with its
+	 * old priority, unless it isn't waiting with the raised priority anymore (e.g. because it got
+	 * prioritized in the meantime)
+	 */
+	public synchronized void restore(String resourcePath, int raisedPriority, int priority) {
+		JSONObject resource = requested.get(resourcePath);
+		if (resource != null && raisedPriority != priority && queues[raisedPriority].remove(resource)) {
+			queues[Math.max(PRIORITY_URGENT, Math.min(PRIORITY_LOW, priority))].addLast(resource);
+		}
+	}
+
+	/**
+	 * returns the queued resources that are located directly inside of the folder
+	 * (the empty path is the project itself), at most max of them
+	 */
+	public synchronized List<String> getQueued(String folderPath, int max) {
+		List<String> result = new ArrayList<String>();
+		String prefix = folderPath.length() > 0 ? folderPath + "/" : "";
+
+		for (Deque<JSONObject> queue : queues) {
+			for (JSONObject resource : queue) {
+				if (result.size() >= max) {
+					return result;
+				}
+
+				String resourcePath = resource.optString("resource");
+				if (resourcePath.startsWith(prefix) && resourcePath.indexOf('/', prefix.length()) < 0) {
+					result.add(resourcePath);
+				}
+			}
+		}
+		return result;
+	}
+
+	public synchronized boolean isRequested(String resourcePath) {
+		return requested.containsKey(resourcePath);
+	}
+
+	protected JSONObject nextQueued() {
+		for (Deque<JSONObject> queue : queues) {
+			if (!queue.isEmpty()) {
+				return queue.removeFirst();
+			}
+		}
+		return null;
+	}
+
+	protected boolean isQueueEmpty() {
+		for (Deque<JSONObject> queue : queues) {
+			if (!queue.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * sends out requests until the window of in-flight resources is filled up
+	 */
+	public void fill() {
+		List<JSONObject> batch = new ArrayList<JSONObject>();
+		List<JSONObject> retries = new ArrayList<JSONObject>();
+
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			while (inFlight.size() < windowSize && !isQueueEmpty()) {
+				JSONObject resource = nextQueued();
+				String resourcePath = resource.optString("resource");
+				inFlight.put(resourcePath, now);
+
+				if (getAttempts(resourcePath) > 0) {
+					retries.add(resource);
+				}
+				else {
+					batch.add(resource);
+				}
+			}
+		}
+
+		try {
+			for (int i = 0; i < batch.size(); i += Repository.RESOURCES_REQUEST_MAX_COUNT) {
+				JSONArray resources = new JSONArray();
+				for (int j = i; j < Math.min(batch.size(), i + Repository.RESOURCES_REQUEST_MAX_COUNT); j++) {
+					resources.put(batch.get(j));
+				}
+				sendGetResourcesRequest(resources);
+			}
+
+			// retries go out one by one, so that participants that don't understand
+			// getResourcesRequest messages are able to answer them
+			for (JSONObject resource : retries) {
+				sendGetResourceRequest(resource);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * lets the downloader request the given resource again (if retries are left)
+	 */
+	public void retry(String resourcePath) {
+		boolean failed = false;
+
+		synchronized (this) {
+			JSONObject resource = requested.get(resourcePath);
+			if (resource == null) {
+				return;
+			}
+
+			inFlight.remove(resourcePath);
+			int attempt = getAttempts(resourcePath) + 1;
+			if (attempt <= maxRetries) {
+				attempts.put(resourcePath, attempt);
+				queues[PRIORITY_URGENT].addFirst(resource);
+			}
+			else {
+				requested.remove(resourcePath);
+				attempts.remove(resourcePath);
+				failedCount++;
+				failed = true;
+			}
+		}
+
+		if (failed) {
+			listener.resourceFailed(resourcePath);
+			checkFinished();
+		}
+		else {
+			fill();
+		}
+	}
+
+	/**
+	 * returns true for the files that describe the project and its build (and are
+	 * needed before anything else of the project makes sense)
+	 */
+	public static boolean isProjectDescription(String resourcePath) {
+		return resourcePath.equals(".project") || resourcePath.equals(".classpath") || resourcePath.equals(IgnoreRules.IGNORE_FILE)
+				|| resourcePath.startsWith(".settings/") || resourcePath.equals("pom.xml") || resourcePath.equals("build.gradle")
+				|| resourcePath.equals("build.properties") || resourcePath.equals("plugin.xml") || resourcePath.equals("META-INF/MANIFEST.MF");
+	}
+
+	/**
+	 * returns the priority for a resource: project descriptions first,
+	 * then sources the build needs, then everything else
+	 */
+	public static int getPriority(String resourcePath) {
+		if (isProjectDescription(resourcePath)) {
+			return PRIORITY_HIGH;
+		}
+		else if (resourcePath.endsWith(".java")) {
+			return PRIORITY_NORMAL;
+		}
+		else {
+			return PRIORITY_LOW;
+		}
+	}
+
+	public synchronized boolean isFinished() {
+		return isQueueEmpty() && inFlight.isEmpty() && requested.isEmpty();
+	}
+
+	public synchronized int getTotalCount() {
+		return totalCount;
+	}
+
+	public synchronized int getDownloadedCount() {
+		return downloadedCount;
+	}
+
+	protected boolean isResponseForThisDownload(JSONObject message) {
+		return this.username.equals(message.optString("username")) && this.projectName.equals(message.optString("project"));
+	}
+
+	protected void resourcesArrived(JSONObject response) {
+		try {
+			JSONArray resources = response.getJSONArray("resources");
+			for (int i = 0; i < resources.length(); i++) {
+				JSONObject resource = resources.getJSONObject(i);
+				resource.put("username", this.username);
+				resource.put("project", this.projectName);
+
+				resourceArrived(resource);
+			}
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+
+	protected void resourceArrived(JSONObject resource) {
+		String resourcePath = resource.optString("resource");
+
+		synchronized (this) {
+			// duplicated answers (more than one participant may answer a request) or answers that arrive after a timeout
+			if (inFlight.remove(resourcePath) == null) {
+				return;
+			}
+		}
+
+		try {
+			listener.resourceDownloaded(resource);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			retry(resourcePath);
+			return;
+		}
+
+		synchronized (this) {
+			requested.remove(resourcePath);
+			attempts.remove(resourcePath);
+			downloadedCount++;
+			downloadedBytes += resource.optString("content").length();
+		}
+
+		reportProgress(false);
+		fill();
+		checkFinished();
+	}
+
+	protected void checkTimeouts() {
+		List<String> expired = new ArrayList<String>();
+
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<String, Long>> entries = inFlight.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String, Long> entry = entries.next();
+				if (now - entry.getValue() > timeout) {
+					expired.add(entry.getKey());
+				}
+			}
+		}
+
+		for (String resourcePath : expired) {
+			retry(resourcePath);
+		}
+	}
+
+	protected void checkFinished() {
+		if (isFinished()) {
+			reportProgress(true);
+			listener.downloadFinished();
+		}
+	}
+
+	protected void reportProgress(boolean force) {
+		int downloaded;
+		int total;
+		long bytesPerSecond;
+
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (!force && now - lastProgress < PROGRESS_INTERVAL) {
+				return;
+			}
+			lastProgress = now;
+
+			downloaded = downloadedCount;
+			total = totalCount;
+			long elapsed = Math.max(1, now - startTime);
+			bytesPerSecond = downloadedBytes * 1000 / elapsed;
+		}
+
+		listener.downloadProgress(downloaded, total, bytesPerSecond);
+	}
+
+	protected int getAttempts(String resourcePath) {
+		Integer attempt = attempts.get(resourcePath);
+		return attempt != null ? attempt : 0;
+	}
+
+	protected void sendGetResourcesRequest(JSONArray resources) throws JSONException {
+		JSONObject message = new JSONObject();
+		message.put("callback_id", callbackID);
+		message.put("username", this.username);
+		message.put("project", this.projectName);
+		message.put("resources", resources);
+
+		messagingConnector.send("getResourcesRequest", message);
+	}
+
+	protected void sendGetResourceRequest(JSONObject resource) throws JSONException {
+		JSONObject message = new JSONObject();
+		message.put("callback_id", callbackID);
+		message.put("username", this.username);
+		message.put("project", this.projectName);
+		message.put("resource", resource.getString("resource"));
+		if (resource.has("hash")) {
+			message.put("hash", resource.getString("hash"));
+		}
+		if (resource.has("timestamp")) {
+			message.put("timestamp", resource.getLong("timestamp"));
+		}
+		if (resource.has("baseHash")) {
+			message.put("baseHash", resource.getString("baseHash"));
+		}
+
+		messagingConnector.send("getResourceRequest", message);
+	}
+
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Line based delta between two versions of a text. The delta is a JSON array,
+ * every element is either a string (text to insert) or an array [line, count]
+ * (lines to copy from the base version). Line terminators are part of the lines,
+ * so applying the delta is a plain concatenation.
+ */
+public class TextDelta {
+
+	// lines like "}" occur very often, only the first positions are looked at for them
+	private static final int MAX_CANDIDATES = 32;
+
+	/**
+	 * creates the delta that turns the base text into the target text
+	 */
+	public static JSONArray create(String base, String target) {
+		List<String> baseLines = split(base);
+		List<String> targetLines = split(target);
+
+		Map<String, List<Integer>> baseIndex = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < baseLines.size(); i++) {
+			List<Integer> positions = baseIndex.get(baseLines.get(i));
+			if (positions == null) {
+				positions = new ArrayList<Integer>(1);
+				baseIndex.put(baseLines.get(i), positions);
+			}
+			positions.add(i);
+		}
+
+		JSONArray delta = new JSONArray();
+		StringBuilder insert = new StringBuilder();
+		int nextBaseLine = 0;
+
+		int i = 0;
+		while (i < targetLines.size()) {
+			int matchStart = -1;
+			int matchLength = 0;
+
+			// prefer to continue with the base line after the last copied block
+			if (nextBaseLine < baseLines.size() && baseLines.get(nextBaseLine).equals(targetLines.get(i))) {
+				matchStart = nextBaseLine;
+				matchLength = matchLength(baseLines, nextBaseLine, targetLines, i);
+			}
+			else {
+				List<Integer> positions = baseIndex.get(targetLines.get(i));
+				if (positions != null) {
+					for (int j = 0; j < positions.size() && j < MAX_CANDIDATES; j++) {
+						int position = positions.get(j);
+						int length = matchLength(baseLines, position, targetLines, i);
+						if (length > matchLength) {
+							matchStart = position;
+							matchLength = length;
+						}
+					}
+				}
+			}
+
+			if (matchLength > 0) {
+				if (insert.length() > 0) {
+					delta.put(insert.toString());
+					insert.setLength(0);
+				}
+
+				JSONArray copy = new JSONArray();
+				copy.put(matchStart);
+				copy.put(matchLength);
+				delta.put(copy);
+
+				nextBaseLine = matchStart + matchLength;
+				i += matchLength;
+			}
+			else {
+				insert.append(targetLines.get(i));
+				i++;
+			}
+		}
+
+		if (insert.length() > 0) {
+			delta.put(insert.toString());
+		}
+
+		return delta;
+	}
+
+	/**
+	 * applies the delta to the base text and returns the resulting text
+	 */
+	public static String apply(String base, JSONArray delta) throws JSONException {
+		List<String> baseLines = split(base);
+		StringBuilder result = new StringBuilder(base.length());
+
+		for (int i = 0; i < delta.length(); i++) {
+			JSONArray copy = delta.optJSONArray(i);
+			if (copy != null) {
+				int start = copy.getInt(0);
+				int count = copy.getInt(1);
+				if (start < 0 || count < 0 || start + count > baseLines.size()) {
+					throw new JSONException("delta doesn't match the base content");
+				}
+				for (int line = start; line < start + count; line++) {
+					result.append(baseLines.get(line));
+				}
+			}
+			else {
+				result.append(delta.getString(i));
+			}
+		}
+
+		return result.toString();
+	}
+
+	protected static int matchLength(List<String> baseLines, int baseStart, List<String> targetLines, int targetStart) {
+		int length = 0;
+		while (baseStart + length < baseLines.size() && targetStart + length < targetLines.size()
+				&& baseLines.get(baseStart + length).equals(targetLines.get(targetStart + length))) {
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * splits the text into lines, every line keeps its line terminator
+	 */
+	protected static List<String> split(String text) {
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\n') {
+				lines.add(text.substring(start, i + 1));
+				start = i + 1;
+			}
+			else if (c == '\r' && (i + 1 >= text.length() || text.charAt(i + 1) != '\n')) {
+				lines.add(text.substring(start, i + 1));
+				start = i + 1;
+			}
+		}
+		if (start < text.length()) {
+			lines.add(text.substring(start));
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.jobs.MultiRule;
+
+/**
+ * Buffers incoming file contents and writes them to the workspace in batches.
+ * Every batch is applied inside a single workspace operation (locking only the
+ * parent folders of the written files), so that the workspace reports a single
+ * resource delta per batch instead of one delta per file.
+ */
+public class WorkspaceWriter {
+
+	public interface Callback {
+		public void written(IFile file);
+		public void writeFailed(IFile file, CoreException e);
+	}
+
+	public static final int MAX_BATCH_SIZE = 250;
+	public static final long FLUSH_DELAY = 100;
+
+	private Map<IFile, Write> pending;
+	private Object flushLock;
+	private Job flushJob;
+
+	public WorkspaceWriter() {
+		this.pending = new LinkedHashMap<IFile, Write>();
+		this.flushLock = new Object();
+
+		this.flushJob = new Job("Flux workspace writer") {
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				flush();
+				return Status.OK_STATUS;
+			}
+		};
+		this.flushJob.setSystem(true);
+	}
+
+	/**
+	 * queues the content for the given file, the file is created if it doesn't exist yet.
+	 * A later write for the same file replaces a queued one that isn't written yet.
+	 */
+	public void write(IFile file, byte[] content, long timestamp, Callback callback) {
+		int size;
+		synchronized (pending) {
+			pending.remove(file);
+			pending.put(file, new Write(file, content, timestamp, callback));
+			size = pending.size();
+		}
+
+		if (size >= MAX_BATCH_SIZE) {
+			flushJob.schedule();
+		}
+		else {
+			flushJob.schedule(FLUSH_DELAY);
+		}
+	}
+
+	/**
+	 * writes all queued files to the workspace and returns when they are written
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			List<Write> batch = nextBatch();
+			while (!batch.isEmpty()) {
+				apply(batch);
+				batch = nextBatch();
+			}
+		}
+	}
+
+	public boolean hasPendingWrites() {
+		synchronized (pending) {
+			return !pending.isEmpty();
+		}
+	}
+
+	/**
+	 * drops the queued writes of the project's files
+	 */
+	public void discard(IProject project) {
+		synchronized (pending) {
+			Iterator<IFile> files = pending.keySet().iterator();
+			while (files.hasNext()) {
+				if (project.equals(files.next().getProject())) {
+					files.remove();
+				}
+			}
+		}
+	}
+
+	public void dispose() {
+		flushJob.cancel();
+		flush();
+	}
+
+	protected List<Write> nextBatch() {
+		List<Write> batch = new ArrayList<Write>();
+		synchronized (pending) {
+			for (Write write : pending.values()) {
+				if (batch.size() >= MAX_BATCH_SIZE) {
+					break;
+				}
+				batch.add(write);
+			}
+			for (Write write : batch) {
+				pending.remove(write.file);
+			}
+		}
+		return batch;
+	}
+
+	protected void apply(final List<Write> batch) {
+		IWorkspace workspace = ResourcesPlugin.getWorkspace();
+
+		ISchedulingRule[] rules = new ISchedulingRule[batch.size()];
+		for (int i = 0; i < rules.length; i++) {
+			rules[i] = batch.get(i).file.getParent();
+		}
+
+		IWorkspaceRunnable runnable = new IWorkspaceRunnable() {
+			@Override
+			public void run(IProgressMonitor monitor) throws CoreException {
+				for (Write write : batch) {
+					try {
+						if (write.file.exists()) {
+							write.file.setContents(new ByteArrayInputStream(write.content), true, true, null);
+						}
+						else {
+							write.file.create(new ByteArrayInputStream(write.content), true, null);
+						}
+						write.file.setLocalTimeStamp(write.timestamp);
+						write.failure = null;
+					}
+					catch (CoreException e) {
+						write.failure = e;
+					}
+				}
+			}
+		};
+
+		try {
+			workspace.run(runnable, MultiRule.combine(rules), 0, null);
+		}
+		catch (CoreException e) {
+			e.printStackTrace();
+			for (Write write : batch) {
+				write.failure = e;
+			}
+		}
+
+		// callbacks are called outside of the workspace operation, after the delta went out
+		for (Write write : batch) {
+			if (write.callback != null) {
+				if (write.failure == null) {
+					write.callback.written(write.file);
+				}
+				else {
+					write.callback.writeFailed(write.file, write.failure);
+				}
+			}
+		}
+	}
+
+	private static class Write {
+		private final IFile file;
+		private final byte[] content;
+		private final long timestamp;
+		private final Callback callback;
+		private CoreException failure;
+
+		public Write(IFile file, byte[] content, long timestamp, Callback callback) {
+			this.file = file;
+			this.content = content;
+			this.timestamp = timestamp;
+			this.callback = callback;
+		}
+	}
+
+}
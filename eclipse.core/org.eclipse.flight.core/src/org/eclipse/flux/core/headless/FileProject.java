@@ -0,0 +1,392 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.eclipse.flux.core.Hashing;
+import org.eclipse.flux.core.ISyncedProject;
+import org.eclipse.flux.core.IgnoreRules;
+
+/**
+ * The counterpart of a ConnectedProject for a plain folder on the disk: it keeps the
+ * timestamps and hashes of the files and folders in the project folder and reads and
+ * writes their contents, without the need for an Eclipse workspace.
+ */
+public class FileProject implements ISyncedProject {
+
+	private static final String TEMP_FILE_SUFFIX = ".flux-tmp";
+
+	private static final ForkJoinPool SCANNER = new ForkJoinPool();
+
+	private final String name;
+	private final Path root;
+	private final String charset;
+
+	private Map<String, String> resourceHash;
+	private ConcurrentSkipListMap<String, Long> resourceTimestamp;
+	private Map<String, long[]> resourceQuickHash;
+	private volatile IgnoreRules ignoreRules;
+
+	public FileProject(String name, Path root, String charset) {
+		this.name = name;
+		this.root = root.toAbsolutePath().normalize();
+		this.charset = charset;
+
+		this.resourceHash = new ConcurrentHashMap<String, String>();
+		this.resourceTimestamp = new ConcurrentSkipListMap<String, Long>();
+		this.resourceQuickHash = new ConcurrentHashMap<String, long[]>();
+		this.ignoreRules = readIgnoreRules();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Path getRoot() {
+		return root;
+	}
+
+	public String getCharset() {
+		return charset;
+	}
+
+	/**
+	 * builds the index of the project, the folders of the project are walked in parallel
+	 */
+	public void scan() {
+		SCANNER.invoke(new ScanTask(root));
+	}
+
+	public void setTimestamp(String resourcePath, long newTimestamp) {
+		this.resourceTimestamp.put(resourcePath, newTimestamp);
+	}
+
+	public long getTimestamp(String resourcePath) {
+		return this.resourceTimestamp.get(resourcePath);
+	}
+
+	public void setHash(String resourcePath, String hash) {
+		this.resourceHash.put(resourcePath, hash);
+	}
+
+	public String getHash(String resourcePath) {
+		return this.resourceHash.get(resourcePath);
+	}
+
+	public void setQuickHash(String resourcePath, long quickHash, long size, long localTimestamp) {
+		this.resourceQuickHash.put(resourcePath, new long[] {quickHash, size, localTimestamp});
+	}
+
+	public boolean hasQuickHash(String resourcePath, long quickHash, long size, long localTimestamp) {
+		long[] known = this.resourceQuickHash.get(resourcePath);
+		return known != null && known[0] == quickHash && known[1] == size && known[2] == localTimestamp;
+	}
+
+	public boolean isFolder(String resourcePath) {
+		return FOLDER_HASH.equals(this.resourceHash.get(resourcePath));
+	}
+
+	/**
+	 * returns the paths of the resources in sorted order, starting after the given path
+	 * (or at the beginning, if the path is null)
+	 */
+	public Iterable<String> getResourcePaths(String after) {
+		if (after == null) {
+			return this.resourceTimestamp.keySet();
+		}
+		return this.resourceTimestamp.tailMap(after, false).keySet();
+	}
+
+	/**
+	 * returns the indexed resources inside of the folder (the deepest ones first)
+	 */
+	public List<String> getMembers(String folderPath) {
+		List<String> members = new ArrayList<String>();
+		String prefix = folderPath + "/";
+		for (String resourcePath : this.resourceTimestamp.tailMap(prefix, true).keySet()) {
+			if (!resourcePath.startsWith(prefix)) {
+				break;
+			}
+			members.add(resourcePath);
+		}
+		Collections.reverse(members);
+		return members;
+	}
+
+	public boolean containsResource(String resourcePath) {
+		return this.resourceTimestamp.containsKey(resourcePath);
+	}
+
+	public void removeResource(String resourcePath) {
+		this.resourceTimestamp.remove(resourcePath);
+		this.resourceHash.remove(resourcePath);
+		this.resourceQuickHash.remove(resourcePath);
+	}
+
+	public boolean isIgnored(String resourcePath, boolean folder) {
+		return this.ignoreRules.isIgnored(resourcePath, folder);
+	}
+
+	/**
+	 * reads the .fluxignore file again, resources that are ignored now are no longer synced,
+	 * returns the resources that were ignored before and are not ignored anymore (they are
+	 * not in the index yet and need to be added like new resources, parents before children)
+	 */
+	public List<String> updateIgnoreRules() throws IOException {
+		IgnoreRules previousRules = this.ignoreRules;
+		this.ignoreRules = readIgnoreRules();
+
+		for (String resourcePath : resourceTimestamp.keySet()) {
+			if (isIgnored(resourcePath, isFolder(resourcePath))) {
+				removeResource(resourcePath);
+			}
+		}
+
+		List<String> unignored = new ArrayList<String>();
+		if (!previousRules.isEmpty()) {
+			collectUnindexed(root, unignored);
+		}
+		return unignored;
+	}
+
+	protected void collectUnindexed(Path folder, List<String> result) throws IOException {
+		DirectoryStream<Path> members = Files.newDirectoryStream(folder);
+		try {
+			for (Path member : members) {
+				String resourcePath = getResourcePath(member);
+				boolean isFolder = Files.isDirectory(member, LinkOption.NOFOLLOW_LINKS);
+
+				if (resourcePath == null || isTempFile(member) || isIgnored(resourcePath, isFolder)
+						|| !(isFolder || Files.isRegularFile(member, LinkOption.NOFOLLOW_LINKS))) {
+					continue;
+				}
+
+				if (!containsResource(resourcePath)) {
+					result.add(resourcePath);
+				}
+				if (isFolder) {
+					collectUnindexed(member, result);
+				}
+			}
+		}
+		finally {
+			members.close();
+		}
+	}
+
+	protected IgnoreRules readIgnoreRules() {
+		Path ignoreFile = root.resolve(IgnoreRules.IGNORE_FILE);
+		if (Files.isRegularFile(ignoreFile)) {
+			try {
+				return IgnoreRules.read(Files.newInputStream(ignoreFile), charset);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return IgnoreRules.NONE;
+	}
+
+	/**
+	 * returns the project relative path (with / as separator) of the file or null,
+	 * if the file is not inside of the project folder
+	 */
+	public String getResourcePath(Path file) {
+		Path absolute = file.toAbsolutePath().normalize();
+		if (!absolute.startsWith(root) || absolute.equals(root)) {
+			return null;
+		}
+		return root.relativize(absolute).toString().replace(File.separatorChar, '/');
+	}
+
+	public Path getFile(String resourcePath) {
+		return root.resolve(resourcePath.replace('/', File.separatorChar));
+	}
+
+	/**
+	 * files that are written by {@link #write(String, byte[], long)} show up under
+	 * a temporary name for a moment
+	 */
+	public static boolean isTempFile(Path file) {
+		return file.getFileName() != null && file.getFileName().toString().endsWith(TEMP_FILE_SUFFIX);
+	}
+
+	public byte[] read(String resourcePath) throws IOException {
+		FileChannel channel = FileChannel.open(getFile(resourcePath), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("file too large: " + resourcePath);
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					break;
+				}
+			}
+			return buffer.position() == buffer.capacity() ? buffer.array() : copyOf(buffer);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * writes the content into a temporary file next to the target and moves it into
+	 * place afterwards, so readers never see a half written file
+	 */
+	public void write(String resourcePath, byte[] content, long timestamp) throws IOException {
+		Path file = getFile(resourcePath);
+		Files.createDirectories(file.getParent());
+
+		Path tempFile = file.resolveSibling("." + file.getFileName() + TEMP_FILE_SUFFIX);
+		FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		finally {
+			channel.close();
+		}
+
+		Files.setLastModifiedTime(tempFile, FileTime.fromMillis(timestamp));
+		try {
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	public boolean isFolderOnDisk(String resourcePath) {
+		return Files.isDirectory(getFile(resourcePath), LinkOption.NOFOLLOW_LINKS);
+	}
+
+	public long getLastModified(String resourcePath) throws IOException {
+		return Files.getLastModifiedTime(getFile(resourcePath), LinkOption.NOFOLLOW_LINKS).toMillis();
+	}
+
+	public void setLastModified(String resourcePath, long timestamp) throws IOException {
+		Files.setLastModifiedTime(getFile(resourcePath), FileTime.fromMillis(timestamp));
+	}
+
+	public void createFolder(String resourcePath, long timestamp) throws IOException {
+		Path folder = getFile(resourcePath);
+		Files.createDirectories(folder);
+		Files.setLastModifiedTime(folder, FileTime.fromMillis(timestamp));
+	}
+
+	/**
+	 * deletes the file or the folder with everything inside of it
+	 */
+	public void delete(String resourcePath) throws IOException {
+		Path file = getFile(resourcePath);
+		if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+			DirectoryStream<Path> members = Files.newDirectoryStream(file);
+			try {
+				for (Path member : members) {
+					delete(resourcePath + "/" + member.getFileName());
+				}
+			}
+			finally {
+				members.close();
+			}
+		}
+		Files.deleteIfExists(file);
+	}
+
+	protected static byte[] copyOf(ByteBuffer buffer) {
+		byte[] result = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(result);
+		return result;
+	}
+
+	/**
+	 * indexes the files of a folder and forks a task for each sub folder
+	 */
+	private class ScanTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path folder;
+
+		public ScanTask(Path folder) {
+			this.folder = folder;
+		}
+
+		@Override
+		protected void compute() {
+			List<ScanTask> subTasks = new ArrayList<ScanTask>();
+
+			try {
+				DirectoryStream<Path> members = Files.newDirectoryStream(folder);
+				try {
+					for (Path member : members) {
+						String resourcePath = getResourcePath(member);
+						boolean isFolder = Files.isDirectory(member, LinkOption.NOFOLLOW_LINKS);
+
+						if (resourcePath == null || isTempFile(member) || isIgnored(resourcePath, isFolder)) {
+							continue;
+						}
+
+						long timestamp = Files.getLastModifiedTime(member, LinkOption.NOFOLLOW_LINKS).toMillis();
+						if (isFolder) {
+							setTimestamp(resourcePath, timestamp);
+							setHash(resourcePath, FOLDER_HASH);
+							subTasks.add(new ScanTask(member));
+						}
+						else if (Files.isRegularFile(member, LinkOption.NOFOLLOW_LINKS)) {
+							try {
+								Hashing.Result hash = Hashing.hash(member.toFile());
+								setHash(resourcePath, hash.getSha1Hex());
+								setQuickHash(resourcePath, hash.getQuickHash(), hash.getLength(), timestamp);
+								setTimestamp(resourcePath, timestamp);
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				}
+				finally {
+					members.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			invokeAll(subTasks);
+		}
+	}
+
+}
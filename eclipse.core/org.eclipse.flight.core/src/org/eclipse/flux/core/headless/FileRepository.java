@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core.headless;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.eclipse.flux.core.AbstractRepository;
+import org.eclipse.flux.core.BlobCache;
+import org.eclipse.flux.core.IMessagingConnector;
+import org.eclipse.flux.core.IgnoreRules;
+import org.eclipse.flux.core.Repository;
+import org.eclipse.flux.core.internal.ChangeDebouncer;
+
+/**
+ * The repository of the headless agent. It speaks the same sync protocol as the
+ * {@link Repository} of the Eclipse plugin (both get it from the {@link AbstractRepository}),
+ * but works on plain folders instead of workspace projects. Local changes are reported
+ * by the {@link FileWatcher}.
+ */
+public class FileRepository extends AbstractRepository<FileProject> {
+
+	private ChangeDebouncer<Path> fileChanges;
+
+	public FileRepository(IMessagingConnector messagingConnector, String user, BlobCache blobCache) {
+		super(messagingConnector, user, blobCache);
+
+		this.fileChanges = new ChangeDebouncer<Path>("Flux file changes", CHANGE_DELAY, new ChangeDebouncer.Handler<Path>() {
+			@Override
+			public void changed(Path file, int kind) {
+				reactToFileChange(file, kind);
+			}
+		});
+	}
+
+	/**
+	 * adds the scanned project to the sync
+	 */
+	public void addProject(FileProject project) {
+		connectProject(project);
+	}
+
+	@Override
+	public void dispose() {
+		this.fileChanges.dispose();
+		super.dispose();
+	}
+
+	@Override
+	protected String getType(FileProject project, String resourcePath) {
+		if (!project.containsResource(resourcePath)) {
+			return null;
+		}
+		return project.isFolder(resourcePath) ? "folder" : "file";
+	}
+
+	@Override
+	protected byte[] read(FileProject project, String resourcePath) throws IOException {
+		return project.read(resourcePath);
+	}
+
+	@Override
+	protected String getCharset(FileProject project, String resourcePath) {
+		return project.getCharset();
+	}
+
+	/**
+	 * the index is updated before the file is written, so the file watcher sees the write as a known state
+	 */
+	@Override
+	protected void write(FileProject project, String resourcePath, long timestamp, String hash, byte[] content) throws IOException {
+		project.write(resourcePath, content, timestamp);
+		sendResourceStored(project, resourcePath, timestamp, hash);
+	}
+
+	@Override
+	protected void createFolder(FileProject project, String resourcePath, long timestamp) throws IOException {
+		project.createFolder(resourcePath, timestamp);
+	}
+
+	@Override
+	protected void setLocalTimestamp(FileProject project, String resourcePath, long timestamp) throws IOException {
+		project.setLastModified(resourcePath, timestamp);
+	}
+
+	/**
+	 * the resources are removed from the index first, so the file watcher doesn't report them back
+	 */
+	@Override
+	protected void delete(FileProject project, String resourcePath) throws IOException {
+		for (String member : project.getMembers(resourcePath)) {
+			keepInCache(project, member);
+			project.removeResource(member);
+		}
+		project.removeResource(resourcePath);
+		project.delete(resourcePath);
+	}
+
+	/**
+	 * collects a change on the disk (kinds are the ones of {@link ChangeDebouncer}),
+	 * bursts of changes to the same file are handled as one change
+	 */
+	public void fileChanged(Path file, int kind) {
+		if (!FileProject.isTempFile(file)) {
+			fileChanges.add(file, kind);
+		}
+	}
+
+	public FileProject findProject(Path file) {
+		for (FileProject project : getProjects()) {
+			if (project.getResourcePath(file) != null) {
+				return project;
+			}
+		}
+		return null;
+	}
+
+	protected void reactToFileChange(Path file, int kind) {
+		FileProject project = findProject(file);
+		if (project == null) {
+			return;
+		}
+
+		String resourcePath = project.getResourcePath(file);
+		boolean exists = Files.exists(file, LinkOption.NOFOLLOW_LINKS);
+		boolean folder = exists ? Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS) : project.isFolder(resourcePath);
+
+		try {
+			if (resourcePath.equals(IgnoreRules.IGNORE_FILE)) {
+				// resources that are no longer ignored are reported as new ones
+				for (String unignored : project.updateIgnoreRules()) {
+					reportResourceAdded(project, unignored, project.getLastModified(unignored), project.isFolderOnDisk(unignored));
+				}
+			}
+			if (project.isIgnored(resourcePath, folder)) {
+				return;
+			}
+
+			if (!exists) {
+				reactOnFileRemoved(project, resourcePath);
+			}
+			else if (!project.containsResource(resourcePath)) {
+				reportResourceAdded(project, resourcePath, Files.getLastModifiedTime(file, LinkOption.NOFOLLOW_LINKS).toMillis(), folder);
+			}
+			else if (!folder) {
+				reportResourceChanged(project, resourcePath, Files.getLastModifiedTime(file, LinkOption.NOFOLLOW_LINKS).toMillis());
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * reports the removed file (or the removed folder and everything that was inside of it)
+	 */
+	protected void reactOnFileRemoved(FileProject project, String resourcePath) {
+		if (!project.containsResource(resourcePath)) {
+			return;
+		}
+
+		List<String> removed = project.getMembers(resourcePath);
+		removed.add(resourcePath);
+		long deletedTimestamp = System.currentTimeMillis();
+
+		for (String removedPath : removed) {
+			project.removeResource(removedPath);
+			reportResourceRemoved(project, removedPath, deletedTimestamp);
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core.headless;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.flux.core.internal.ChangeDebouncer;
+
+/**
+ * Watches the folders of the projects via the {@link WatchService} of the file system
+ * and reports the changes to the repository. Every folder is registered on its own
+ * (the watch service doesn't watch trees), new folders are registered as they appear.
+ */
+public class FileWatcher implements Runnable {
+
+	private final FileRepository repository;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> folders;
+
+	private Thread thread;
+
+	public FileWatcher(FileRepository repository) throws IOException {
+		this.repository = repository;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.folders = new ConcurrentHashMap<WatchKey, Path>();
+	}
+
+	public void start() {
+		thread = new Thread(this, "Flux file watcher");
+		thread.start();
+	}
+
+	public void stop() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void join() throws InterruptedException {
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * watches the project folder and all folders inside of it that are not ignored
+	 */
+	public void watch(FileProject project) throws IOException {
+		register(project, project.getRoot(), false);
+	}
+
+	protected void register(final FileProject project, Path folder, final boolean reportFiles) throws IOException {
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				String resourcePath = project.getResourcePath(dir);
+				if (resourcePath != null && project.isIgnored(resourcePath, true)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+
+				WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+				folders.put(key, dir);
+
+				if (reportFiles) {
+					repository.fileChanged(dir, ChangeDebouncer.ADDED);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				// files that got created in a new folder before it was registered
+				if (reportFiles) {
+					repository.fileChanged(file, ChangeDebouncer.ADDED);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path folder = folders.get(key);
+
+				if (folder != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						handleEvent(folder, event);
+					}
+				}
+
+				if (!key.reset()) {
+					folders.remove(key);
+				}
+			}
+		}
+		catch (ClosedWatchServiceException e) {
+			// stopped
+		}
+		catch (InterruptedException e) {
+			// stopped
+		}
+	}
+
+	protected void handleEvent(Path folder, WatchEvent<?> event) {
+		if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+			// events got lost, so everything below the folder is looked at again
+			rescan(folder);
+			return;
+		}
+
+		Path file = folder.resolve((Path) event.context());
+
+		if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+			repository.fileChanged(file, ChangeDebouncer.ADDED);
+
+			if (Files.isDirectory(file)) {
+				FileProject project = repository.findProject(file);
+				if (project != null) {
+					try {
+						register(project, file, true);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+			repository.fileChanged(file, ChangeDebouncer.CHANGED);
+		}
+		else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+			repository.fileChanged(file, ChangeDebouncer.REMOVED);
+		}
+	}
+
+	protected void rescan(Path folder) {
+		FileProject project = repository.findProject(folder);
+		if (project == null) {
+			project = repository.findProject(folder.resolve("any"));
+		}
+		if (project == null) {
+			return;
+		}
+
+		String folderPath = project.getResourcePath(folder);
+		for (String resourcePath : folderPath != null ? project.getMembers(folderPath) : project.getResourcePaths(null)) {
+			repository.fileChanged(project.getFile(resourcePath), ChangeDebouncer.CHANGED);
+		}
+
+		try {
+			register(project, folder, true);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core.headless;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.eclipse.flux.core.BlobCache;
+import org.eclipse.flux.core.internal.messaging.SocketIOMessagingConnector;
+
+/**
+ * Syncs folders on the disk with Flux without an Eclipse workspace. Every folder
+ * that is given on the command line is synced as a project with the name of the folder:
+ *
+ * <pre>
+ * java -cp ... org.eclipse.flux.core.headless.HeadlessAgent /path/to/project1 /path/to/project2
+ * </pre>
+ *
+ * The same system properties as for the Eclipse plugin apply (flux-host, flux-username,
+ * flux-blob-cache-size), flux-blob-cache sets the folder of the blob cache and
+ * flux-charset the charset of text files.
+ */
+public class HeadlessAgent {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.out.println("usage: HeadlessAgent <project folder>...");
+			System.exit(1);
+		}
+
+		String username = System.getProperty("flux-username", "defaultuser");
+		String charset = System.getProperty("flux-charset", "UTF-8");
+
+		File blobFolder = new File(System.getProperty("flux-blob-cache", System.getProperty("user.home") + "/.flux/blobs"));
+		long blobCacheSize = Long.getLong("flux-blob-cache-size", BlobCache.DEFAULT_MAX_SIZE);
+		BlobCache blobCache = new BlobCache(blobFolder, blobCacheSize);
+
+		SocketIOMessagingConnector messagingConnector = new SocketIOMessagingConnector(username);
+		final FileRepository repository = new FileRepository(messagingConnector, username, blobCache);
+		final FileWatcher watcher = new FileWatcher(repository);
+
+		for (String arg : args) {
+			Path root = Paths.get(arg).toAbsolutePath().normalize();
+			if (!Files.isDirectory(root)) {
+				System.out.println("not a folder: " + root);
+				continue;
+			}
+
+			FileProject project = new FileProject(root.getFileName().toString(), root, charset);
+
+			// the watcher is registered before the scan, so changes during the scan are not lost
+			watcher.watch(project);
+			project.scan();
+			repository.addProject(project);
+
+			System.out.println("syncing " + project.getName() + " (" + root + ")");
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				watcher.stop();
+				repository.dispose();
+			}
+		});
+
+		watcher.start();
+		watcher.join();
+	}
+
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.resources.IResourceDelta;
+
+/**
+ * Collects change events per key and hands them over to the handler once no new
+ * event arrived for the key within the delay. Events for the same key are folded
+ * into their net effect (e.g. added and changed is added, added and removed is
+ * nothing at all), kinds are the ones of {@link IResourceDelta} (also available as
+ * constants here for code that doesn't run inside of Eclipse).
+ */
+public class ChangeDebouncer<K> {
+
+	public interface Handler<K> {
+		public void changed(K key, int kind);
+	}
+
+	public static final int ADDED = IResourceDelta.ADDED;
+	public static final int REMOVED = IResourceDelta.REMOVED;
+	public static final int CHANGED = IResourceDelta.CHANGED;
+
+	private static final int NONE = 0;
+
+	private final String name;
+	private final long delay;
+	private final long maxDelay;
+	private final Handler<K> handler;
+
+	private final Map<K, PendingChange> pending;
+	private ScheduledExecutorService timer;
+	private boolean scheduled;
+
+	public ChangeDebouncer(String name, long delay, Handler<K> handler) {
+		this.name = name;
+		this.delay = delay;
+		this.maxDelay = delay * 10;
+		this.handler = handler;
+		this.pending = new LinkedHashMap<K, PendingChange>();
+	}
+
+	public void add(K key, int kind) {
+		synchronized (pending) {
+			long now = System.currentTimeMillis();
+
+			PendingChange change = pending.get(key);
+			if (change == null) {
+				pending.put(key, new PendingChange(kind, now));
+			}
+			else {
+				change.kind = fold(change.kind, kind);
+				change.lastEvent = now;
+			}
+
+			if (!scheduled) {
+				schedule(delay);
+			}
+		}
+	}
+
+	/**
+	 * hands over all pending changes right away
+	 */
+	public void flush() {
+		dispatch(true);
+	}
+
+	public void dispose() {
+		synchronized (pending) {
+			if (timer != null) {
+				timer.shutdownNow();
+				timer = null;
+			}
+			pending.clear();
+			scheduled = false;
+		}
+	}
+
+	protected void schedule(long wait) {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		scheduled = true;
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				dispatch(false);
+			}
+		}, wait, TimeUnit.MILLISECONDS);
+	}
+
+	protected void dispatch(boolean all) {
+		List<K> keys = new ArrayList<K>();
+		List<Integer> kinds = new ArrayList<Integer>();
+
+		synchronized (pending) {
+			long now = System.currentTimeMillis();
+			long nextDue = Long.MAX_VALUE;
+
+			Iterator<Map.Entry<K, PendingChange>> iterator = pending.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<K, PendingChange> entry = iterator.next();
+				PendingChange change = entry.getValue();
+
+				// a key that keeps changing is handed over after the max delay anyway
+				long due = Math.min(change.lastEvent + delay, change.firstEvent + maxDelay);
+				if (all || due <= now) {
+					if (change.kind != NONE) {
+						keys.add(entry.getKey());
+						kinds.add(change.kind);
+					}
+					iterator.remove();
+				}
+				else {
+					nextDue = Math.min(nextDue, due);
+				}
+			}
+
+			if (!all) {
+				scheduled = false;
+			}
+			if (!scheduled && !pending.isEmpty() && timer != null) {
+				schedule(Math.max(1, nextDue - now));
+			}
+		}
+
+		for (int i = 0; i < keys.size(); i++) {
+			try {
+				handler.changed(keys.get(i), kinds.get(i));
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	protected static int fold(int previous, int next) {
+		switch (previous) {
+		case NONE:
+			return next;
+		case ADDED:
+			return next == REMOVED ? NONE : ADDED;
+		case REMOVED:
+			return next == REMOVED ? REMOVED : CHANGED;
+		default:
+			return next == REMOVED ? REMOVED : CHANGED;
+		}
+	}
+
+	private static class PendingChange {
+		private int kind;
+		private final long firstEvent;
+		private long lastEvent;
+
+		public PendingChange(int kind, long time) {
+			this.kind = kind;
+			this.firstEvent = time;
+			this.lastEvent = time;
+		}
+	}
+
+}
@@ -10,11 +10,9 @@
 *******************************************************************************/
 package org.eclipse.flux.core.internal;
 
+import org.eclipse.core.resources.IMarkerDelta;
 import org.eclipse.core.resources.IResourceChangeEvent;
 import org.eclipse.core.resources.IResourceChangeListener;
-import org.eclipse.core.resources.IResourceDelta;
-import org.eclipse.core.resources.IResourceDeltaVisitor;
-import org.eclipse.core.runtime.CoreException;
 import org.eclipse.flux.core.Repository;
 
 /**
@@ -30,16 +28,9 @@ public class CloudSyncMetadataListener implements IResourceChangeListener{
 
 	@Override
 	public void resourceChanged(IResourceChangeEvent event) {
-		try {
-			event.getDelta().accept(new IResourceDeltaVisitor() {
-				@Override
-				public boolean visit(IResourceDelta delta) throws CoreException {
-					repository.metadataChanged(delta);
-					return true;
-				}
-			});
-		} catch (CoreException e) {
-			e.printStackTrace();
+		IMarkerDelta[] markerDeltas = event.findMarkerDeltas(null, true);
+		if (markerDeltas.length > 0) {
+			repository.metadataChanged(markerDeltas);
 		}
 	}
 
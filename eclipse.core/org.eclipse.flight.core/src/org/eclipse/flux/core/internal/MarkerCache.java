@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IMarkerDelta;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps the JSON form of the markers of recently asked for resources, so the markers
+ * don't need to be looked up and converted again for every request. The snapshots are
+ * kept up to date with the marker deltas, markers are identified by their marker id.
+ */
+public class MarkerCache {
+
+	public static final int DEFAULT_MAX_RESOURCES = 1000;
+
+	// number of times the markers are read again if deltas arrive while they are read
+	private static final int MAX_ATTEMPTS = 3;
+
+	private final int maxResources;
+	private final LinkedHashMap<IResource, Map<Long, JSONObject>> snapshots;
+
+	// counts the deltas for resources without snapshot
+	private long version;
+
+	public MarkerCache() {
+		this(DEFAULT_MAX_RESOURCES);
+	}
+
+	public MarkerCache(int maxResources) {
+		this.maxResources = maxResources;
+		this.snapshots = new LinkedHashMap<IResource, Map<Long, JSONObject>>(64, 0.75f, true);
+	}
+
+	/**
+	 * returns the markers that are attached to the resource itself (ordered by id)
+	 */
+	public JSONArray getMarkers(IResource resource) throws CoreException, JSONException {
+		for (int attempt = 1; ; attempt++) {
+			long startVersion;
+			synchronized (snapshots) {
+				Map<Long, JSONObject> snapshot = snapshots.get(resource);
+				if (snapshot != null) {
+					return new JSONArray(snapshot.values());
+				}
+				startVersion = version;
+			}
+
+			Map<Long, JSONObject> snapshot = new TreeMap<Long, JSONObject>();
+			for (IMarker marker : resource.findMarkers(null, true, IResource.DEPTH_ZERO)) {
+				snapshot.put(marker.getId(), toJSON(marker));
+			}
+
+			synchronized (snapshots) {
+				Map<Long, JSONObject> existing = snapshots.get(resource);
+				if (existing != null) {
+					return new JSONArray(existing.values());
+				}
+
+				// a delta that arrived while the markers were read may be missing in the snapshot,
+				// so the snapshot is cached only if there was none
+				if (version == startVersion) {
+					snapshots.put(resource, snapshot);
+					if (snapshots.size() > maxResources) {
+						Iterator<IResource> eldest = snapshots.keySet().iterator();
+						eldest.next();
+						eldest.remove();
+					}
+					return new JSONArray(snapshot.values());
+				}
+				else if (attempt >= MAX_ATTEMPTS) {
+					return new JSONArray(snapshot.values());
+				}
+			}
+		}
+	}
+
+	/**
+	 * applies the marker delta to the snapshot of its resource (if there is one),
+	 * the marker is the JSON form of an added or changed marker
+	 */
+	public void update(IMarkerDelta delta, JSONObject marker) {
+		synchronized (snapshots) {
+			Map<Long, JSONObject> snapshot = snapshots.get(delta.getResource());
+			if (snapshot != null) {
+				if (delta.getKind() == IResourceDelta.REMOVED) {
+					snapshot.remove(delta.getId());
+				}
+				else {
+					snapshot.put(delta.getId(), marker);
+				}
+			}
+			else {
+				version++;
+			}
+		}
+	}
+
+	/**
+	 * drops the snapshots of the resource and of everything inside of it
+	 */
+	public void remove(IResource resource) {
+		IPath path = resource.getFullPath();
+		synchronized (snapshots) {
+			Iterator<IResource> resources = snapshots.keySet().iterator();
+			while (resources.hasNext()) {
+				if (path.isPrefixOf(resources.next().getFullPath())) {
+					resources.remove();
+				}
+			}
+		}
+	}
+
+	public static JSONObject toJSON(IMarker marker) throws JSONException {
+		JSONObject result = new JSONObject();
+		result.put("id", marker.getId());
+		result.put("description", marker.getAttribute("message", ""));
+		result.put("line", marker.getAttribute("lineNumber", 0));
+		result.put("severity", marker.getAttribute("severity", IMarker.SEVERITY_WARNING) == IMarker.SEVERITY_ERROR ? "error" : "warning");
+		result.put("start", marker.getAttribute("charStart", 0));
+		result.put("end", marker.getAttribute("charEnd", 0));
+		return result;
+	}
+
+}
@@ -104,14 +104,14 @@ public class InitializeServiceEnvironment {
 
 	private void initializeProject(String projectName) {
 		try {
-			// already connected project
-			if (repository.isConnected(projectName))
+			// already connected project (or about to be connected)
+			if (repository.isConnected(projectName) || repository.isConnecting(projectName))
 				return;
 	
 			// project exists in workspace, but is not yet connected
 			IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
 			IProject project = root.getProject(projectName);
-			if (project.exists()) {
+			if (project.exists() && !DownloadProject.isInterrupted(project)) {
 				if (!project.isOpen()) {
 					project.open(null);
 				}
@@ -119,18 +119,27 @@ public class InitializeServiceEnvironment {
 				return;
 			}
 			
-			// project doesn't exist in workspace
+			// project doesn't exist in workspace (or its download got interrupted)
+			final boolean sparse = Boolean.getBoolean("flux-sparse-download");
+
 			DownloadProject downloadProject = new DownloadProject(messagingConnector, projectName, repository.getUsername());
+			downloadProject.setSparse(sparse);
 			downloadProject.run(new CompletionCallback() {
 				@Override
 				public void downloadFailed() {
 				}
 				@Override
+				public void downloadProgress(IProject project, int downloadedFiles, int totalFiles, long bytesPerSecond) {
+				}
+				@Override
 				public void downloadComplete(IProject project) {
-					try {
-						project.build(IncrementalProjectBuilder.FULL_BUILD, null);
-					} catch (CoreException e) {
-						e.printStackTrace();
+					// a sparse project gets built incrementally while its files arrive
+					if (!sparse) {
+						try {
+							project.build(IncrementalProjectBuilder.FULL_BUILD, null);
+						} catch (CoreException e) {
+							e.printStackTrace();
+						}
 					}
 					repository.addProject(project);
 				}
@@ -11,25 +11,47 @@
 package org.eclipse.flux.jdt.services;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.flux.core.IMessagingConnector;
+import org.eclipse.jdt.core.ICompilationUnit;
 import org.eclipse.jdt.core.IProblemRequestor;
+import org.eclipse.jdt.core.WorkingCopyOwner;
 import org.eclipse.jdt.core.compiler.IProblem;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
+ * Sends the problems of a live edit unit after every reconcile. Only the changes to the
+ * problems that were sent last time are sent (the problems that got added and the ids of
+ * the ones that got removed), nothing is sent when the problems are the same. The offsets
+ * of the problems that were sent are moved along with the edits, so a problem is the same
+ * if it has the same id, arguments and (moved) position. Every now and then all problems
+ * are sent, so that editors that missed a change catch up.
+ *
  * @author Martin Lippert
  */
 public class LiveEditProblemRequestor implements IProblemRequestor {
 
+	/**
+	 * number of changes after which all problems are sent again
+	 */
+	public static final int SNAPSHOT_INTERVAL = 20;
+
 	private IMessagingConnector messagingConnector;
 	private String resourcePath;
 	private List<IProblem> problems;
 	private String username;
 	private String projectName;
 
+	private List<PublishedProblem> published;
+	private List<int[]> pendingEdits;
+	private int nextProblemID;
+	private int sequence;
+	private boolean snapshotRequested;
+
 	public LiveEditProblemRequestor(IMessagingConnector messagingConnector, String username, String projectName, String resourcePath) {
 		this.messagingConnector = messagingConnector;
 		this.username = username;
@@ -37,21 +59,52 @@ public class LiveEditProblemRequestor implements IProblemRequestor {
 		this.resourcePath = resourcePath;
 
 		this.problems = new ArrayList<IProblem>();
+		this.published = new ArrayList<PublishedProblem>();
+		this.snapshotRequested = true;
+	}
+
+	/**
+	 * returns the problem requestor of the live edit unit, or null
+	 */
+	@SuppressWarnings("deprecation")
+	public static LiveEditProblemRequestor getProblemRequestor(ICompilationUnit unit) {
+		WorkingCopyOwner owner = unit.getOwner();
+		if (owner != null) {
+			IProblemRequestor problemRequestor = owner.getProblemRequestor(unit);
+			if (problemRequestor instanceof LiveEditProblemRequestor) {
+				return (LiveEditProblemRequestor) problemRequestor;
+			}
+		}
+		return null;
 	}
 
 	@Override
-	public void acceptProblem(IProblem problem) {
+	public synchronized void acceptProblem(IProblem problem) {
 		this.problems.add(problem);
 	}
 
 	@Override
-	public void beginReporting() {
+	public synchronized void beginReporting() {
 		this.problems.clear();
 	}
 
 	@Override
-	public void endReporting() {
-		sendMarkers((IProblem[]) this.problems.toArray(new IProblem[this.problems.size()]));
+	public synchronized void endReporting() {
+		List<PublishedProblem> reported = new ArrayList<PublishedProblem>();
+		for (IProblem problem : this.problems) {
+			PublishedProblem reportedProblem = new PublishedProblem(problem);
+			if (pendingEdits != null) {
+				// the problems belong to the content at the start of the reconcile
+				for (int[] edit : pendingEdits) {
+					reportedProblem.modelChanged(edit[0], edit[1], edit[2]);
+				}
+			}
+			reported.add(reportedProblem);
+		}
+		this.problems.clear();
+		this.pendingEdits = null;
+
+		publish(reported);
 	}
 
 	@Override
@@ -59,16 +112,83 @@ public class LiveEditProblemRequestor implements IProblemRequestor {
 		return true;
 	}
 
-	private void sendMarkers(IProblem[] problems) {
-		String problemsJSON = toJSON(problems);
+	/**
+	 * the next reconcile sends all problems
+	 */
+	public synchronized void requestSnapshot() {
+		this.snapshotRequested = true;
+	}
+
+	/**
+	 * the problems that get reported next belong to the content of the unit at this point,
+	 * edits that happen until then are applied to them
+	 */
+	public synchronized void reconcileStarted() {
+		this.pendingEdits = new ArrayList<int[]>();
+	}
+
+	/**
+	 * moves the problems that were sent along with the edit
+	 */
+	public synchronized void modelChanged(int offset, int removedCharacterCount, int addedCharacterCount) {
+		for (PublishedProblem problem : published) {
+			problem.modelChanged(offset, removedCharacterCount, addedCharacterCount);
+		}
+		if (pendingEdits != null) {
+			pendingEdits.add(new int[] {offset, removedCharacterCount, addedCharacterCount});
+		}
+	}
+
+	protected void publish(List<PublishedProblem> reported) {
+		Map<String, PublishedProblem> previous = new HashMap<String, PublishedProblem>();
+		Map<String, Integer> occurrences = new HashMap<String, Integer>();
+		for (PublishedProblem problem : published) {
+			previous.put(getUniqueKey(problem, occurrences), problem);
+		}
+
+		List<PublishedProblem> current = new ArrayList<PublishedProblem>();
+		List<PublishedProblem> added = new ArrayList<PublishedProblem>();
+		occurrences.clear();
+		for (PublishedProblem problem : reported) {
+			PublishedProblem same = previous.remove(getUniqueKey(problem, occurrences));
+			if (same != null) {
+				same.line = problem.line;
+				current.add(same);
+			}
+			else {
+				problem.id = nextProblemID++;
+				current.add(problem);
+				added.add(problem);
+			}
+		}
+		this.published = current;
+
+		if (!snapshotRequested && added.isEmpty() && previous.isEmpty()) {
+			return;
+		}
+		boolean snapshot = snapshotRequested || (sequence + 1) % SNAPSHOT_INTERVAL == 0;
+
 		try {
-			JSONArray array = new JSONArray(problemsJSON);
 			JSONObject message = new JSONObject();
 			message.put("username", this.username);
 			message.put("project", this.projectName);
 			message.put("resource", this.resourcePath);
-			message.put("problems", array);
-			
+			message.put("sequence", ++sequence);
+
+			if (snapshot) {
+				message.put("problems", toJSON(current));
+			}
+			else {
+				JSONArray removed = new JSONArray();
+				for (PublishedProblem problem : previous.values()) {
+					removed.put(problem.id);
+				}
+				message.put("previousSequence", sequence - 1);
+				message.put("added", toJSON(added));
+				message.put("removed", removed);
+			}
+			snapshotRequested = false;
+
 			messagingConnector.send("liveMetadataChanged", message);
 			System.out.println("livemetadata transmitted");
 		} catch (Exception e) {
@@ -76,30 +196,85 @@ public class LiveEditProblemRequestor implements IProblemRequestor {
 		}
 	}
 
-	private String toJSON(IProblem[] problems) {
-		StringBuilder result = new StringBuilder();
-		boolean flag = false;
-		result.append("[");
-		for (IProblem problem : problems) {
-			if (flag) {
-				result.append(",");
+	/**
+	 * the key of the problem, numbered if the same problem shows up more than once
+	 */
+	private String getUniqueKey(PublishedProblem problem, Map<String, Integer> occurrences) {
+		String key = problem.getKey();
+		Integer count = occurrences.get(key);
+		occurrences.put(key, count == null ? 1 : count + 1);
+		return count == null ? key : key + "#" + count;
+	}
+
+	private JSONArray toJSON(List<PublishedProblem> problems) throws Exception {
+		JSONArray result = new JSONArray();
+		for (PublishedProblem problem : problems) {
+			JSONObject json = new JSONObject();
+			json.put("id", problem.id);
+			json.put("description", problem.description);
+			json.put("line", problem.line);
+			json.put("severity", problem.error ? "error" : "warning");
+			json.put("start", problem.start);
+			json.put("end", problem.end);
+			result.put(json);
+		}
+		return result;
+	}
+
+	private static class PublishedProblem {
+		private final int problemID;
+		private final String[] arguments;
+		private final String description;
+		private final boolean error;
+		private int line;
+		private int start;
+		private int end;
+		private boolean valid;
+		private int id;
+
+		public PublishedProblem(IProblem problem) {
+			this.problemID = problem.getID();
+			this.arguments = problem.getArguments();
+			this.description = problem.getMessage();
+			this.error = problem.isError();
+			this.line = problem.getSourceLineNumber();
+			this.start = problem.getSourceStart();
+			this.end = problem.getSourceEnd() + 1;
+			this.valid = true;
+		}
+
+		/**
+		 * problems behind the edit move, problems that overlap with the edit are not the same anymore
+		 */
+		public void modelChanged(int offset, int removedCharacterCount, int addedCharacterCount) {
+			if (end <= offset) {
+				return;
+			}
+			else if (start >= offset + removedCharacterCount) {
+				start += addedCharacterCount - removedCharacterCount;
+				end += addedCharacterCount - removedCharacterCount;
 			}
+			else {
+				valid = false;
+			}
+		}
 
-			result.append("{");
-			result.append("\"description\":" + JSONObject.quote(problem.getMessage()));
-			result.append(",\"line\":" + problem.getSourceLineNumber());
-			result.append(",\"severity\":\"" + (problem.isError() ? "error" : "warning") + "\"");
-			result.append(",\"start\":" + problem.getSourceStart());
-			
-			int end = problem.getSourceEnd() + 1;
-			
-			result.append(",\"end\":" + end);
-			result.append("}");
-
-			flag = true;
+		public String getKey() {
+			StringBuilder key = new StringBuilder();
+			key.append(problemID).append(':').append(error).append(':');
+			if (valid) {
+				key.append(start).append('-').append(end);
+			}
+			else {
+				key.append("changed@").append(System.identityHashCode(this));
+			}
+			if (arguments != null) {
+				for (String argument : arguments) {
+					key.append('\u0000').append(argument);
+				}
+			}
+			return key.toString();
 		}
-		result.append("]");
-		return result.toString();
 	}
 
 }
@@ -10,10 +10,21 @@
 *******************************************************************************/
 package org.eclipse.flux.jdt.services;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IMarkerDelta;
 import org.eclipse.core.resources.IProject;
@@ -26,10 +37,14 @@ import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.flux.core.CallbackIDAwareMessageHandler;
+import org.eclipse.flux.core.ConnectedProject;
+import org.eclipse.flux.core.Hashing;
 import org.eclipse.flux.core.IConnectionListener;
 import org.eclipse.flux.core.ILiveEditConnector;
 import org.eclipse.flux.core.IMessagingConnector;
 import org.eclipse.flux.core.IRepositoryListener;
+import org.eclipse.flux.core.LiveDocument;
+import org.eclipse.flux.core.LiveEdit;
 import org.eclipse.flux.core.LiveEditCoordinator;
 import org.eclipse.flux.core.Repository;
 import org.eclipse.jdt.core.IBuffer;
@@ -43,17 +58,38 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
+ * Keeps a JDT working copy for every resource that is edited live. The number of working copies
+ * is bounded: working copies that were not used for a while and the least recently used ones
+ * beyond the max number are discarded. An evicted unit is created again (with the live content
+ * the live edit coordinator keeps) as soon as it is edited or asked for.
+ *
  * @author Martin Lippert
  */
 public class LiveEditUnits {
 	
 	private static final String LIVE_EDIT_CONNECTOR_ID = "JDT-Service-Live-Edit-Connector";
 	private static int GET_LIVE_RESOURCES_CALLBACK = "LiveEditUnits - getLiveResourcesCallback".hashCode();
+
+	public static final int MAX_LIVE_UNITS = 100;
+	public static final long MAX_IDLE_TIME = 15 * 60 * 1000;
+
+	private static final int MAX_EVICTED_UNITS = 1000;
+	private static final long EVICTION_INTERVAL = 60 * 1000;
 	
 	private ConcurrentMap<String, ICompilationUnit> liveEditUnits;
+	private ConcurrentMap<String, Long> lastAccess;
+	private Map<String, Boolean> evictedUnits;
+	private ScheduledExecutorService evictionTimer;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong restoreCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
 	private Repository repository;
 	private IMessagingConnector messagingConnector;
 	private LiveEditCoordinator liveEditCoordinator;
+	private ILiveEditConnector liveEditConnector;
+	private ReconcileScheduler reconcileScheduler;
 	
 	public LiveEditUnits(IMessagingConnector messagingConnector, LiveEditCoordinator liveEditCoordinator, Repository repository) {
 		this.messagingConnector = messagingConnector;
@@ -61,16 +97,40 @@ public class LiveEditUnits {
 		this.repository = repository;
 
 		this.liveEditUnits = new ConcurrentHashMap<String, ICompilationUnit>();
+		this.lastAccess = new ConcurrentHashMap<String, Long>();
+		this.evictedUnits = new LinkedHashMap<String, Boolean>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > MAX_EVICTED_UNITS;
+			}
+		};
+		this.reconcileScheduler = new ReconcileScheduler();
+
+		this.evictionTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Flux live units");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.evictionTimer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdleUnits();
+			}
+		}, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
 		
-		ILiveEditConnector liveEditConnector = new ILiveEditConnector() {
+		this.liveEditConnector = new ILiveEditConnector() {
 			@Override
 			public String getConnectorID() {
 				return LIVE_EDIT_CONNECTOR_ID;
 			}
 
 			@Override
-			public void liveEditingEvent(String username, String resourcePath, int offset, int removeCount, String newText) {
-				modelChanged(username, resourcePath, offset, removeCount, newText);
+			public void liveEditingEvent(LiveEdit edit) {
+				modelChanged(edit.getUsername(), edit.getLiveEditID(), edit.getOffset(), edit.getRemovedCharCount(), edit.getAddedCharacters());
 			}
 
 			@Override
@@ -84,7 +144,13 @@ public class LiveEditUnits {
 				updateLiveUnit(requestSenderID, callbackID, username, projectName, resourcePath, savePointHash, savePointTimestamp, content);
 			}
 		};
-		liveEditCoordinator.addLiveEditConnector(liveEditConnector);
+
+		// only the live edits of connected projects are of interest
+		for (IProject project : ResourcesPlugin.getWorkspace().getRoot().getProjects()) {
+			if (repository.isConnected(project)) {
+				liveEditCoordinator.addProjectInterest(liveEditConnector, project.getName());
+			}
+		}
 		
 		this.messagingConnector.addConnectionListener(new IConnectionListener() {
 			@Override
@@ -100,10 +166,13 @@ public class LiveEditUnits {
 		this.repository.addRepositoryListener(new IRepositoryListener() {
 			@Override
 			public void projectConnected(IProject project) {
+				LiveEditUnits.this.liveEditCoordinator.addProjectInterest(liveEditConnector, project.getName());
 				startupConnectedProject(project);
 			}
 			@Override
 			public void projectDisconnected(IProject project) {
+				LiveEditUnits.this.liveEditCoordinator.removeProjectInterest(liveEditConnector, project.getName());
+				discardLiveUnits(project.getName() + "/");
 			}
 		});
 		
@@ -161,21 +230,54 @@ public class LiveEditUnits {
 	}
 	
 	protected void disconnect() {
+		// the live units are started again (with the live content) once connected again
+		discardLiveUnits("");
 	}
 
 	public boolean isLiveEditResource(String username, String resourcePath) {
-		return repository.getUsername().equals(username) && liveEditUnits.containsKey(resourcePath);
+		return repository.getUsername().equals(username) && (liveEditUnits.containsKey(resourcePath) || isEvicted(resourcePath));
 	}
 
 	public ICompilationUnit getLiveEditUnit(String username, String resourcePath) {
 		if (repository.getUsername().equals(username)) {
-			return liveEditUnits.get(resourcePath);
+			ICompilationUnit unit = liveEditUnits.get(resourcePath);
+			if (unit != null) {
+				hitCount.incrementAndGet();
+				touch(resourcePath);
+				return unit;
+			}
+			return restoreLiveUnit(resourcePath);
 		}
 		else {
 			return null;
 		}
 	}
 
+	/**
+	 * number of requests and edits that found their working copy
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * number of working copies that were created again after they got evicted
+	 */
+	public long getRestoreCount() {
+		return restoreCount.get();
+	}
+
+	/**
+	 * number of working copies that got discarded because they were idle or beyond the max number
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public int getLiveUnitCount() {
+		return liveEditUnits.size();
+	}
+
 	protected void startupLiveUnits(JSONObject message) {
 		try {
 			JSONArray liveUnits = message.getJSONArray("liveEditUnits");
@@ -192,8 +294,20 @@ public class LiveEditUnits {
 				if (repository.getUsername().equals(username) && !liveEditUnits.containsKey(resourcePath)) {
 					startLiveUnit(null, 0, username, resourcePath, hash, timestamp);
 				}
+
+				// the content of the working copy becomes the live content of the coordinator
+				ICompilationUnit unit = liveEditUnits.get(resourcePath);
+				String content = null;
+				if (unit != null) {
+					try {
+						content = unit.getBuffer().getContents();
+					}
+					catch (JavaModelException e) {
+						e.printStackTrace();
+					}
+				}
 				
-				this.liveEditCoordinator.sendLiveEditStartedMessage(LIVE_EDIT_CONNECTOR_ID, username, projectName, resource, hash, timestamp);
+				this.liveEditCoordinator.sendLiveEditStartedMessage(LIVE_EDIT_CONNECTOR_ID, username, projectName, resource, hash, timestamp, content);
 			}
 		}
 		catch (JSONException e) {
@@ -209,46 +323,225 @@ public class LiveEditUnits {
 			
 			ICompilationUnit liveUnit = liveEditUnits.get(resourcePath);
 			if (liveUnit != null) {
-				try {
-					String liveContent = liveUnit.getBuffer().getContents();
-					String liveUnitHash = DigestUtils.shaHex(liveContent);
-					if (!liveUnitHash.equals(hash)) {
-						liveEditCoordinator.sendLiveEditStartedResponse(LIVE_EDIT_CONNECTOR_ID, requestSenderID, callbackID, username, projectName, relativeResourcePath, hash, timestamp, liveContent);
+				hitCount.incrementAndGet();
+				touch(resourcePath);
+				// the coordinator answers with the live content it keeps
+				if (liveEditCoordinator.getLiveDocument(projectName, relativeResourcePath) == null) {
+					try {
+						String liveContent = liveUnit.getBuffer().getContents();
+						String liveUnitHash = Hashing.sha1Hex(liveContent);
+						if (!liveUnitHash.equals(hash)) {
+							liveEditCoordinator.sendLiveEditStartedResponse(LIVE_EDIT_CONNECTOR_ID, requestSenderID, callbackID, username, projectName, relativeResourcePath, hash, timestamp, liveContent);
+						}
+					}
+					catch (JavaModelException e) {
+						e.printStackTrace();
 					}
 				}
-				catch (JavaModelException e) {
-					e.printStackTrace();
-				}
+			}
+			else if (isEvicted(resourcePath)) {
+				liveUnit = restoreLiveUnit(resourcePath);
 			}
 			else {
-				IProject project = ResourcesPlugin.getWorkspace().getRoot().getProject(projectName);
-				if (project != null && repository.isConnected(project)) {
-					IFile file = project.getFile(relativeResourcePath);
-					if (file != null) {
-						try {
-							final LiveEditProblemRequestor liveEditProblemRequestor = new LiveEditProblemRequestor(messagingConnector, username, projectName, relativeResourcePath);
-							liveUnit = ((ICompilationUnit) JavaCore.create(file)).getWorkingCopy(new WorkingCopyOwner() {
-								@Override
-								public IProblemRequestor getProblemRequestor(ICompilationUnit workingCopy) {
-									return liveEditProblemRequestor;
-								}
-							}, new NullProgressMonitor());
-							liveEditUnits.put(resourcePath, liveUnit);
-						} catch (JavaModelException e) {
-							e.printStackTrace();
-						}
-					}
-				}
+				liveUnit = createLiveUnit(username, projectName, relativeResourcePath);
 			}
 			
 			if (liveUnit != null) {
+				// the new editor knows nothing about the problems so far
+				LiveEditProblemRequestor problemRequestor = LiveEditProblemRequestor.getProblemRequestor(liveUnit);
+				if (problemRequestor != null) {
+					problemRequestor.requestSnapshot();
+				}
+				reconcile(resourcePath, liveUnit, 0);
+			}
+		}
+	}
+
+	protected ICompilationUnit createLiveUnit(String username, String projectName, String relativeResourcePath) {
+		IProject project = ResourcesPlugin.getWorkspace().getRoot().getProject(projectName);
+		if (project != null && repository.isConnected(project)) {
+			IFile file = project.getFile(relativeResourcePath);
+			if (file != null) {
+				if (!file.exists()) {
+					// the file is still waiting to be fetched, somebody needs it now
+					repository.prioritize(projectName, relativeResourcePath);
+				}
 				try {
-					liveUnit.reconcile(ICompilationUnit.NO_AST, true, null, null);
+					final LiveEditProblemRequestor liveEditProblemRequestor = new LiveEditProblemRequestor(messagingConnector, username, projectName, relativeResourcePath);
+					ICompilationUnit liveUnit = ((ICompilationUnit) JavaCore.create(file)).getWorkingCopy(new WorkingCopyOwner() {
+						@Override
+						public IProblemRequestor getProblemRequestor(ICompilationUnit workingCopy) {
+							return liveEditProblemRequestor;
+						}
+					}, new NullProgressMonitor());
+
+					String resourcePath = projectName + "/" + relativeResourcePath;
+					liveEditUnits.put(resourcePath, liveUnit);
+					touch(resourcePath);
+					evictLeastRecentlyUsed();
+
+					// the types it refers to are needed to reconcile it
+					repository.prefetch(projectName, relativeResourcePath);
+					return liveUnit;
 				} catch (JavaModelException e) {
 					e.printStackTrace();
 				}
 			}
 		}
+		return null;
+	}
+
+	/**
+	 * creates the working copy of an evicted unit again, with the live content of the coordinator
+	 * (or with the content of the file, the live content is asked for then)
+	 */
+	protected ICompilationUnit restoreLiveUnit(String resourcePath) {
+		synchronized (evictedUnits) {
+			if (evictedUnits.remove(resourcePath) == null) {
+				return null;
+			}
+		}
+
+		String projectName = resourcePath.substring(0, resourcePath.indexOf('/'));
+		String relativeResourcePath = resourcePath.substring(projectName.length() + 1);
+
+		ICompilationUnit liveUnit = createLiveUnit(repository.getUsername(), projectName, relativeResourcePath);
+		if (liveUnit == null) {
+			return null;
+		}
+		restoreCount.incrementAndGet();
+
+		LiveDocument liveDocument = liveEditCoordinator.getLiveDocument(projectName, relativeResourcePath);
+		if (liveDocument != null) {
+			try {
+				liveUnit.getBuffer().setContents(liveDocument.getText());
+			}
+			catch (JavaModelException e) {
+				e.printStackTrace();
+			}
+		}
+		else {
+			ConnectedProject connectedProject = repository.getProject(projectName);
+			if (connectedProject != null && connectedProject.containsResource(relativeResourcePath)) {
+				liveEditCoordinator.sendLiveEditStartedMessage(LIVE_EDIT_CONNECTOR_ID, repository.getUsername(), projectName, relativeResourcePath,
+						connectedProject.getHash(relativeResourcePath), connectedProject.getTimestamp(relativeResourcePath));
+			}
+		}
+
+		reconcile(resourcePath, liveUnit, 0);
+		return liveUnit;
+	}
+
+	/**
+	 * reconciles the unit, unless it got evicted in the meantime (it isn't evicted while the
+	 * reconcile is scheduled or running)
+	 */
+	protected void reconcile(String resourcePath, ICompilationUnit unit, long delay) {
+		synchronized (unit) {
+			if (liveEditUnits.get(resourcePath) == unit) {
+				reconcileScheduler.schedule(unit, delay);
+			}
+		}
+	}
+
+	protected void touch(String resourcePath) {
+		lastAccess.put(resourcePath, System.currentTimeMillis());
+	}
+
+	protected boolean isEvicted(String resourcePath) {
+		synchronized (evictedUnits) {
+			return evictedUnits.containsKey(resourcePath);
+		}
+	}
+
+	protected void evictIdleUnits() {
+		long idleSince = System.currentTimeMillis() - MAX_IDLE_TIME;
+		for (Map.Entry<String, Long> entry : lastAccess.entrySet()) {
+			if (entry.getValue() < idleSince) {
+				evict(entry.getKey());
+			}
+		}
+	}
+
+	protected void evictLeastRecentlyUsed() {
+		if (liveEditUnits.size() <= MAX_LIVE_UNITS) {
+			return;
+		}
+
+		final Map<String, Long> accessTimes = new HashMap<String, Long>(lastAccess);
+		List<String> resourcePaths = new ArrayList<String>(accessTimes.keySet());
+		Collections.sort(resourcePaths, new Comparator<String>() {
+			@Override
+			public int compare(String path1, String path2) {
+				return accessTimes.get(path1).compareTo(accessTimes.get(path2));
+			}
+		});
+
+		// the units that are in use right now are skipped
+		for (String resourcePath : resourcePaths) {
+			if (liveEditUnits.size() <= MAX_LIVE_UNITS) {
+				break;
+			}
+			evict(resourcePath);
+		}
+	}
+
+	/**
+	 * discards the working copy, it is created again when needed. A unit that is being edited
+	 * or that has a reconcile scheduled or running is not evicted.
+	 */
+	protected boolean evict(String resourcePath) {
+		ICompilationUnit unit = liveEditUnits.get(resourcePath);
+		if (unit == null) {
+			return false;
+		}
+
+		synchronized (unit) {
+			if (liveEditUnits.get(resourcePath) != unit || reconcileScheduler.isBusy(unit) || !discard(resourcePath)) {
+				return false;
+			}
+			synchronized (evictedUnits) {
+				evictedUnits.put(resourcePath, Boolean.TRUE);
+			}
+		}
+		evictionCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * discards the working copies of the resources whose path starts with the prefix for good
+	 */
+	protected void discardLiveUnits(String prefix) {
+		List<String> resourcePaths = new ArrayList<String>(liveEditUnits.keySet());
+		for (String resourcePath : resourcePaths) {
+			if (resourcePath.startsWith(prefix)) {
+				discard(resourcePath);
+			}
+		}
+		synchronized (evictedUnits) {
+			for (String resourcePath : new ArrayList<String>(evictedUnits.keySet())) {
+				if (resourcePath.startsWith(prefix)) {
+					evictedUnits.remove(resourcePath);
+				}
+			}
+		}
+	}
+
+	protected boolean discard(String resourcePath) {
+		lastAccess.remove(resourcePath);
+		ICompilationUnit unit = liveEditUnits.remove(resourcePath);
+		if (unit == null) {
+			return false;
+		}
+
+		reconcileScheduler.cancel(unit);
+		try {
+			unit.discardWorkingCopy();
+		}
+		catch (JavaModelException e) {
+			e.printStackTrace();
+		}
+		return true;
 	}
 	
 	protected void updateLiveUnit(String requestSenderID, int callbackID, String username, String projectName, String resource, String savePointHash, long savePointTimestamp, String remoteContent) {
@@ -257,38 +550,72 @@ public class LiveEditUnits {
 			
 			ICompilationUnit liveUnit = liveEditUnits.get(resourcePath);
 			if (liveUnit != null) {
-				try {
-					String liveContent = liveUnit.getBuffer().getContents();
-					String liveUnitHash = DigestUtils.shaHex(liveContent);
-
-					String remoteContentHash = DigestUtils.shaHex(remoteContent);
-					if (!liveUnitHash.equals(remoteContentHash)) {
-						liveUnit.getBuffer().setContents(remoteContent);
-						liveUnit.reconcile(ICompilationUnit.NO_AST, true, null, null);
+				synchronized (liveUnit) {
+					if (liveEditUnits.get(resourcePath) != liveUnit) {
+						// evicted in the meantime, it gets the live content when it is restored
+						return;
+					}
+					try {
+						String liveContent = liveUnit.getBuffer().getContents();
+						if (!liveContent.equals(remoteContent)) {
+							liveUnit.getBuffer().setContents(remoteContent);
+							reconcileScheduler.schedule(liveUnit, 0);
+						}
+					}
+					catch (JavaModelException e) {
+						e.printStackTrace();
 					}
-				}
-				catch (JavaModelException e) {
-					e.printStackTrace();
 				}
 			}
 		}
 	}
 
 	protected void modelChanged(String username, String resourcePath, int offset, int removedCharacterCount, String newText) {
-		if (repository.getUsername().equals(username) && liveEditUnits.containsKey(resourcePath)) {
+		if (!repository.getUsername().equals(username)) {
+			return;
+		}
+
+		ICompilationUnit unit = liveEditUnits.get(resourcePath);
+		if (unit != null && applyEdit(resourcePath, unit, offset, removedCharacterCount, newText)) {
+			return;
+		}
+
+		if (isEvicted(resourcePath)) {
+			// the restored unit has the live content of the coordinator, this edit is part of it already
+			restoreLiveUnit(resourcePath);
+		}
+	}
+
+	/**
+	 * applies the edit to the working copy, returns false if the unit got evicted in the meantime
+	 */
+	protected boolean applyEdit(String resourcePath, ICompilationUnit unit, int offset, int removedCharacterCount, String newText) {
+		synchronized (unit) {
+			if (liveEditUnits.get(resourcePath) != unit) {
+				return false;
+			}
+
 			System.out.println("live edit compilation unit found");
-			ICompilationUnit unit = liveEditUnits.get(resourcePath);
+			hitCount.incrementAndGet();
+			touch(resourcePath);
 			try {
 				IBuffer buffer = unit.getBuffer();
 				buffer.replace(offset, removedCharacterCount, newText);
 
+				LiveEditProblemRequestor problemRequestor = LiveEditProblemRequestor.getProblemRequestor(unit);
+				if (problemRequestor != null) {
+					problemRequestor.modelChanged(offset, removedCharacterCount, newText.length());
+				}
+
+				// the edits are applied right away, the reconcile waits for a pause in the edits
 				if (removedCharacterCount > 0 || newText.length() > 0) {
-					unit.reconcile(ICompilationUnit.NO_AST, true, null, null);
+					reconcileScheduler.schedule(unit);
 				}
 
 			} catch (JavaModelException e) {
 				e.printStackTrace();
 			}
+			return true;
 		}
 	}
 	
@@ -299,13 +626,10 @@ public class LiveEditUnits {
 			IResource resource = delta.getResource();
 			String resourcePath = project.getName() + "/" + resource.getProjectRelativePath().toString();
 			
-			ICompilationUnit unit = getLiveEditUnit(repository.getUsername(), resourcePath);
+			// evicted units are not restored for marker changes (e.g. of a full build)
+			ICompilationUnit unit = liveEditUnits.get(resourcePath);
 			if (unit != null) {
-				try {
-					unit.reconcile(ICompilationUnit.NO_AST, true, null, null);
-				} catch (JavaModelException e) {
-					e.printStackTrace();
-				}
+				reconcile(resourcePath, unit, ReconcileScheduler.DEFAULT_DELAY);
 			}
 		}
 	}
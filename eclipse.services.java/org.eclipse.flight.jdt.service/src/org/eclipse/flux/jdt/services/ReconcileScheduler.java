@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.jdt.services;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.JavaModelException;
+
+/**
+ * Reconciles the live edit units in the background. A unit is reconciled once no new
+ * request for it arrived within a short delay, so a burst of edits results in a single
+ * reconcile. A reconcile that is still running when a new request arrives is outdated,
+ * it gets cancelled via its progress monitor and the unit is reconciled again afterwards.
+ *
+ * Different units are reconciled in parallel on a small pool of threads, a single unit
+ * is never reconciled by two threads at the same time.
+ */
+public class ReconcileScheduler {
+
+	/**
+	 * time (in ms) without new edits after which a unit is reconciled
+	 */
+	public static final long DEFAULT_DELAY = 200;
+
+	private final ScheduledExecutorService executor;
+	private final Map<ICompilationUnit, UnitState> units;
+
+	public ReconcileScheduler() {
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+		this.executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Flux reconcile");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.units = new HashMap<ICompilationUnit, UnitState>();
+	}
+
+	public void schedule(ICompilationUnit unit) {
+		schedule(unit, DEFAULT_DELAY);
+	}
+
+	/**
+	 * reconciles the unit after the delay, unless another request for the unit arrives in the
+	 * meantime (the delay starts again then)
+	 */
+	public void schedule(final ICompilationUnit unit, long delay) {
+		synchronized (units) {
+			UnitState state = units.get(unit);
+			if (state == null) {
+				state = new UnitState();
+				units.put(unit, state);
+			}
+
+			if (state.monitor != null) {
+				state.monitor.setCanceled(true);
+			}
+			if (state.future != null) {
+				state.future.cancel(false);
+			}
+
+			final long request = ++state.lastRequest;
+			state.future = executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					reconcile(unit, request);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * forgets about the unit, a reconcile that is running gets cancelled
+	 */
+	public void cancel(ICompilationUnit unit) {
+		synchronized (units) {
+			UnitState state = units.remove(unit);
+			if (state != null) {
+				if (state.monitor != null) {
+					state.monitor.setCanceled(true);
+				}
+				if (state.future != null) {
+					state.future.cancel(false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * returns true if a reconcile of the unit is scheduled or running
+	 */
+	public boolean isBusy(ICompilationUnit unit) {
+		synchronized (units) {
+			return units.containsKey(unit);
+		}
+	}
+
+	public void dispose() {
+		synchronized (units) {
+			for (ICompilationUnit unit : units.keySet().toArray(new ICompilationUnit[units.size()])) {
+				cancel(unit);
+			}
+		}
+		executor.shutdownNow();
+	}
+
+	protected void reconcile(ICompilationUnit unit, long request) {
+		NullProgressMonitor monitor = new NullProgressMonitor();
+
+		synchronized (units) {
+			UnitState state = units.get(unit);
+			if (state == null || state.lastRequest != request) {
+				// cancelled or superseded by a newer request
+				return;
+			}
+
+			state.future = null;
+			if (state.monitor != null) {
+				// the outdated reconcile didn't see the cancellation yet, this one runs after it
+				state.rerun = true;
+				return;
+			}
+			state.monitor = monitor;
+		}
+
+		LiveEditProblemRequestor problemRequestor = LiveEditProblemRequestor.getProblemRequestor(unit);
+		if (problemRequestor != null) {
+			problemRequestor.reconcileStarted();
+		}
+
+		try {
+			unit.reconcile(ICompilationUnit.NO_AST, true, null, monitor);
+		}
+		catch (OperationCanceledException e) {
+			// a newer edit arrived, the next reconcile is scheduled already
+		}
+		catch (JavaModelException e) {
+			e.printStackTrace();
+		}
+		finally {
+			finished(unit, monitor);
+		}
+	}
+
+	protected void finished(ICompilationUnit unit, NullProgressMonitor monitor) {
+		synchronized (units) {
+			UnitState state = units.get(unit);
+			if (state == null || state.monitor != monitor) {
+				return;
+			}
+
+			state.monitor = null;
+			if (state.rerun) {
+				state.rerun = false;
+				schedule(unit, 0);
+			}
+			else if (state.future == null) {
+				units.remove(unit);
+			}
+		}
+	}
+
+	private static class UnitState {
+		private ScheduledFuture<?> future;
+		private NullProgressMonitor monitor;
+		private long lastRequest;
+		private boolean rerun;
+	}
+
+}
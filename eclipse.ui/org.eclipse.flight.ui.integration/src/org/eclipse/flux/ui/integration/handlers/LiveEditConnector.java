@@ -10,12 +10,25 @@
 *******************************************************************************/
 package org.eclipse.flux.ui.integration.handlers;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.eclipse.core.filebuffers.FileBuffers;
 import org.eclipse.core.filebuffers.IFileBuffer;
 import org.eclipse.core.filebuffers.IFileBufferListener;
+import org.eclipse.core.filebuffers.ITextFileBuffer;
+import org.eclipse.core.filebuffers.ITextFileBufferManager;
+import org.eclipse.core.filebuffers.LocationKind;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
@@ -28,13 +41,18 @@ import org.eclipse.core.resources.IWorkspaceRoot;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
 import org.eclipse.flux.core.ConnectedProject;
 import org.eclipse.flux.core.ILiveEditConnector;
 import org.eclipse.flux.core.IRepositoryListener;
+import org.eclipse.flux.core.LiveEdit;
 import org.eclipse.flux.core.LiveEditCoordinator;
 import org.eclipse.flux.core.Repository;
 import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.DocumentRewriteSession;
+import org.eclipse.jface.text.DocumentRewriteSessionType;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.jface.text.IDocumentListener;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.IEditorPart;
@@ -47,18 +65,47 @@ import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.texteditor.AbstractTextEditor;
 
 /**
+ * Connects the open text editors with the live edit coordinator. Remote changes are queued per
+ * document and applied together at most once per frame (in a rewrite session if there is more
+ * than one), so a burst of remote edits doesn't flood the UI thread.
+ *
+ * Remote edits of resources that are not open in a connected editor but whose file buffer is
+ * used by somebody else are applied to the file buffer in the background, the UI thread is
+ * used only if the file buffer asks for it (e.g. for editors in other windows). The live edit
+ * coordinator passes only the events of resources with a file buffer to this connector.
+ *
  * @author Martin Lippert
  */
 public class LiveEditConnector {
 	
 	private static final String LIVE_EDIT_CONNECTOR_ID = "UI-Editor-Live-Edit-Connector";
+
+	/**
+	 * min time (in ms) between two runs of the queued remote changes
+	 */
+	private static final int FRAME_TIME = 16;
+
+	/**
+	 * number of remote changes from which on the viewer may redraw the document as a whole
+	 */
+	private static final int LARGE_BATCH = 50;
 	
 	private IDocumentListener documentListener;
+	private boolean applyingRemoteChanges;
+
+	private final Map<IDocument, List<Runnable>> remoteChanges;
+	private boolean remoteChangesScheduled;
+	private long lastRemoteChanges;
+
+	private final ExecutorService backgroundChanges;
+	private final Map<String, Integer> pendingBackgroundChanges;
+	private final Set<IDocument> backgroundDocuments;
 	private Repository repository;
 	
 	private ConcurrentMap<IDocument, String> resourceMappings;
 	private ConcurrentMap<String, IDocument> documentMappings;
 	private LiveEditCoordinator liveEditCoordinator;
+	private ILiveEditConnector liveEditConnector;
 
 	private ConcurrentHashMap<String, PendingLiveEditStartedResponse> pendingLiveEditStartedResponses;
 
@@ -70,11 +117,24 @@ public class LiveEditConnector {
 		this.documentMappings = new ConcurrentHashMap<String, IDocument>();
 		
 		this.pendingLiveEditStartedResponses = new ConcurrentHashMap<String, PendingLiveEditStartedResponse>();
+		this.remoteChanges = new LinkedHashMap<IDocument, List<Runnable>>();
+		this.pendingBackgroundChanges = new HashMap<String, Integer>();
+		this.backgroundDocuments = Collections.newSetFromMap(new ConcurrentHashMap<IDocument, Boolean>());
+		this.backgroundChanges = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Flux live edits");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 		
 		this.documentListener = new IDocumentListener() {
 			@Override
 			public void documentChanged(DocumentEvent event) {
-				sendModelChangedMessage(event);
+				if (!applyingRemoteChanges && !backgroundDocuments.contains(event.getDocument())) {
+					sendModelChangedMessage(event);
+				}
 			}
 			@Override
 			public void documentAboutToBeChanged(DocumentEvent event) {
@@ -108,10 +168,12 @@ public class LiveEditConnector {
 
 			@Override
 			public void bufferDisposed(IFileBuffer buffer) {
+				removeInterest(buffer.getLocation());
 			}
 
 			@Override
 			public void bufferCreated(IFileBuffer buffer) {
+				addInterest(buffer.getLocation());
 			}
 			
 			@Override
@@ -166,15 +228,15 @@ public class LiveEditConnector {
 			}
 		});
 		
-		ILiveEditConnector liveEditConnector = new ILiveEditConnector() {
+		this.liveEditConnector = new ILiveEditConnector() {
 			@Override
 			public String getConnectorID() {
 				return LIVE_EDIT_CONNECTOR_ID;
 			}
 
 			@Override
-			public void liveEditingEvent(String username, String resourcePath, int offset, int removeCount, String newText) {
-				handleModelChanged(username, resourcePath, offset, removeCount, newText);
+			public void liveEditingEvent(LiveEdit edit) {
+				handleModelChanged(edit.getUsername(), edit.getLiveEditID(), edit.getOffset(), edit.getRemovedCharCount(), edit.getAddedCharacters());
 			}
 
 			@Override
@@ -188,7 +250,9 @@ public class LiveEditConnector {
 				handleRemoteLiveContent(requestSenderID, callbackID, username, projectName, resourcePath, savePointHash, savePointTimestamp, content);
 			}
 		};
-		this.liveEditCoordinator.addLiveEditConnector(liveEditConnector);
+		for (IFileBuffer buffer : FileBuffers.getTextFileBufferManager().getFileBuffers()) {
+			addInterest(buffer.getLocation());
+		}
 		
 		IWorkspace workspace = ResourcesPlugin.getWorkspace();
 		workspace.addResourceChangeListener(new IResourceChangeListener() {
@@ -239,15 +303,35 @@ public class LiveEditConnector {
 		});
 	}
 	
+	/**
+	 * the events of the resource are passed to this connector from now on
+	 */
+	protected void addInterest(IPath path) {
+		if (liveEditConnector != null && path != null && path.segmentCount() > 1) {
+			liveEditCoordinator.addResourceInterest(liveEditConnector, path.segment(0), path.removeFirstSegments(1).toString());
+		}
+	}
+
+	protected void removeInterest(IPath path) {
+		if (liveEditConnector != null && path != null && path.segmentCount() > 1) {
+			liveEditCoordinator.removeResourceInterest(liveEditConnector, path.segment(0), path.removeFirstSegments(1).toString());
+		}
+	}
+
 	protected void remoteEditorStarted(String requestSenderID, int callbackID, String username, String resourcePath, String hash, long timestamp) {
 		// a different editor was started editing the resource, we need to send back live content
 		
 		if (this.repository.getUsername().equals(username) && documentMappings.containsKey(resourcePath)) {
-			final IDocument document = documentMappings.get(resourcePath);
-			String content = document.get();
-			
 			String projectName = resourcePath.substring(0, resourcePath.indexOf('/'));
 			String relativeResourcePath = resourcePath.substring(projectName.length() + 1);
+
+			if (this.liveEditCoordinator.getLiveDocument(projectName, relativeResourcePath) != null) {
+				// the coordinator answers with the live content it keeps
+				return;
+			}
+
+			final IDocument document = documentMappings.get(resourcePath);
+			String content = document.get();
 			
 			this.liveEditCoordinator.sendLiveEditStartedResponse(LIVE_EDIT_CONNECTOR_ID, requestSenderID, callbackID, username, projectName, relativeResourcePath, hash, timestamp, content);
 		}
@@ -268,56 +352,191 @@ public class LiveEditConnector {
 		if (this.repository.getUsername().equals(pendingResponse.getUsername()) && documentMappings.containsKey(resourcePath)) {
 			final IDocument document = documentMappings.get(resourcePath);
 
-			try {
-				Display.getDefault().asyncExec(new Runnable() {
-					public void run() {
-						try {
-							ConnectedProject connectedProject = repository.getProject(pendingResponse.getProjectName());
-							final String hash = connectedProject.getHash(pendingResponse.getResource());
-							final long timestamp = connectedProject.getTimestamp(pendingResponse.getResource());
-							
-							if (hash != null && hash.equals(pendingResponse.getSavePointHash()) && timestamp == pendingResponse.getSavePointTimestamp()) {
-								String openedContent = document.get();
-								if (!openedContent.equals(pendingResponse.getContent())) {
-									document.removeDocumentListener(documentListener);
-									document.set(pendingResponse.getContent());
-									document.addDocumentListener(documentListener);
-								}
-							}
-							else if (pendingResponse.getSavePointTimestamp() > timestamp) {
-								PendingLiveEditStartedResponse existingPendingRespose = pendingLiveEditStartedResponses.putIfAbsent(resourcePath, pendingResponse);
-								if (pendingResponse.getSavePointTimestamp() > existingPendingRespose.getSavePointTimestamp()) {
-									pendingLiveEditStartedResponses.put(resourcePath, pendingResponse);
-								}
+			// in line with the remote edits, so edits that arrived before are applied before
+			queueRemoteChange(document, new Runnable() {
+				public void run() {
+					try {
+						ConnectedProject connectedProject = repository.getProject(pendingResponse.getProjectName());
+						final String hash = connectedProject.getHash(pendingResponse.getResource());
+						final long timestamp = connectedProject.getTimestamp(pendingResponse.getResource());
+						
+						if (hash != null && hash.equals(pendingResponse.getSavePointHash()) && timestamp == pendingResponse.getSavePointTimestamp()) {
+							String openedContent = document.get();
+							if (!openedContent.equals(pendingResponse.getContent())) {
+								document.set(pendingResponse.getContent());
 							}
 						}
-						catch (Exception e) {
-							e.printStackTrace();
+						else if (pendingResponse.getSavePointTimestamp() > timestamp) {
+							PendingLiveEditStartedResponse existingPendingRespose = pendingLiveEditStartedResponses.putIfAbsent(resourcePath, pendingResponse);
+							if (existingPendingRespose != null && pendingResponse.getSavePointTimestamp() > existingPendingRespose.getSavePointTimestamp()) {
+								pendingLiveEditStartedResponses.put(resourcePath, pendingResponse);
+							}
 						}
 					}
-				});
-			}
-			catch (Exception e) {
-				e.printStackTrace();
-			}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
 		}
 
 	}
 
 	protected void handleModelChanged(final String username, final String resourcePath, final int offset, final int removedCharCount, final String newText) {
-		if (repository.getUsername().equals(username) && resourcePath != null && documentMappings.containsKey(resourcePath)) {
+		// edits that follow a background edit which didn't run yet go the same way, to keep their order
+		if (repository.getUsername().equals(username) && resourcePath != null && documentMappings.containsKey(resourcePath) && !hasBackgroundChanges(resourcePath)) {
 			final IDocument document = documentMappings.get(resourcePath);
 			
+			queueRemoteChange(document, new Runnable() {
+				public void run() {
+					try {
+						document.replace(offset, removedCharCount, newText);
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		else if (repository.getUsername().equals(username) && resourcePath != null) {
+			handleBackgroundModelChanged(resourcePath, offset, removedCharCount, newText);
+		}
+	}
+
+	/**
+	 * applies the remote edit to the file buffer of the resource, if somebody uses one
+	 */
+	protected void handleBackgroundModelChanged(final String resourcePath, final int offset, final int removedCharCount, final String newText) {
+		final IPath path = new Path(resourcePath).makeAbsolute();
+		final ITextFileBufferManager manager = FileBuffers.getTextFileBufferManager();
+		if (manager.getTextFileBuffer(path, LocationKind.IFILE) == null && !documentMappings.containsKey(resourcePath)) {
+			return;
+		}
+
+		startBackgroundChange(resourcePath);
+		backgroundChanges.execute(new Runnable() {
+			public void run() {
+				final ITextFileBuffer buffer = manager.getTextFileBuffer(path, LocationKind.IFILE);
+				Runnable change = new Runnable() {
+					public void run() {
+						try {
+							applyBackgroundChange(resourcePath, buffer, offset, removedCharCount, newText);
+						}
+						finally {
+							finishBackgroundChange(resourcePath);
+						}
+					}
+				};
+
+				if (buffer != null && buffer.isSynchronizationContextRequested() && !documentMappings.containsKey(resourcePath)) {
+					// shown in an editor that is not connected
+					manager.execute(change);
+				}
+				else {
+					change.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * applies the edit to the file buffer, or queues it for the document if its editor got
+	 * connected in the meantime (a connected document takes remote changes in the UI thread only)
+	 */
+	protected void applyBackgroundChange(String resourcePath, ITextFileBuffer buffer, final int offset, final int removedCharCount, final String newText) {
+		final IDocument connectedDocument = documentMappings.get(resourcePath);
+		if (connectedDocument != null) {
+			queueRemoteChange(connectedDocument, new Runnable() {
+				public void run() {
+					try {
+						connectedDocument.replace(offset, removedCharCount, newText);
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			return;
+		}
+
+		if (buffer == null) {
+			return;
+		}
+
+		// the editor can get connected while the change is applied, it must not be sent back then
+		IDocument document = buffer.getDocument();
+		backgroundDocuments.add(document);
+		try {
+			document.replace(offset, removedCharCount, newText);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		finally {
+			backgroundDocuments.remove(document);
+		}
+	}
+
+	protected boolean hasBackgroundChanges(String resourcePath) {
+		synchronized (pendingBackgroundChanges) {
+			return pendingBackgroundChanges.containsKey(resourcePath);
+		}
+	}
+
+	protected void startBackgroundChange(String resourcePath) {
+		synchronized (pendingBackgroundChanges) {
+			Integer count = pendingBackgroundChanges.get(resourcePath);
+			pendingBackgroundChanges.put(resourcePath, count != null ? count + 1 : 1);
+		}
+	}
+
+	protected void finishBackgroundChange(String resourcePath) {
+		synchronized (pendingBackgroundChanges) {
+			Integer count = pendingBackgroundChanges.get(resourcePath);
+			if (count == null || count <= 1) {
+				pendingBackgroundChanges.remove(resourcePath);
+			}
+			else {
+				pendingBackgroundChanges.put(resourcePath, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * queues the change of the document, the queued changes are applied in the UI thread with
+	 * the next frame
+	 */
+	protected void queueRemoteChange(IDocument document, Runnable change) {
+		boolean schedule = false;
+		synchronized (remoteChanges) {
+			List<Runnable> changes = remoteChanges.get(document);
+			if (changes == null) {
+				changes = new ArrayList<Runnable>();
+				remoteChanges.put(document, changes);
+			}
+			changes.add(change);
+
+			if (!remoteChangesScheduled) {
+				remoteChangesScheduled = true;
+				schedule = true;
+			}
+		}
+
+		if (schedule) {
 			try {
 				Display.getDefault().asyncExec(new Runnable() {
 					public void run() {
-						try {
-							document.removeDocumentListener(documentListener);
-							document.replace(offset, removedCharCount, newText);
-							document.addDocumentListener(documentListener);
+						long wait = lastRemoteChanges + FRAME_TIME - System.currentTimeMillis();
+						Runnable apply = new Runnable() {
+							public void run() {
+								applyRemoteChanges();
+							}
+						};
+						if (wait > 0) {
+							Display.getDefault().timerExec((int) wait, apply);
 						}
-						catch (Exception e) {
-							e.printStackTrace();
+						else {
+							apply.run();
 						}
 					}
 				});
@@ -328,6 +547,43 @@ public class LiveEditConnector {
 		}
 	}
 
+	protected void applyRemoteChanges() {
+		Map<IDocument, List<Runnable>> changesByDocument;
+		synchronized (remoteChanges) {
+			changesByDocument = new LinkedHashMap<IDocument, List<Runnable>>(remoteChanges);
+			remoteChanges.clear();
+			remoteChangesScheduled = false;
+		}
+		lastRemoteChanges = System.currentTimeMillis();
+
+		for (Map.Entry<IDocument, List<Runnable>> entry : changesByDocument.entrySet()) {
+			IDocument document = entry.getKey();
+			List<Runnable> changes = entry.getValue();
+			if (!resourceMappings.containsKey(document)) {
+				// the editor got closed in the meantime
+				continue;
+			}
+
+			DocumentRewriteSession session = null;
+			applyingRemoteChanges = true;
+			try {
+				if (changes.size() > 1 && document instanceof IDocumentExtension4) {
+					session = ((IDocumentExtension4) document).startRewriteSession(changes.size() > LARGE_BATCH
+							? DocumentRewriteSessionType.UNRESTRICTED : DocumentRewriteSessionType.UNRESTRICTED_SMALL);
+				}
+				for (Runnable change : changes) {
+					change.run();
+				}
+			}
+			finally {
+				if (session != null) {
+					((IDocumentExtension4) document).stopRewriteSession(session);
+				}
+				applyingRemoteChanges = false;
+			}
+		}
+	}
+
 	protected void sendModelChangedMessage(DocumentEvent event) {
 		String resourcePath = resourceMappings.get(event.getDocument());
 		if (resourcePath != null) {
@@ -352,6 +608,7 @@ public class LiveEditConnector {
 			if (repository.isConnected(project)) {
 				documentMappings.put(resourcePath, document);
 				resourceMappings.put(document, resourcePath);
+				addInterest(editorResource.getFullPath());
 
 				document.addDocumentListener(documentListener);
 				
@@ -359,7 +616,8 @@ public class LiveEditConnector {
 				String hash = connectedProject.getHash(resource);
 				long timestamp = connectedProject.getTimestamp(resource);
 				
-				this.liveEditCoordinator.sendLiveEditStartedMessage(LIVE_EDIT_CONNECTOR_ID, repository.getUsername(), projectName, resource, hash, timestamp);
+				this.liveEditCoordinator.sendLiveEditStartedMessage(LIVE_EDIT_CONNECTOR_ID, repository.getUsername(), projectName, resource, hash, timestamp, document.get());
+				this.repository.prefetch(projectName, resource);
 			}
 		}
 	}
@@ -372,6 +630,14 @@ public class LiveEditConnector {
 			document.removeDocumentListener(documentListener);
 			documentMappings.remove(resourcePath);
 			resourceMappings.remove(document);
+
+			IPath path = new Path(resourcePath).makeAbsolute();
+			if (FileBuffers.getTextFileBufferManager().getFileBuffer(path, LocationKind.IFILE) == null) {
+				removeInterest(path);
+			}
+
+			String projectName = resourcePath.substring(0, resourcePath.indexOf('/'));
+			this.repository.cancelPrefetch(projectName, resourcePath.substring(projectName.length() + 1));
 		}
 	}
 
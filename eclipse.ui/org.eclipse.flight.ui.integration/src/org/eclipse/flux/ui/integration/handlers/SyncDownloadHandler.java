@@ -51,6 +51,9 @@ public class SyncDownloadHandler extends AbstractHandler {
 						public void downloadFailed() {
 						}
 						@Override
+						public void downloadProgress(IProject project, int downloadedFiles, int totalFiles, long bytesPerSecond) {
+						}
+						@Override
 						public void downloadComplete(IProject project) {
 							repository.addProject(project);
 						}
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Central place to compute content hashes. SHA-1 (as hex string) is the hash that
+ * is used in the messages, the digests and read buffers are reused per thread and
+ * large files are hashed via memory mapping.
+ *
+ * Next to the SHA-1 hash a much cheaper 64 bit quick hash is computed in the same pass.
+ * It is not collision resistant, but good enough to detect that content did NOT change
+ * without running SHA-1 again.
+ */
+public class Hashing {
+
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long MAP_THRESHOLD = 1024 * 1024;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private static final ThreadLocal<byte[]> STREAM_BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * SHA-1 and quick hash of some content
+	 */
+	public static class Result {
+		private final byte[] sha1;
+		private final long quickHash;
+		private final long length;
+
+		public Result(byte[] sha1, long quickHash, long length) {
+			this.sha1 = sha1;
+			this.quickHash = quickHash;
+			this.length = length;
+		}
+
+		public byte[] getSha1() {
+			return sha1;
+		}
+
+		public String getSha1Hex() {
+			return toHex(sha1);
+		}
+
+		public long getQuickHash() {
+			return quickHash;
+		}
+
+		public long getLength() {
+			return length;
+		}
+	}
+
+	public static byte[] sha1(byte[] content) {
+		MessageDigest digest = SHA1.get();
+		digest.reset();
+		return digest.digest(content);
+	}
+
+	/**
+	 * hashes the UTF-8 bytes of the text (the same as DigestUtils.shaHex(String) does)
+	 */
+	public static byte[] sha1(String text) {
+		return sha1(text.getBytes(UTF8));
+	}
+
+	public static String sha1Hex(byte[] content) {
+		return toHex(sha1(content));
+	}
+
+	public static String sha1Hex(String text) {
+		return toHex(sha1(text));
+	}
+
+	public static String sha1Hex(InputStream in) throws IOException {
+		return hash(in).getSha1Hex();
+	}
+
+	public static Result hash(byte[] content) {
+		QuickHash quickHash = new QuickHash();
+		quickHash.update(content, 0, content.length);
+		return new Result(sha1(content), quickHash.finish(), content.length);
+	}
+
+	/**
+	 * hashes the stream (and closes it)
+	 */
+	public static Result hash(InputStream in) throws IOException {
+		MessageDigest digest = SHA1.get();
+		digest.reset();
+		QuickHash quickHash = new QuickHash();
+		byte[] buffer = STREAM_BUFFER.get();
+		long length = 0;
+
+		try {
+			int read = in.read(buffer);
+			while (read >= 0) {
+				digest.update(buffer, 0, read);
+				quickHash.update(buffer, 0, read);
+				length += read;
+				read = in.read(buffer);
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		return new Result(digest.digest(), quickHash.finish(), length);
+	}
+
+	/**
+	 * hashes the file on disk, large files are memory mapped instead of copied into a buffer
+	 */
+	public static Result hash(File file) throws IOException {
+		MessageDigest digest = SHA1.get();
+		digest.reset();
+		QuickHash quickHash = new QuickHash();
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			long size = channel.size();
+
+			if (size >= MAP_THRESHOLD) {
+				long position = 0;
+				while (position < size) {
+					long chunk = Math.min(Integer.MAX_VALUE, size - position);
+					MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, chunk);
+					quickHash.update(mapped.duplicate());
+					digest.update(mapped);
+					position += chunk;
+				}
+				return new Result(digest.digest(), quickHash.finish(), size);
+			}
+			else {
+				ByteBuffer buffer = BUFFER.get();
+				long length = 0;
+				buffer.clear();
+				while (channel.read(buffer) >= 0) {
+					buffer.flip();
+					length += buffer.remaining();
+					quickHash.update(buffer.duplicate());
+					digest.update(buffer);
+					buffer.clear();
+				}
+				return new Result(digest.digest(), quickHash.finish(), length);
+			}
+		}
+		finally {
+			randomAccessFile.close();
+		}
+	}
+
+	public static long quickHash(byte[] content) {
+		QuickHash quickHash = new QuickHash();
+		quickHash.update(content, 0, content.length);
+		return quickHash.finish();
+	}
+
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * 64 bit multiply-xorshift hash over 8 byte words, independent of how the
+	 * content is split into chunks
+	 */
+	protected static class QuickHash {
+
+		private static final long SEED = 0x9E3779B97F4A7C15L;
+		private static final long MULTIPLIER = 0xBF58476D1CE4E5B9L;
+
+		private long hash = SEED;
+		private long word;
+		private int wordBytes;
+		private long length;
+
+		public void update(byte[] bytes, int offset, int count) {
+			update(ByteBuffer.wrap(bytes, offset, count));
+		}
+
+		public void update(ByteBuffer buffer) {
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			length += buffer.remaining();
+
+			while (wordBytes != 0 && buffer.hasRemaining()) {
+				addByte(buffer.get());
+			}
+			while (buffer.remaining() >= 8) {
+				mix(buffer.getLong());
+			}
+			while (buffer.hasRemaining()) {
+				addByte(buffer.get());
+			}
+		}
+
+		public long finish() {
+			if (wordBytes > 0) {
+				mix(word);
+			}
+			long result = hash ^ length;
+			result = (result ^ (result >>> 31)) * MULTIPLIER;
+			return result ^ (result >>> 29);
+		}
+
+		private void addByte(byte b) {
+			word |= (b & 0xffL) << (8 * wordBytes);
+			if (++wordBytes == 8) {
+				mix(word);
+			}
+		}
+
+		private void mix(long value) {
+			hash = (hash ^ value) * MULTIPLIER;
+			hash ^= hash >>> 32;
+			word = 0;
+			wordBytes = 0;
+		}
+	}
+
+}
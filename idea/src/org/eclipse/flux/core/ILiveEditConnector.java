@@ -19,6 +19,10 @@ public interface ILiveEditConnector {
 	
 	void liveEditingStarted(String requestSenderID, int callbackID, String username, String resourcePath, String hash, long timestamp);
 	void liveEditingStartedResponse(String requestSenderID, int callbackID, String username, String projectName, String resourcePath, String savePointHash, long savePointTimestamp, String content);
-	void liveEditingEvent(String username, String resourcePath, int offset, int removeCount, String newText);
+
+	/**
+	 * the same (immutable) edit is passed to all the connectors
+	 */
+	void liveEditingEvent(LiveEdit edit);
 
 }
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2013, 2014 Pivotal Software, Inc. and others.
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License v1.0
+ * (http://www.eclipse.org/legal/epl-v10.html), and the Eclipse Distribution
+ * License v1.0 (http://www.eclipse.org/org/documents/edl-v10.html).
+ *
+ * Contributors:
+ *     Pivotal Software, Inc. - initial API and implementation
+*******************************************************************************/
+package org.eclipse.flux.core;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A single live edit of a resource. Edits are immutable, the same edit object is logged,
+ * applied to the live document and handed to all the connectors that are interested in it.
+ */
+public class LiveEdit {
+
+	private final String username;
+	private final String projectName;
+	private final String resourcePath;
+	private final String liveEditID;
+	private final long version;
+	private final int offset;
+	private final int removedCharCount;
+	private final String addedCharacters;
+
+	/**
+	 * creates the edit, the version is 0 for local edits that didn't go out yet
+	 */
+	public LiveEdit(String username, String projectName, String resourcePath, long version, int offset, int removedCharCount, String addedCharacters) {
+		this.username = username;
+		this.projectName = projectName;
+		this.resourcePath = resourcePath;
+		this.liveEditID = projectName + "/" + resourcePath;
+		this.version = version;
+		this.offset = offset;
+		this.removedCharCount = removedCharCount;
+		this.addedCharacters = addedCharacters != null ? addedCharacters : "";
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getProjectName() {
+		return projectName;
+	}
+
+	public String getResourcePath() {
+		return resourcePath;
+	}
+
+	/**
+	 * the path of the resource including the project name
+	 */
+	public String getLiveEditID() {
+		return liveEditID;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getRemovedCharCount() {
+		return removedCharCount;
+	}
+
+	public String getAddedCharacters() {
+		return addedCharacters;
+	}
+
+	/**
+	 * the edit in the form it has in the log of a live resource (without the resource)
+	 */
+	public JSONObject toJSON() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("version", version);
+		json.put("offset", offset);
+		json.put("removedCharCount", removedCharCount);
+		json.put("addedCharacters", addedCharacters);
+		return json;
+	}
+
+}
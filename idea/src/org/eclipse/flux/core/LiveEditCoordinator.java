@@ -10,22 +10,97 @@
  *******************************************************************************/
 package org.eclipse.flux.core;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
+ * Distributes live edits among the local live edit connectors and the other participants.
+ *
+ * Local connectors get every edit right away. Edits that are sent out are coalesced: an edit
+ * that touches the region of the edit before (like the next keystroke) is merged into it, the
+ * merged edit goes out once no contiguous edit followed within a short window. The window
+ * adapts to the typing rate, so single edits go out almost immediately and the keystrokes of
+ * fast typing go out together.
+ *
+ * Every edit of a resource gets the next version number of that resource. The edits since the
+ * save point are kept in a (bounded) log, so a participant that starts editing with the content
+ * of the save point gets the edits it missed instead of the full content. The full content is
+ * sent only if the log can't be used (it got too large, or it doesn't start at the save point).
+ *
+ * Once the live content of a resource is known (from the editor that opened it or from a
+ * response with the content), it is kept here as a {@link LiveDocument} and updated from the
+ * edits. Requests for the live content are answered from that document directly, the editors
+ * and working copies are asked only if it isn't known.
+ *
+ * Connectors that are added get the events of all resources. Connectors that declare an interest
+ * in projects or resources instead (without being added) get only the events of those. The
+ * connectors of every project and resource with interests are merged in advance, so the routing
+ * takes a map lookup per event. Each edit is passed to the connectors as a single {@link LiveEdit}.
+ *
  * @author Martin Lippert
  */
 public class LiveEditCoordinator {
 
+    private static final long MIN_COALESCE_WINDOW = 20;
+    private static final long MAX_COALESCE_WINDOW = 150;
+    private static final long MAX_COALESCE_DELAY = 300;
+    private static final int MAX_COALESCED_LENGTH = 4096;
+
+    private static final int MAX_LIVE_RESOURCES = 100;
+    private static final int MAX_LOGGED_EDITS = 1000;
+    private static final int MAX_LOGGED_CHARS = 256 * 1024;
+    private static final int MAX_REQUESTS = 16;
+
     private IMessagingConnector messagingConnector;
     private Collection<ILiveEditConnector> liveEditConnectors;
+    private Map<String, Set<ILiveEditConnector>> projectInterests;
+    private Map<String, Set<ILiveEditConnector>> resourceInterests;
+    private volatile Map<String, Collection<ILiveEditConnector>> projectRoutes;
+    private volatile Map<String, Collection<ILiveEditConnector>> resourceRoutes;
+
+    private Map<String, PendingEdit> pendingEdits;
+    private ScheduledExecutorService editTimer;
+    private long coalesceWindow = MIN_COALESCE_WINDOW;
+    private long averageEditGap = MAX_COALESCE_WINDOW;
+    private long lastEditTime;
+
+    private Map<String, LiveResource> liveResources;
 
     public LiveEditCoordinator(IMessagingConnector messagingConnector) {
         this.messagingConnector = messagingConnector;
         this.liveEditConnectors = new CopyOnWriteArrayList<>();
+        this.projectInterests = new ConcurrentHashMap<String, Set<ILiveEditConnector>>();
+        this.resourceInterests = new ConcurrentHashMap<String, Set<ILiveEditConnector>>();
+        this.projectRoutes = Collections.emptyMap();
+        this.resourceRoutes = Collections.emptyMap();
+        this.pendingEdits = new HashMap<String, PendingEdit>();
+        this.liveResources = new LinkedHashMap<String, LiveResource>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LiveResource> eldest) {
+                return size() > MAX_LIVE_RESOURCES;
+            }
+        };
 
         IMessageHandler startLiveUnit = new AbstractMessageHandler("liveResourceStarted") {
             @Override
@@ -50,6 +125,19 @@ public class LiveEditCoordinator {
             }
         };
         messagingConnector.addMessageHandler(modelChangedHandler);
+
+        IMessageHandler resourceChangedHandler = new AbstractMessageHandler("resourceChanged") {
+            @Override
+            public void handleMessage(String messageType, JSONObject message) {
+                try {
+                    resourceSaved(message.getString("project"), message.getString("resource"), message.getString("hash"));
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        messagingConnector.addMessageHandler(resourceChangedHandler);
     }
 
     protected void startLiveUnit(JSONObject message) {
@@ -63,7 +151,20 @@ public class LiveEditCoordinator {
             long timestamp = message.getLong("timestamp");
 
             String liveEditID = projectName + "/" + resourcePath;
-            for (ILiveEditConnector connector : liveEditConnectors) {
+            flushEdits(projectName, resourcePath);
+
+            synchronized (liveResources) {
+                LiveResource liveResource = getLiveResource(liveEditID, hash);
+                liveResource.updateSavePoint(hash);
+                liveResource.addRequest(requestSenderID + "/" + callbackID, message.optBoolean("replay"));
+
+                // the live content is known here, the connectors don't need to answer
+                if (liveResource.document != null && !liveResource.document.hasHash(hash)) {
+                    sendLiveEditStartedResponse(liveResource, requestSenderID, callbackID, username, projectName, resourcePath, hash, timestamp, null);
+                }
+            }
+
+            for (ILiveEditConnector connector : getConnectors(projectName, resourcePath)) {
                 connector.liveEditingStarted(requestSenderID, callbackID, username, liveEditID, hash, timestamp);
             }
         }
@@ -81,9 +182,25 @@ public class LiveEditCoordinator {
             String resourcePath = message.getString("resource");
             String savePointHash = message.getString("savePointHash");
             long savePointTimestamp = message.getLong("savePointTimestamp");
+
+            if (message.has("edits")) {
+                replayEdits(username, projectName, resourcePath, savePointHash, message.getLong("baseVersion"), message.getJSONArray("edits"));
+                return;
+            }
+
             String content = message.getString("liveContent");
+            synchronized (liveResources) {
+                LiveResource liveResource = liveResources.get(projectName + "/" + resourcePath);
+                if (liveResource != null) {
+                    liveResource.contentReplaced(message.optLong("version", liveResource.version));
+
+                    // the connectors take the content only if it belongs to the save point they started with
+                    liveResource.document = savePointHash.equals(liveResource.startedHash) ? new LiveDocument(content) : null;
+                    liveResource.updateSavePoint(savePointHash);
+                }
+            }
 
-            for (ILiveEditConnector connector : liveEditConnectors) {
+            for (ILiveEditConnector connector : getConnectors(projectName, resourcePath)) {
                 connector.liveEditingStartedResponse(requestSenderID, callbackID, username, projectName, resourcePath, savePointHash, savePointTimestamp, content);
             }
         }
@@ -104,8 +221,27 @@ public class LiveEditCoordinator {
 
             String liveEditID = projectName + "/" + resourcePath;
 
-            for (ILiveEditConnector connector : liveEditConnectors) {
-                connector.liveEditingEvent(username, liveEditID, offset, removedCharCount, addedChars);
+            // the log has to be in the order in which the edits got applied here
+            flushEdits(projectName, resourcePath);
+
+            boolean requestContent;
+            synchronized (liveResources) {
+                LiveResource liveResource = getLiveResource(liveEditID, null);
+                long version = message.has("version") ? message.getLong("version") : liveResource.version + 1;
+                LiveEdit edit = new LiveEdit(username, projectName, resourcePath, version, offset, removedCharCount, addedChars);
+
+                // an edit that doesn't follow the save point content, while the missed edits are still expected
+                requestContent = liveResource.replayRequested && version != liveResource.version + 1;
+                if (requestContent) {
+                    liveResource.dropLog();
+                }
+                liveResource.record(edit);
+                liveResource.applyToDocument(edit);
+                dispatchEdit(edit, null);
+            }
+
+            if (requestContent) {
+                sendLiveEditStartedMessage(username, projectName, resourcePath, false);
             }
         }
         catch (Exception e) {
@@ -113,41 +249,244 @@ public class LiveEditCoordinator {
         }
     }
 
+    /**
+     * applies the edits that were made since the save point, if the resource is still at
+     * the save point here (an edit is applied only once, even if more participants answered)
+     */
+    protected void replayEdits(String username, String projectName, String resourcePath, String savePointHash, long baseVersion, JSONArray edits) throws JSONException {
+        String liveEditID = projectName + "/" + resourcePath;
+
+        synchronized (liveResources) {
+            LiveResource liveResource = liveResources.get(liveEditID);
+            if (liveResource == null || !liveResource.replayRequested || !savePointHash.equals(liveResource.baseHash)) {
+                return;
+            }
+
+            if (liveResource.version == liveResource.baseVersion) {
+                liveResource.baseVersion = baseVersion;
+                liveResource.version = baseVersion;
+            }
+
+            for (int i = 0; i < edits.length(); i++) {
+                JSONObject edit = edits.getJSONObject(i);
+                long version = edit.getLong("version");
+                if (version <= liveResource.version) {
+                    continue;
+                }
+                else if (version != liveResource.version + 1) {
+                    break;
+                }
+
+                LiveEdit liveEdit = new LiveEdit(username, projectName, resourcePath, version, edit.getInt("offset"), edit.getInt("removedCharCount"), edit.optString("addedCharacters", ""));
+                liveResource.record(liveEdit);
+                liveResource.applyToDocument(liveEdit);
+                dispatchEdit(liveEdit, null);
+            }
+        }
+    }
+
+    /**
+     * adds a connector that gets the events of all resources
+     */
     public void addLiveEditConnector(ILiveEditConnector connector) {
-        liveEditConnectors.add(connector);
+        synchronized (resourceInterests) {
+            liveEditConnectors.add(connector);
+            updateRoutes();
+        }
     }
 
+
     public void removeLiveEditConnector(ILiveEditConnector connector) {
-        liveEditConnectors.remove(connector);
+        synchronized (resourceInterests) {
+            liveEditConnectors.remove(connector);
+            for (String projectName : new ArrayList<String>(projectInterests.keySet())) {
+                removeInterest(projectInterests, projectName, connector);
+            }
+            for (String liveEditID : new ArrayList<String>(resourceInterests.keySet())) {
+                removeInterest(resourceInterests, liveEditID, connector);
+            }
+            updateRoutes();
+        }
+    }
+
+    /**
+     * the connector gets the events of all resources of the project from now on
+     */
+    public void addProjectInterest(ILiveEditConnector connector, String projectName) {
+        addInterest(projectInterests, projectName, connector);
+    }
+
+    public void removeProjectInterest(ILiveEditConnector connector, String projectName) {
+        removeInterest(projectInterests, projectName, connector);
+    }
+
+    public void addResourceInterest(ILiveEditConnector connector, String projectName, String resourcePath) {
+        addInterest(resourceInterests, projectName + "/" + resourcePath, connector);
+    }
+
+    public void removeResourceInterest(ILiveEditConnector connector, String projectName, String resourcePath) {
+        removeInterest(resourceInterests, projectName + "/" + resourcePath, connector);
+    }
+
+    protected void addInterest(Map<String, Set<ILiveEditConnector>> interests, String key, ILiveEditConnector connector) {
+        synchronized (resourceInterests) {
+            Set<ILiveEditConnector> connectors = interests.get(key);
+            if (connectors == null) {
+                connectors = new CopyOnWriteArraySet<ILiveEditConnector>();
+                interests.put(key, connectors);
+            }
+            connectors.add(connector);
+            updateRoutes();
+        }
+    }
+
+    protected void removeInterest(Map<String, Set<ILiveEditConnector>> interests, String key, ILiveEditConnector connector) {
+        synchronized (resourceInterests) {
+            Set<ILiveEditConnector> connectors = interests.get(key);
+            if (connectors != null && connectors.remove(connector) && connectors.isEmpty()) {
+                interests.remove(key);
+            }
+            updateRoutes();
+        }
+    }
+
+    /**
+     * computes the connectors of every project and resource that somebody is interested in
+     * (together with the ones that get all events), so that events don't need to merge them
+     */
+    protected void updateRoutes() {
+        Map<String, Collection<ILiveEditConnector>> newProjectRoutes = new HashMap<String, Collection<ILiveEditConnector>>();
+        for (Map.Entry<String, Set<ILiveEditConnector>> interest : projectInterests.entrySet()) {
+            newProjectRoutes.put(interest.getKey(), mergeConnectors(interest.getValue(), null));
+        }
+
+        Map<String, Collection<ILiveEditConnector>> newResourceRoutes = new HashMap<String, Collection<ILiveEditConnector>>();
+        for (Map.Entry<String, Set<ILiveEditConnector>> interest : resourceInterests.entrySet()) {
+            String projectName = interest.getKey().substring(0, interest.getKey().indexOf('/'));
+            newResourceRoutes.put(interest.getKey(), mergeConnectors(projectInterests.get(projectName), interest.getValue()));
+        }
+
+        projectRoutes = newProjectRoutes;
+        resourceRoutes = newResourceRoutes;
+    }
+
+    protected Collection<ILiveEditConnector> mergeConnectors(Set<ILiveEditConnector> projectConnectors, Set<ILiveEditConnector> resourceConnectors) {
+        Set<ILiveEditConnector> connectors = new LinkedHashSet<ILiveEditConnector>(liveEditConnectors);
+        if (projectConnectors != null) {
+            connectors.addAll(projectConnectors);
+        }
+        if (resourceConnectors != null) {
+            connectors.addAll(resourceConnectors);
+        }
+        return Collections.unmodifiableList(new ArrayList<ILiveEditConnector>(connectors));
+    }
+
+    /**
+     * returns the connectors that get the events of the resource: the ones that get all events and
+     * the ones that are interested in the project or the resource
+     */
+    protected Collection<ILiveEditConnector> getConnectors(String projectName, String resourcePath) {
+        Collection<ILiveEditConnector> connectors = resourceRoutes.get(projectName + "/" + resourcePath);
+        if (connectors == null) {
+            connectors = projectRoutes.get(projectName);
+        }
+        return connectors != null ? connectors : liveEditConnectors;
+    }
+
+    /**
+     * passes the edit to the connectors that are interested in its resource (except the one it came from)
+     */
+    protected void dispatchEdit(LiveEdit edit, String changeOriginID) {
+        for (ILiveEditConnector connector : getConnectors(edit.getProjectName(), edit.getResourcePath())) {
+            if (changeOriginID == null || !connector.getConnectorID().equals(changeOriginID)) {
+                connector.liveEditingEvent(edit);
+            }
+        }
+    }
+
+    /**
+     * returns a snapshot of the live content of the resource, null if the live content is not known here
+     */
+    public LiveDocument getLiveDocument(String projectName, String resourcePath) {
+        synchronized (liveResources) {
+            LiveResource liveResource = liveResources.get(projectName + "/" + resourcePath);
+            return liveResource != null ? liveResource.document : null;
+        }
     }
 
     public void sendModelChangedMessage(String changeOriginID, String username, String projectName, String resourcePath, int offset, int removedCharactersCount, String newText) {
-        try {
-            JSONObject message = new JSONObject();
-            message.put("username", username);
-            message.put("project", projectName);
-            message.put("resource", resourcePath);
-            message.put("offset", offset);
-            message.put("offset", offset);
-            message.put("removedCharCount", removedCharactersCount);
-            message.put("addedCharacters", newText != null ? newText : "");
+        LiveEdit edit = new LiveEdit(username, projectName, resourcePath, 0, offset, removedCharactersCount, newText);
+        coalesceEdit(username, projectName, resourcePath, offset, removedCharactersCount, edit.getAddedCharacters());
 
-            this.messagingConnector.send("liveResourceChanged", message);
+        synchronized (liveResources) {
+            LiveResource liveResource = liveResources.get(edit.getLiveEditID());
+            if (liveResource != null) {
+                liveResource.applyToDocument(edit);
+            }
         }
-        catch (Exception e) {
-            e.printStackTrace();
+
+        dispatchEdit(edit, changeOriginID);
+    }
+
+    public void sendLiveEditStartedMessage(String changeOriginID, String username, String projectName, String resourcePath, String hash, long timestamp) {
+        sendLiveEditStartedMessage(changeOriginID, username, projectName, resourcePath, hash, timestamp, null);
+    }
+
+    /**
+     * starts live editing with the given content (the content of the save point, if the editor
+     * was just opened), which becomes the live content here if there is none yet
+     */
+    public void sendLiveEditStartedMessage(String changeOriginID, String username, String projectName, String resourcePath, String hash, long timestamp, String content) {
+        flushEdits(projectName, resourcePath);
+
+        boolean replay;
+        LiveDocument liveDocument = null;
+        synchronized (liveResources) {
+            LiveResource liveResource = getLiveResource(projectName + "/" + resourcePath, hash);
+            liveResource.started(hash, timestamp);
+
+            if (liveResource.document == null && content != null) {
+                liveResource.document = new LiveDocument(content);
+            }
+            else if (liveResource.document != null && !liveResource.document.hasHash(hash)) {
+                liveDocument = liveResource.document;
+            }
+            liveResource.updateSavePoint(hash);
+
+            // the missed edits can be applied only if nothing happened here since the save point
+            replay = hash != null && hash.equals(liveResource.baseHash) && liveResource.version == liveResource.baseVersion;
         }
+        sendLiveEditStartedMessage(username, projectName, resourcePath, replay);
 
-        String fullResourcePath = projectName + "/" + resourcePath;
+        Collection<ILiveEditConnector> connectors = getConnectors(projectName, resourcePath);
 
-        for (ILiveEditConnector connector : this.liveEditConnectors) {
+        // the live content here is ahead of the save point the editor started with
+        if (liveDocument != null) {
+            String liveContent = liveDocument.getText();
+            for (ILiveEditConnector connector : connectors) {
+                if (connector.getConnectorID().equals(changeOriginID)) {
+                    connector.liveEditingStartedResponse("local", 0, username, projectName, resourcePath, hash, timestamp, liveContent);
+                }
+            }
+        }
+
+        for (ILiveEditConnector connector : connectors) {
             if (!connector.getConnectorID().equals(changeOriginID)) {
-                connector.liveEditingEvent(username, fullResourcePath, offset, removedCharactersCount, newText);
+                connector.liveEditingStarted("local", 0, username, projectName + "/" + resourcePath, hash, timestamp);
             }
         }
     }
 
-    public void sendLiveEditStartedMessage(String changeOriginID, String username, String projectName, String resourcePath, String hash, long timestamp) {
+    protected void sendLiveEditStartedMessage(String username, String projectName, String resourcePath, boolean replay) {
+        String hash;
+        long timestamp;
+        synchronized (liveResources) {
+            LiveResource liveResource = getLiveResource(projectName + "/" + resourcePath, null);
+            liveResource.replayRequested = replay;
+            hash = liveResource.startedHash;
+            timestamp = liveResource.startedTimestamp;
+        }
+
         try {
             JSONObject message = new JSONObject();
             message.put("callback_id", 0);
@@ -156,42 +495,423 @@ public class LiveEditCoordinator {
             message.put("resource", resourcePath);
             message.put("hash", hash);
             message.put("timestamp", timestamp);
+            if (replay) {
+                message.put("replay", true);
+            }
 
             this.messagingConnector.send("liveResourceStarted", message);
         }
         catch (Exception e) {
             e.printStackTrace();
         }
+    }
 
-        for (ILiveEditConnector connector : this.liveEditConnectors) {
-            if (!connector.getConnectorID().equals(changeOriginID)) {
-                connector.liveEditingStarted("local", 0, username, resourcePath, hash, timestamp);
+    public void sendLiveEditStartedResponse(String responseOriginID, String requestSenderID, int callbackID, String username, String projectName, String resourcePath, String savePointHash, long savePointTimestamp, String content) {
+        // the edits that are part of the content go out first
+        flushEdits(projectName, resourcePath);
+
+        try {
+            synchronized (liveResources) {
+                LiveResource liveResource = getLiveResource(projectName + "/" + resourcePath, null);
+                if (liveResource.document == null) {
+                    liveResource.document = new LiveDocument(content);
+                }
+                liveResource.updateSavePoint(savePointHash);
+                sendLiveEditStartedResponse(liveResource, requestSenderID, callbackID, username, projectName, resourcePath, savePointHash, savePointTimestamp, content);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        for (ILiveEditConnector connector : getConnectors(projectName, resourcePath)) {
+            if (!connector.getConnectorID().equals(responseOriginID)) {
+                connector.liveEditingStartedResponse(requestSenderID, callbackID, username, projectName, resourcePath, savePointHash, savePointTimestamp, content);
             }
         }
     }
 
-    public void sendLiveEditStartedResponse(String responseOriginID, String requestSenderID, int callbackID, String username, String projectName, String resourcePath, String savePointHash, long savePointTimestamp, String content) {
+    /**
+     * answers the request with the edits since the save point if the requester asked for that
+     * and the log goes back to it, with the content otherwise (null means the live document here)
+     */
+    protected void sendLiveEditStartedResponse(LiveResource liveResource, String requestSenderID, int callbackID, String username, String projectName,
+            String resourcePath, String savePointHash, long savePointTimestamp, String content) throws JSONException {
+        String requestID = requestSenderID + "/" + callbackID;
+        if (liveResource.answeredRequests.contains(requestID)) {
+            // answered here already (by this coordinator or another connector)
+            return;
+        }
+
+        JSONObject message = new JSONObject();
+        message.put("requestSenderID", requestSenderID);
+        message.put("callback_id", callbackID);
+        message.put("username", username);
+        message.put("project", projectName);
+        message.put("resource", resourcePath);
+        message.put("savePointTimestamp", savePointTimestamp);
+        message.put("savePointHash", savePointHash);
+        message.put("version", liveResource.version);
+
+        if (Boolean.TRUE.equals(liveResource.requests.get(requestID)) && liveResource.canReplay(savePointHash)) {
+            message.put("baseVersion", liveResource.baseVersion);
+            message.put("edits", liveResource.getEdits());
+        }
+        else {
+            message.put("liveContent", content != null ? content : liveResource.document.getText());
+        }
+
+        if (liveResource.requests.containsKey(requestID)) {
+            liveResource.answeredRequests.add(requestID);
+        }
+        this.messagingConnector.send("liveResourceStartedResponse", message);
+    }
+
+    /**
+     * the resource was saved (here or somewhere else), the log of its live edits starts at the
+     * new save point if the live content is the saved content (or not known here)
+     */
+    public void resourceSaved(String projectName, String resourcePath, String hash) {
+        flushEdits(projectName, resourcePath);
+
+        synchronized (liveResources) {
+            LiveResource liveResource = liveResources.get(projectName + "/" + resourcePath);
+            if (liveResource != null && liveResource.document == null) {
+                liveResource.moveSavePoint(hash);
+            }
+            else if (liveResource != null) {
+                liveResource.updateSavePoint(hash);
+            }
+        }
+    }
+
+    /**
+     * sends out the pending (coalesced) edits of the resource right away
+     */
+    public void flushEdits(String projectName, String resourcePath) {
+        synchronized (pendingEdits) {
+            PendingEdit pending = pendingEdits.remove(projectName + "/" + resourcePath);
+            if (pending != null) {
+                sendEdit(pending);
+            }
+        }
+    }
+
+    /**
+     * sends out all pending (coalesced) edits right away
+     */
+    public void flushEdits() {
+        synchronized (pendingEdits) {
+            List<PendingEdit> pending = new ArrayList<PendingEdit>(pendingEdits.values());
+            pendingEdits.clear();
+            for (PendingEdit edit : pending) {
+                sendEdit(edit);
+            }
+        }
+    }
+
+    protected void coalesceEdit(String username, String projectName, String resourcePath, int offset, int removedCharCount, String addedChars) {
+        synchronized (pendingEdits) {
+            long now = System.currentTimeMillis();
+            adaptCoalesceWindow(now);
+
+            String liveEditID = projectName + "/" + resourcePath;
+            PendingEdit pending = pendingEdits.get(liveEditID);
+
+            if (pending != null && (!pending.username.equals(username) || !pending.merge(offset, removedCharCount, addedChars))) {
+                pendingEdits.remove(liveEditID);
+                sendEdit(pending);
+                pending = null;
+            }
+
+            if (pending == null) {
+                pending = new PendingEdit(username, projectName, resourcePath, offset, removedCharCount, addedChars, now);
+                pendingEdits.put(liveEditID, pending);
+            }
+            pending.deadline = Math.min(now + coalesceWindow, pending.firstEvent + MAX_COALESCE_DELAY);
+
+            if (pending.addedChars.length() >= MAX_COALESCED_LENGTH) {
+                pendingEdits.remove(liveEditID);
+                sendEdit(pending);
+                return;
+            }
+
+            scheduleFlush(liveEditID, pending.deadline - now);
+        }
+    }
+
+    protected void scheduleFlush(final String liveEditID, long delay) {
+        getEditTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                flushIfDue(liveEditID);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * the window follows the time between the last edits: fast typing gets a longer window
+     * (more keystrokes in one message), single edits a short one
+     */
+    protected void adaptCoalesceWindow(long now) {
+        long gap = Math.min(now - lastEditTime, 2 * MAX_COALESCE_WINDOW);
+        lastEditTime = now;
+
+        averageEditGap = (averageEditGap * 3 + gap) / 4;
+        coalesceWindow = averageEditGap < MAX_COALESCE_WINDOW
+                ? Math.max(MIN_COALESCE_WINDOW, Math.min(MAX_COALESCE_WINDOW, averageEditGap * 3 / 2))
+                : MIN_COALESCE_WINDOW;
+    }
+
+    protected void flushIfDue(String liveEditID) {
+        synchronized (pendingEdits) {
+            PendingEdit pending = pendingEdits.get(liveEditID);
+            if (pending == null) {
+                return;
+            }
+
+            long remaining = pending.deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                pendingEdits.remove(liveEditID);
+                sendEdit(pending);
+            }
+            else {
+                scheduleFlush(liveEditID, remaining);
+            }
+        }
+    }
+
+    protected void sendEdit(PendingEdit edit) {
         try {
             JSONObject message = new JSONObject();
-            message.put("requestSenderID", requestSenderID);
-            message.put("callback_id", callbackID);
-            message.put("username", username);
-            message.put("project", projectName);
-            message.put("resource", resourcePath);
-            message.put("savePointTimestamp", savePointTimestamp);
-            message.put("savePointHash", savePointHash);
-            message.put("liveContent", content);
+            message.put("username", edit.username);
+            message.put("project", edit.projectName);
+            message.put("resource", edit.resourcePath);
+            message.put("offset", edit.offset);
+            message.put("removedCharCount", edit.removedCharCount);
+            message.put("addedCharacters", edit.addedChars);
 
-            this.messagingConnector.send("liveResourceStartedResponse", message);
+            synchronized (liveResources) {
+                LiveResource liveResource = getLiveResource(edit.projectName + "/" + edit.resourcePath, null);
+                long version = liveResource.version + 1;
+
+                // the save point content is gone here, the missed edits don't fit anymore
+                liveResource.replayRequested = false;
+                liveResource.record(new LiveEdit(edit.username, edit.projectName, edit.resourcePath, version, edit.offset, edit.removedCharCount, edit.addedChars));
+                message.put("version", version);
+            }
+
+            this.messagingConnector.send("liveResourceChanged", message);
         }
         catch (Exception e) {
             e.printStackTrace();
         }
+    }
 
-        for (ILiveEditConnector connector : this.liveEditConnectors) {
-            if (!connector.getConnectorID().equals(responseOriginID)) {
-                connector.liveEditingStartedResponse(requestSenderID, callbackID, username, projectName, resourcePath, savePointHash, savePointTimestamp, content);
+    /**
+     * returns the live resource, a new one starts at the given save point (which can be unknown)
+     */
+    protected LiveResource getLiveResource(String liveEditID, String savePointHash) {
+        LiveResource liveResource = liveResources.get(liveEditID);
+        if (liveResource == null) {
+            liveResource = new LiveResource(savePointHash);
+            liveResources.put(liveEditID, liveResource);
+        }
+        return liveResource;
+    }
+
+    protected ScheduledExecutorService getEditTimer() {
+        if (editTimer == null) {
+            editTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Flux live edits");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return editTimer;
+    }
+
+    /**
+     * an edit that is not sent yet, as a single replacement of the document it was made on
+     */
+    protected static class PendingEdit {
+
+        private final String username;
+        private final String projectName;
+        private final String resourcePath;
+        private final long firstEvent;
+
+        /**
+         * the edit is sent when there was no further edit until then, but not later than
+         * the max delay after the first edit
+         */
+        private long deadline;
+
+        private int offset;
+        private int removedCharCount;
+        private String addedChars;
+
+        public PendingEdit(String username, String projectName, String resourcePath, int offset, int removedCharCount, String addedChars, long time) {
+            this.username = username;
+            this.projectName = projectName;
+            this.resourcePath = resourcePath;
+            this.offset = offset;
+            this.removedCharCount = removedCharCount;
+            this.addedChars = addedChars;
+            this.firstEvent = time;
+            this.deadline = time;
+        }
+
+        /**
+         * merges the next edit (made on the document with this edit applied) into this edit,
+         * returns false if the next edit doesn't touch the region of this edit
+         */
+        public boolean merge(int nextOffset, int nextRemovedCharCount, String nextAddedChars) {
+            int end = offset + addedChars.length();
+            int nextEnd = nextOffset + nextRemovedCharCount;
+            if (nextOffset > end || nextEnd < offset) {
+                return false;
             }
+
+            // everything of the merged region outside of this edit's text is removed by the next edit
+            int start = Math.min(offset, nextOffset);
+            int mergedEnd = Math.max(end, nextEnd);
+            int keepUntil = Math.max(0, Math.min(addedChars.length(), nextOffset - offset));
+            int keepFrom = Math.max(0, Math.min(addedChars.length(), nextEnd - offset));
+
+            removedCharCount = mergedEnd - addedChars.length() + removedCharCount - start;
+            addedChars = addedChars.substring(0, keepUntil) + nextAddedChars + addedChars.substring(keepFrom);
+            offset = start;
+            return true;
+        }
+    }
+
+    /**
+     * the version and the log of the edits since the save point of a resource that is edited live
+     */
+    protected static class LiveResource {
+
+        private String baseHash;
+        private long baseVersion;
+        private long version;
+        private final LinkedList<LiveEdit> log;
+        private int loggedChars;
+
+        private String startedHash;
+        private long startedTimestamp;
+        private boolean replayRequested;
+        private final Map<String, Boolean> requests;
+        private final Set<String> answeredRequests;
+
+        private LiveDocument document;
+
+        public LiveResource(String savePointHash) {
+            this.baseHash = savePointHash;
+            this.log = new LinkedList<LiveEdit>();
+            this.requests = new LinkedHashMap<String, Boolean>();
+            this.answeredRequests = new HashSet<String>();
+        }
+
+        public void started(String hash, long timestamp) {
+            this.startedHash = hash;
+            this.startedTimestamp = timestamp;
+        }
+
+        /**
+         * remembers the (last few) requests for the live content and whether they asked for a replay
+         */
+        public void addRequest(String requestID, boolean replay) {
+            requests.remove(requestID);
+            answeredRequests.remove(requestID);
+            requests.put(requestID, replay);
+
+            if (requests.size() > MAX_REQUESTS) {
+                String eldest = requests.keySet().iterator().next();
+                requests.remove(eldest);
+                answeredRequests.remove(eldest);
+            }
+        }
+
+        /**
+         * applies the edit to the live document, which is dropped if the edit doesn't fit
+         */
+        public void applyToDocument(LiveEdit edit) {
+            if (document != null) {
+                try {
+                    document = document.replace(edit.getOffset(), edit.getRemovedCharCount(), edit.getAddedCharacters());
+                }
+                catch (IndexOutOfBoundsException e) {
+                    document = null;
+                }
+            }
+        }
+
+        /**
+         * adds the edit to the log, the log is dropped if it doesn't start at the save point anymore
+         */
+        public void record(LiveEdit edit) {
+            if (log.isEmpty() && version == 0) {
+                // nothing happened here yet, the numbering of the others is taken over
+                baseVersion = edit.getVersion() - 1;
+            }
+            else if (edit.getVersion() != version + 1 || loggedChars + edit.getAddedCharacters().length() > MAX_LOGGED_CHARS || log.size() >= MAX_LOGGED_EDITS) {
+                dropLog();
+            }
+            version = edit.getVersion();
+
+            if (baseHash != null) {
+                log.add(edit);
+                loggedChars += edit.getAddedCharacters().length();
+            }
+        }
+
+        /**
+         * the content was replaced as a whole, it is not known how it relates to the save point
+         */
+        public void contentReplaced(long newVersion) {
+            dropLog();
+            replayRequested = false;
+            version = newVersion;
+        }
+
+        /**
+         * moves the save point to the live content, if that is the content with the given hash
+         */
+        public void updateSavePoint(String savePointHash) {
+            if (savePointHash != null && document != null && document.hasHash(savePointHash)
+                    && !(savePointHash.equals(baseHash) && log.isEmpty() && version == baseVersion)) {
+                moveSavePoint(savePointHash);
+            }
+        }
+
+        /**
+         * the current version is the content with the given hash, the log starts there
+         */
+        public void moveSavePoint(String savePointHash) {
+            dropLog();
+            baseHash = savePointHash;
+            baseVersion = version;
+        }
+
+        public boolean canReplay(String savePointHash) {
+            return baseHash != null && baseHash.equals(savePointHash) && log.size() == version - baseVersion;
+        }
+
+        public JSONArray getEdits() throws JSONException {
+            JSONArray edits = new JSONArray();
+            for (LiveEdit edit : log) {
+                edits.put(edit.toJSON());
+            }
+            return edits;
+        }
+
+        protected void dropLog() {
+            baseHash = null;
+            log.clear();
+            loggedChars = 0;
         }
     }
 
@@ -16,7 +16,6 @@ import com.intellij.openapi.util.Key;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiDocumentManager;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.eclipse.flux.core.*;
 import org.eclipse.flux.core.internal.messaging.SocketIOMessagingConnector;
 import org.jetbrains.annotations.NotNull;
@@ -75,10 +74,7 @@ public class FluxApplicationComponent implements ApplicationComponent {
                     Document document = FileDocumentManager.getInstance().getDocument(referencedFile);
                     if (document != null) {
                         String liveContent = document.getText();
-                        String liveUnitHash = DigestUtils.shaHex(liveContent);
-
-                        String remoteContentHash = DigestUtils.shaHex(content);
-                        if (!liveUnitHash.equals(remoteContentHash)) {
+                        if (!liveContent.equals(content)) {
                             ApplicationManager.getApplication().invokeLater(() -> ApplicationManager.getApplication().runWriteAction(() -> {
                                 document.putUserData(ourChangeFlag, Boolean.TRUE);
                                 try {
@@ -94,10 +90,13 @@ public class FluxApplicationComponent implements ApplicationComponent {
             }
 
             @Override
-            public void liveEditingEvent(String username, String resourcePath, final int offset, final int removeCount, final String newText) {
-                if (repository.getUsername().equals(username) /*&& liveEditUnits.containsKey(resourcePath)*/) {
-                    String projectName = resourcePath.substring(0, resourcePath.indexOf('/'));
-                    String relativeResourcePath = resourcePath.substring(projectName.length() + 1);
+            public void liveEditingEvent(LiveEdit edit) {
+                if (repository.getUsername().equals(edit.getUsername()) /*&& liveEditUnits.containsKey(resourcePath)*/) {
+                    String projectName = edit.getProjectName();
+                    String relativeResourcePath = edit.getResourcePath();
+                    final int offset = edit.getOffset();
+                    final int removeCount = edit.getRemovedCharCount();
+                    final String newText = edit.getAddedCharacters();
                     final VirtualFile referencedFile = Utils.findReferencedFile(relativeResourcePath, projectName);
                     if (referencedFile != null) {
 
@@ -148,20 +147,10 @@ public class FluxApplicationComponent implements ApplicationComponent {
                     if (resourcePath == null) return;
 
                     if (document.getUserData(ourChangeFlag) == null) {
-                        long changeTimestamp = document.getModificationStamp(); // todo
-                        //                    if (changeTimestamp > connectedProject.getTimestamp(resourcePath)) {
-                        String changeHash = DigestUtils.shaHex(document.getText());
-                        //                        if (!changeHash.equals(connectedProject.getHash(resourcePath))) {
-                        //
-                        ////                        connectedProject.setTimestamp(resourcePath, changeTimestamp);
-                        ////                        connectedProject.setHash(resourcePath, changeHash);
-
                         getLiveEditCoordinator().sendModelChangedMessage(LIVE_EDIT_CONNECTOR_ID, username,
                                 referencedProject.getName(),
                                 resourcePath, documentEvent.getOffset(), documentEvent.getOldLength(),
                                 documentEvent.getNewFragment().toString());
-                        //                        }
-                        //                    }
                     }
 
                     ApplicationManager.getApplication().invokeLater(() -> {
@@ -248,6 +237,8 @@ public class FluxApplicationComponent implements ApplicationComponent {
 
             String projectName = resourcePath.substring(0, resourcePath.indexOf('/'));
             String relativeResourcePath = resourcePath.substring(projectName.length() + 1);
+            // the coordinator answers with the live content it keeps, if it has it
+            boolean answered = liveEditCoordinator.getLiveDocument(projectName, relativeResourcePath) != null;
 
             AccessToken accessToken = ReadAction.start();
             try {
@@ -255,10 +246,12 @@ public class FluxApplicationComponent implements ApplicationComponent {
                 if (referencedFile != null) {
                     Document document = FileDocumentManager.getInstance().getDocument(referencedFile);
                     if (document != null) {
-                        String liveContent = document.getText();
-                        String liveUnitHash = DigestUtils.shaHex(liveContent);
-                        if (!liveUnitHash.equals(hash)) {
-                            liveEditCoordinator.sendLiveEditStartedResponse(LIVE_EDIT_CONNECTOR_ID, requestSenderID, callbackID, username, projectName, relativeResourcePath, hash, timestamp, liveContent);
+                        if (!answered) {
+                            String liveContent = document.getText();
+                            String liveUnitHash = Hashing.sha1Hex(liveContent);
+                            if (!liveUnitHash.equals(hash)) {
+                                liveEditCoordinator.sendLiveEditStartedResponse(LIVE_EDIT_CONNECTOR_ID, requestSenderID, callbackID, username, projectName, relativeResourcePath, hash, timestamp, liveContent);
+                            }
                         }
 
                         try {
@@ -13,7 +13,7 @@ import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.vfs.JarFileSystem;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
-import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.binary.Base64;
 import org.eclipse.flux.core.*;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -184,8 +184,8 @@ public class Repository {
 //                        String localHash = connectedProject.getHash(resourcePath);
 //                        long localTimestamp = connectedProject.getTimestamp(resourcePath);
                         Document cachedDocument = FileDocumentManager.getInstance().getCachedDocument(resource);
-                        String localHash = cachedDocument != null ? DigestUtils.shaHex(cachedDocument.getText()):
-                                DigestUtils.shaHex(resource.getInputStream());
+                        String localHash = cachedDocument != null ? Hashing.sha1Hex(cachedDocument.getText()):
+                                Hashing.sha1Hex(resource.getInputStream());
                         long localTimestamp = cachedDocument != null ? cachedDocument.getModificationStamp()  : resource.getModificationStamp();
 
                         if (!Comparing.equal(localHash, updateHash) && localTimestamp < updateTimestamp) {
@@ -352,7 +352,7 @@ public class Repository {
                                 Document cachedDocument = virtualFile.isDirectory() ? null : FileDocumentManager.getInstance().getCachedDocument(virtualFile);
                                 projectResource.put("timestamp", cachedDocument != null ? cachedDocument.getModificationStamp() : virtualFile.getModificationStamp());
 
-                                projectResource.put("hash", cachedDocument != null ? DigestUtils.shaHex(cachedDocument.getText()) : virtualFile.isDirectory() ? "0" : DigestUtils.shaHex(virtualFile.getInputStream()));
+                                projectResource.put("hash", cachedDocument != null ? Hashing.sha1Hex(cachedDocument.getText()) : virtualFile.isDirectory() ? "0" : Hashing.sha1Hex(virtualFile.getInputStream()));
 
                                 if (!virtualFile.isDirectory()) {
                                     projectResource.put("type", "file");
@@ -508,7 +508,7 @@ public class Repository {
                     message.put("resource", resourcePath);
                     message.put("timestamp", document != null ? document.getModificationStamp() : resource.getModificationStamp());
                     //message.put("hash", connectedProject.getHash(resourcePath));
-                    String shaHex = document != null ? DigestUtils.shaHex(document.getText()) : resource.isDirectory() ? "0" :DigestUtils.shaHex(resource.getInputStream());
+                    String shaHex = document != null ? Hashing.sha1Hex(document.getText()) : resource.isDirectory() ? "0" :Hashing.sha1Hex(resource.getInputStream());
                     message.put("hash", shaHex); // cache hash
 
                     if (resource.isDirectory()) {
@@ -565,7 +565,7 @@ public class Repository {
                         String content = BinaryFileTypeDecompilers.INSTANCE.forFileType(fileByPath.getFileType()).decompile(fileByPath).toString();
 
                         message.put("content", content);
-                        message.put("hash", DigestUtils.shaHex(content) );  //?
+                        message.put("hash", Hashing.sha1Hex(content) );  //?
                         message.put("type", "file");
 
                         messagingConnector.send("getResourceResponse", message);
@@ -597,13 +597,18 @@ public class Repository {
                     if (!resource.isDirectory()) {
 //                        String localHash = connectedProject.getHash(resourcePath);
 //                        long localTimestamp = connectedProject.getTimestamp(resourcePath);
-                        String localHash = DigestUtils.shaHex(resource.getInputStream());
+                        String localHash = Hashing.sha1Hex(resource.getInputStream());
                         long localTimestamp = resource.getModificationStamp();
 
                         if (!Comparing.equal(localHash, updateHash) && localTimestamp < updateTimestamp) {
                             String newResourceContent = response.getString("content");
 
-                            VfsUtil.saveText(resource, newResourceContent);
+                            if ("base64".equals(response.optString("encoding"))) {
+                                resource.setBinaryContent(Base64.decodeBase64(newResourceContent));
+                            }
+                            else {
+                                VfsUtil.saveText(resource, newResourceContent);
+                            }
                             stored = true;
                         }
                     }
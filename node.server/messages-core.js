@@ -25,16 +25,23 @@ MessageCore.prototype.initialize = function(socket, sockets) {
 	this.configureBroadcast(socket, 'resourceDeleted');
 	this.configureBroadcast(socket, 'resourceStored');
 
+	// metadataChanged comes in two shapes:
+	// - the metadata of a single resource as a whole:
+	//   {username, project, resource, type, metadata, incremental: false}
+	// - the changes of a build for a whole project (sent by Eclipse), changed markers are removed and added again:
+	//   {username, project, type: 'marker', incremental: true, resources: [{resource, added: [marker], removed: [markerID]}]}
 	this.configureBroadcast(socket, 'metadataChanged');
 
 	this.configureRequest(socket, 'getProjectRequest');
 	this.configureRequest(socket, 'getProjectsRequest');
 	this.configureRequest(socket, 'getResourceRequest');
+	this.configureRequest(socket, 'getResourcesRequest');
 	this.configureRequest(socket, 'getMetadataRequest');
 
 	this.configureResponse(socket, sockets, 'getProjectsResponse');
 	this.configureResponse(socket, sockets, 'getProjectResponse');
 	this.configureResponse(socket, sockets, 'getResourceResponse');
+	this.configureResponse(socket, sockets, 'getResourcesResponse');
 	this.configureResponse(socket, sockets, 'getMetadataResponse');
 
 	this.configureRequest(socket, 'getLiveResourcesRequest');
@@ -267,7 +267,8 @@ InMemoryRepository.prototype.updateMetadata = function(username, projectName, re
 				'project' : projectName,
 				'resource' : resourcePath,
 				'type' : type,
-				'metadata' : metadata
+				'metadata' : metadata,
+				'incremental' : false
 			};
 			this.notificationSender.emit('metadataChanged', metadataMessage);
 		}
@@ -11,9 +11,15 @@
 *******************************************************************************/
 /*global require console exports*/
 
+var RESOURCES_RESPONSE_MAX_SIZE = 512 * 1024;
+
+// how long (in milliseconds) the sorted listing of a paged getProjectRequest is kept for the following pages
+var PROJECT_LISTING_TIMEOUT = 30000;
+
 var MessagesRepository = function(repository) {
 	this.repository = repository;
 	this.socket = null;
+	this.listings = {};
 };
 
 exports.MessagesRepository = MessagesRepository;
@@ -24,6 +30,7 @@ MessagesRepository.prototype.setSocket = function(clientsocket) {
 	clientsocket.on('getProjectsRequest', this.getProjects.bind(this));
 	clientsocket.on('getProjectRequest', this.getProject.bind(this));
 	clientsocket.on('getResourceRequest', this.getResource.bind(this));
+	clientsocket.on('getResourcesRequest', this.getResources.bind(this));
 	
 	clientsocket.on('getProjectResponse', this.getProjectResponse.bind(this));
 	clientsocket.on('getResourceResponse', this.getResourceResponse.bind(this));
@@ -49,8 +56,22 @@ MessagesRepository.prototype.getProjects = function(data) {
 };
 
 MessagesRepository.prototype.getProject = function(data) {
+	// the following pages of a listing are answered from the listing that was sorted for the first page
+	var listing = data.pageSize > 0 && data.cursor !== undefined ? this._getProjectListing(data.username, data.project) : undefined;
+	if (listing !== undefined) {
+		this._sendProjectPage(data, listing.resources, listing.deleted);
+		return;
+	}
+
     this.repository.getProject(data.username, data.project, data.includeDeleted, function(error, resources, deleted) {
-		if (error === null) {
+		if (error === null && data.pageSize > 0) {
+			resources.sort(function(resource1, resource2) {
+				return resource1.path < resource2.path ? -1 : resource1.path > resource2.path ? 1 : 0;
+			});
+			this._putProjectListing(data.username, data.project, resources, deleted);
+			this._sendProjectPage(data, resources, deleted);
+		}
+		else if (error === null) {
 			if (data.includeDeleted) {
 				this.socket.emit('getProjectResponse', {
 					'callback_id' : data.callback_id,
@@ -72,6 +93,66 @@ MessagesRepository.prototype.getProject = function(data) {
     }.bind(this));
 };
 
+MessagesRepository.prototype._getProjectListing = function(username, projectName) {
+	var key = username + '/' + projectName;
+	var listing = this.listings[key];
+	if (listing !== undefined && Date.now() - listing.time > PROJECT_LISTING_TIMEOUT) {
+		delete this.listings[key];
+		return undefined;
+	}
+	return listing;
+};
+
+MessagesRepository.prototype._putProjectListing = function(username, projectName, resources, deleted) {
+	var now = Date.now();
+	var key;
+	for (key in this.listings) {
+		if (this.listings.hasOwnProperty(key) && now - this.listings[key].time > PROJECT_LISTING_TIMEOUT) {
+			delete this.listings[key];
+		}
+	}
+
+	this.listings[username + '/' + projectName] = {
+		'resources' : resources,
+		'deleted' : deleted,
+		'time' : now
+	};
+};
+
+MessagesRepository.prototype._sendProjectPage = function(data, resources, deleted) {
+	// resources are sorted by path, a page starts after the path given as cursor
+	var start = 0, end, middle;
+	if (data.cursor !== undefined) {
+		end = resources.length;
+		while (start < end) {
+			middle = (start + end) >>> 1;
+			if (resources[middle].path <= data.cursor) {
+				start = middle + 1;
+			}
+			else {
+				end = middle;
+			}
+		}
+	}
+
+	var page = resources.slice(start, start + data.pageSize);
+	var response = {
+		'callback_id' : data.callback_id,
+		'requestSenderID' : data.requestSenderID,
+		'username' : data.username,
+		'project' : data.project,
+		'files' : page};
+
+	if (start + data.pageSize < resources.length) {
+		response.cursor = page[page.length - 1].path;
+	}
+	if (data.includeDeleted && data.cursor === undefined) {
+		response.deleted = deleted;
+	}
+
+	this.socket.emit('getProjectResponse', response);
+};
+
 MessagesRepository.prototype.getResource = function(data) {
 	this.repository.getResource(data.username, data.project, data.resource, data.timestamp, data.hash, function(error, content, timestamp, hash) {
 		if (error === null) {
@@ -88,6 +169,51 @@ MessagesRepository.prototype.getResource = function(data) {
 	}.bind(this));
 };
 
+MessagesRepository.prototype.getResources = function(data) {
+	var requested = data.resources;
+	var pending = requested.length;
+	var batch = [];
+	var batchSize = 0;
+
+	var sendBatch = function() {
+		this.socket.emit('getResourcesResponse', {
+			'callback_id' : data.callback_id,
+			'requestSenderID' : data.requestSenderID,
+			'username' : data.username,
+			'project' : data.project,
+			'resources' : batch});
+		batch = [];
+		batchSize = 0;
+	}.bind(this);
+
+	var resourceRead = function(resource, error, content, timestamp, hash) {
+		if (error === null) {
+			var size = content !== undefined && content !== null ? content.length : 0;
+			if (batch.length > 0 && batchSize + size > RESOURCES_RESPONSE_MAX_SIZE) {
+				sendBatch();
+			}
+			batch.push({
+				'resource' : resource,
+				'timestamp' : timestamp,
+				'hash' : hash,
+				'type' : 'file',
+				'content' : content});
+			batchSize += size;
+		}
+
+		pending -= 1;
+		if (pending === 0 && batch.length > 0) {
+			sendBatch();
+		}
+	};
+
+	var i;
+	for (i = 0; i < requested.length; i += 1) {
+		this.repository.getResource(data.username, data.project, requested[i].resource, requested[i].timestamp, requested[i].hash,
+			resourceRead.bind(this, requested[i].resource));
+	}
+};
+
 MessagesRepository.prototype.projectConnected = function(data) {
 	var projectName = data.project;
 	var username = data.username;
@@ -179,6 +305,11 @@ MessagesRepository.prototype.getResourceResponse = function(data) {
 	var hash = data.hash;
 	var content = data.content;
 	
+	// the repository keeps text content only, binary content arrives base64 encoded
+	if (data.encoding === 'base64') {
+		return;
+	}
+	
 	this.repository.hasResource(username, projectName, resource, function(err, resourceExists) {
 		if (err === null) {
 			if (!resourceExists) {
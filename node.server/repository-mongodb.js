@@ -445,7 +445,8 @@ MongoDBRepository.prototype.updateMetadata = function(username, projectName, res
 		'project' : projectName,
 		'resource' : resourcePath,
 		'type' : type,
-		'metadata' : metadata
+		'metadata' : metadata,
+		'incremental' : false
 	};
 	this.notificationSender.emit('metadataChanged', metadataMessage);
 };
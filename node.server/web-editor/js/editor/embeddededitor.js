@@ -197,25 +197,75 @@ function(require, mTextView, mKeyBinding, mTextStyler, mTextMateStyler, mHtmlGra
 		start();
 	};
 
+	// the problems by their id, their offsets are moved along with the edits
+	var problems = {};
+	var problemsSequence;
+
+	function showProblems() {
+		var model = editor.getModel();
+		var markers = [];
+		var id;
+		for (id in problems) {
+			if (problems.hasOwnProperty(id)) {
+				var problem = problems[id];
+				var line = model.getLineAtOffset(problem.start);
+				var lineOffset = model.getLineStart(line);
+
+				markers.push({
+					'description' : problem.description,
+					'line' : line + 1,
+					'severity' : problem.severity,
+					'start' : (problem.start - lineOffset) + 1,
+					'end' : problem.end - lineOffset
+				});
+			}
+		}
+		editor.showProblems(markers);
+	}
+
+	function moveProblems(evt) {
+		var delta = evt.addedCharCount - evt.removedCharCount;
+		var id;
+		for (id in problems) {
+			if (problems.hasOwnProperty(id)) {
+				var problem = problems[id];
+				if (problem.start >= evt.start + evt.removedCharCount) {
+					problem.start += delta;
+					problem.end += delta;
+				}
+				else if (problem.end > evt.start) {
+					problem.end = Math.max(problem.start, problem.end + delta);
+				}
+			}
+		}
+	}
+
+	editor.getTextView().addEventListener("ModelChanged", moveProblems);
+
 	socket.on('liveMetadataChanged', function (data) {
-		if (username === data.username && project === data.project && resource === data.resource && data.problems !== undefined) {
-			var markers = [];
+		if (username === data.username && project === data.project && resource === data.resource) {
 			var i;
-			for(i = 0; i < data.problems.length; i++) {
-				var lineOffset = editor.getModel().getLineStart(data.problems[i].line - 1);
-
-				console.log(lineOffset);
-
-				markers[i] = {
-					'description' : data.problems[i].description,
-					'line' : data.problems[i].line,
-					'severity' : data.problems[i].severity,
-					'start' : (data.problems[i].start - lineOffset) + 1,
-					'end' : data.problems[i].end - lineOffset
-				};
+			if (data.problems !== undefined) {
+				problems = {};
+				for (i = 0; i < data.problems.length; i++) {
+					problems[data.problems[i].id !== undefined ? data.problems[i].id : 'problem' + i] = data.problems[i];
+				}
+				problemsSequence = data.sequence;
 			}
-
-			editor.showProblems(markers);
+			else if (data.previousSequence !== undefined && data.previousSequence === problemsSequence) {
+				for (i = 0; i < data.removed.length; i++) {
+					delete problems[data.removed[i]];
+				}
+				for (i = 0; i < data.added.length; i++) {
+					problems[data.added[i].id] = data.added[i];
+				}
+				problemsSequence = data.sequence;
+			}
+			else {
+				// a change got lost, the next full list of problems brings this editor up to date
+				return;
+			}
+			showProblems();
 		}
 		console.log(data);
 	});
@@ -316,6 +366,9 @@ function(require, mTextView, mKeyBinding, mTextStyler, mTextMateStyler, mHtmlGra
 
 				editor.getTextView().removeEventListener("ModelChanged", sendModelChanged);
 
+				problems = {};
+				problemsSequence = undefined;
+
 				lastSavePointContent = '';
 				lastSavePointHash = '';
 				lastSavePointTimestamp = 0;